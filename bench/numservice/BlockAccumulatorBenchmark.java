@@ -0,0 +1,65 @@
+package numservice;
+
+import java.util.Random;
+
+/**
+ * Compares accumulating values one at a time with WorkerStatus.addSum
+ * against the scalar and vectorized block accumulators
+ * <p>
+ * Compile src-vector and run with --add-modules jdk.incubator.vector to include the vectorized path
+ *
+ * @author Samuel Lindqvist
+ */
+public class BlockAccumulatorBenchmark {
+
+    // values per frame and frames per round
+    private static final int FRAME = 1024;
+    private static final int FRAMES = 4096;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        int[][] frames = new int[FRAMES][FRAME];
+        for (int[] frame : frames) {
+            for (int i = 0; i < FRAME; i++) {
+                frame[i] = random.nextInt(41) - 20;
+            }
+        }
+
+        System.out.println("Vector API available: " + BlockAccumulator.isVectorized());
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean report = round == ROUNDS - 1;
+            perValue(frames, report);
+            block(frames, new BlockAccumulator.Scalar(), "scalar block", report);
+            block(frames, BlockAccumulator.create(), "preferred block", report);
+        }
+    }
+
+    private static void perValue(int[][] frames, boolean report) {
+        WorkerStatus status = new WorkerStatus();
+        long start = System.nanoTime();
+        for (int[] frame : frames) {
+            for (int v : frame) {
+                status.addSum(v);
+                status.incrementCount();
+            }
+        }
+        print("per value addSum", start, status, report);
+    }
+
+    private static void block(int[][] frames, BlockAccumulator accumulator, String name, boolean report) {
+        WorkerStatus status = new WorkerStatus();
+        long start = System.nanoTime();
+        for (int[] frame : frames) {
+            accumulator.accumulate(frame, frame.length, status);
+        }
+        print(name, start, status, report);
+    }
+
+    private static void print(String name, long start, WorkerStatus status, boolean report) {
+        long elapsed = System.nanoTime() - start;
+        if (!report) return;
+        System.out.printf("%-18s %8.3f ns/value  (sum %d, count %d)%n", name,
+                (double) elapsed / status.getCount(), status.getSum(), status.getCount());
+    }
+}
@@ -0,0 +1,105 @@
+package numservice;
+
+import client.NumberClient;
+import client.WorkerStream;
+
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ingest rate and query latencies of several services embedded in one JVM,
+ * producers and services connected over the loopback transport, run with
+ * the number of services as argument
+ *
+ * @author Samuel Lindqvist
+ */
+public class EmbeddedServiceBenchmark {
+
+    private static final int WORKERS = 2;
+    // values every producer sends, in blocks
+    private static final int VALUES = 20_000_000;
+    private static final int BLOCK = 1024;
+    private static final int QUERIES = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int services = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        Logger root = Logger.getLogger("");
+        root.setLevel(Level.WARNING);
+        for (Handler h : root.getHandlers()) h.setLevel(Level.WARNING);
+
+        System.setProperty(NumberService.TRANSPORT_PROPERTY, IngestTransport.LOOPBACK.name());
+        System.setProperty(NumberService.POOL_PROPERTY, "0");
+        NumberService[] service = new NumberService[services];
+        NumberClient[] client = new NumberClient[services];
+        for (int s = 0; s < services; s++) {
+            service[s] = new NumberService();
+            service[s].start("embedded-" + s);
+            client[s] = connect("embedded-" + s);
+        }
+
+        // one producer per worker
+        Thread[] producers = new Thread[services * WORKERS];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers.length; p++) {
+            WorkerStream stream = client[p / WORKERS].getWorker(p % WORKERS);
+            producers[p] = new Thread(() -> produce(stream), "producer-" + p);
+            producers[p].start();
+        }
+        for (Thread p : producers) p.join();
+        for (NumberClient c : client) {
+            while (c.count().get() < VALUES * WORKERS) Thread.sleep(1);
+        }
+        long ingest = System.nanoTime() - start;
+
+        // one query at a time against one query in flight per service and round
+        long[] latencies = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            long t = System.nanoTime();
+            client[i % services].sum().get();
+            latencies[i] = System.nanoTime() - t;
+        }
+        start = System.nanoTime();
+        CompletableFuture<?>[] pipelined = new CompletableFuture<?>[QUERIES];
+        for (int i = 0; i < QUERIES; i++) pipelined[i] = client[i % services].sum();
+        CompletableFuture.allOf(pipelined).get();
+        long pipelinedNanos = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.printf("%d services  ingest %.1f M values/s  query p50 %.1f us  p99 %.1f us  pipelined %.2f us/query%n",
+                services, (double) VALUES * WORKERS * services * 1000 / ingest,
+                latencies[QUERIES / 2] / 1000.0, latencies[QUERIES * 99 / 100] / 1000.0,
+                pipelinedNanos / 1000.0 / QUERIES);
+
+        for (int s = 0; s < services; s++) {
+            client[s].close();
+            if (!service[s].await(10, TimeUnit.SECONDS)) System.out.println("service " + s + " did not close");
+        }
+    }
+
+    private static NumberClient connect(String name) throws Exception {
+        // the service binds its endpoint on its own thread
+        while (true) {
+            try {
+                return NumberClient.connect(name, WORKERS, StreamFormat.BLOCK);
+            } catch (ConnectException e) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static void produce(WorkerStream stream) {
+        int[] block = new int[BLOCK];
+        Arrays.fill(block, 1);
+        try {
+            for (int i = 0; i < VALUES; i += BLOCK) stream.add(block, 0, Math.min(BLOCK, VALUES - i));
+            stream.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
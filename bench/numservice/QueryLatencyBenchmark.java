@@ -0,0 +1,118 @@
+package numservice;
+
+import java.io.BufferedOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Query latency percentiles of an in-process service while producers keep
+ * every worker saturated, run with the format as argument: int or block
+ * <p>
+ * On Linux the thread priorities of the query lane and the ingest threads
+ * only take effect with -XX:ThreadPriorityPolicy=1, which needs root. The service exits the JVM when the
+ * benchmark closes the session.
+ *
+ * @author Samuel Lindqvist
+ */
+public class QueryLatencyBenchmark {
+
+    private static final int WORKERS = 4;
+    private static final int WARMUP_QUERIES = 2000;
+    private static final int QUERIES = 20000;
+    // values per producer flush, and per frame in the block format
+    private static final int BATCH = 256;
+
+    public static void main(String[] args) throws Exception {
+        String format = args.length > 0 ? args[0] : "int";
+        System.setProperty(NumberService.FORMAT_PROPERTY, format);
+        Logger root = Logger.getLogger("");
+        root.setLevel(Level.WARNING);
+        for (Handler h : root.getHandlers()) h.setLevel(Level.WARNING);
+
+        DatagramSocket udp = new DatagramSocket(NumberService.UDP_CLIENT_PORT);
+        Thread service = new Thread(() -> new NumberService().init("localhost"), "service");
+        service.setDaemon(true);
+        service.start();
+
+        // handshake like the work distributor
+        byte[] data = new byte[64];
+        DatagramPacket offer = new DatagramPacket(data, data.length);
+        udp.receive(offer);
+        udp.send(new DatagramPacket(new byte[]{'A', 'C', 'K'}, 3, offer.getSocketAddress()));
+        udp.close();
+        Socket control = new Socket("localhost", Integer.parseInt(new String(data, 0, offer.getLength()).trim()));
+        control.setTcpNoDelay(true);
+        ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+        out.writeInt(WORKERS);
+        out.flush();
+        int[] ports = new int[WORKERS];
+        for (int i = 0; i < WORKERS; i++) ports[i] = in.readInt();
+
+        AtomicBoolean producing = new AtomicBoolean(true);
+        Thread[] producers = new Thread[WORKERS];
+        for (int i = 0; i < WORKERS; i++) {
+            final int port = ports[i];
+            producers[i] = new Thread(() -> produce(port, "block".equals(format), producing), "producer-" + i);
+            producers[i].start();
+        }
+
+        long[] latencies = new long[QUERIES];
+        int countBefore = query(out, in, ControlMessage.QUERY_NUMBER_COUNT.getValue());
+        long start = System.nanoTime();
+        for (int i = -WARMUP_QUERIES; i < QUERIES; i++) {
+            long t = System.nanoTime();
+            query(out, in, ControlMessage.QUERY_SUM_COMPLETE.getValue());
+            if (i >= 0) latencies[i] = System.nanoTime() - t;
+        }
+        long elapsed = System.nanoTime() - start;
+        int countAfter = query(out, in, ControlMessage.QUERY_NUMBER_COUNT.getValue());
+
+        producing.set(false);
+        for (Thread p : producers) p.join();
+
+        Arrays.sort(latencies);
+        System.out.printf("format %s  ingest %.1f M values/s  query p50 %.1f us  p99 %.1f us  p99.9 %.1f us  max %.1f us%n",
+                format, (countAfter - countBefore) * 1000.0 / elapsed,
+                latencies[QUERIES / 2] / 1000.0, latencies[QUERIES * 99 / 100] / 1000.0,
+                latencies[QUERIES * 999 / 1000] / 1000.0, latencies[QUERIES - 1] / 1000.0);
+
+        // the service exits the JVM
+        out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+        out.flush();
+        service.join();
+    }
+
+    private static int query(ObjectOutputStream out, ObjectInputStream in, int query) throws Exception {
+        out.writeInt(query);
+        out.flush();
+        return in.readInt();
+    }
+
+    private static void produce(int port, boolean blocks, AtomicBoolean producing) {
+        try (Socket s = new Socket("localhost", port)) {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+            out.flush();
+            // read the worker's stream header, unread data would reset the connection on close
+            new ObjectInputStream(s.getInputStream());
+            while (producing.get()) {
+                if (blocks) out.writeInt(BATCH);
+                for (int i = 0; i < BATCH; i++) out.writeInt(1);
+                out.flush();
+            }
+            out.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+            out.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package numservice;
+
+import java.io.BufferedOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the per value cost of moving ints from a producer thread to a
+ * consumer thread through a memory-mapped SharedMemoryRing and through
+ * loopback TCP with Object streams, the way the workers receive them
+ *
+ * @author Samuel Lindqvist
+ */
+public class SharedMemoryRingBenchmark {
+
+    private static final int VALUES = 20000000;
+    // values per producer write
+    private static final int BATCH = 256;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            report("shared memory ring", sharedMemory(), round);
+            report("loopback tcp", loopbackTcp(), round);
+        }
+    }
+
+    private static void report(String name, long nanos, int round) {
+        System.out.printf("round %d %-20s %8.2f ns/value%n", round, name, (double) nanos / VALUES);
+    }
+
+    private static long sharedMemory() throws Exception {
+        Path dir = Files.createTempDirectory("bench");
+        Path file = dir.resolve("bench.ring");
+        SharedMemoryRing consumer = SharedMemoryRing.create(file, SharedMemoryRing.DEFAULT_CAPACITY);
+        SharedMemoryRing producer = SharedMemoryRing.open(file);
+        Thread t = new Thread(() -> {
+            int[] batch = new int[BATCH];
+            for (int i = 0; i < BATCH; i++) batch[i] = i + 1;
+            for (int sent = 0; sent < VALUES; ) {
+                int n = producer.offer(batch, 0, Math.min(BATCH, VALUES - sent));
+                // yield rather than spin, the threads may share a core
+                if (n == 0) Thread.yield();
+                sent += n;
+            }
+        });
+
+        long start = System.nanoTime();
+        t.start();
+        int[] values = new int[NetworkCommunicationService.MAX_FRAME_LENGTH];
+        long sum = 0;
+        for (int received = 0; received < VALUES; ) {
+            int n = consumer.poll(values);
+            if (n == 0) Thread.yield();
+            for (int i = 0; i < n; i++) sum += values[i];
+            received += n;
+        }
+        long elapsed = System.nanoTime() - start;
+        t.join();
+        producer.close();
+        consumer.close();
+        Files.delete(file);
+        Files.delete(dir);
+        if (sum == 0) System.out.println();
+        return elapsed;
+    }
+
+    private static long loopbackTcp() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        Thread t = new Thread(() -> {
+            try (Socket s = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                 ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+                for (int i = 0; i < VALUES; i++) {
+                    out.writeInt((i % BATCH) + 1);
+                    if (i % BATCH == BATCH - 1) out.flush();
+                }
+                out.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+
+        long start = System.nanoTime();
+        t.start();
+        long sum = 0;
+        try (Socket s = server.accept(); ObjectInputStream in = new ObjectInputStream(s.getInputStream())) {
+            for (int i = 0; i < VALUES; i++) sum += in.readInt();
+        }
+        long elapsed = System.nanoTime() - start;
+        t.join();
+        server.close();
+        if (sum == 0) System.out.println();
+        return elapsed;
+    }
+}
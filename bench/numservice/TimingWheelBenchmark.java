@@ -0,0 +1,60 @@
+package numservice;
+
+/**
+ * Cost of the timing wheel with many connections: schedule, cancel and
+ * idle watches for as many timers as a large server would hold
+ *
+ * @author Samuel Lindqvist
+ */
+public class TimingWheelBenchmark {
+
+    private static final int TIMERS = 500000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            TimingWheel wheel = new TimingWheel(1);
+            TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[TIMERS];
+            Runnable task = () -> { };
+
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMERS; i++) {
+                // spread over every level of the wheel
+                timeouts[i] = wheel.schedule(task, 1 + (i * 7919L) % 1000000);
+            }
+            long schedule = System.nanoTime() - start;
+
+            // first tick puts them into the wheel
+            start = System.nanoTime();
+            wheel.advance();
+            long place = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < TIMERS; i += 2) {
+                timeouts[i].cancel();
+            }
+            wheel.advance();
+            long cancel = System.nanoTime() - start;
+
+            // idle watches of connections which all make progress
+            long[] progress = new long[TIMERS];
+            for (int i = 0; i < TIMERS; i++) {
+                final int connection = i;
+                wheel.watchIdle(() -> progress[connection], 1000, task);
+            }
+            start = System.nanoTime();
+            for (int t = 0; t < 3000; t++) {
+                if (t % 500 == 0) {
+                    for (int i = 0; i < TIMERS; i++) progress[i]++;
+                }
+                wheel.advance();
+            }
+            long ticks = System.nanoTime() - start;
+
+            System.out.printf("round %d  schedule %5.1f ns  place %5.1f ns  cancel %5.1f ns  " +
+                            "3000 ticks with %d watches %6.1f ms, %d pending%n", round,
+                    (double) schedule / TIMERS, (double) place / TIMERS, (double) cancel / (TIMERS / 2),
+                    TIMERS, ticks / 1e6, wheel.getPending());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package numservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares unix domain sockets against loopback TCP for the worker streams:
+ * connection setup time and per value cost through Object streams
+ *
+ * @author Samuel Lindqvist
+ */
+public class UnixSocketBenchmark {
+
+    private static final int VALUES = 20000000;
+    private static final int CONNECTIONS = 2000;
+    // values per producer flush
+    private static final int BATCH = 256;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempDirectory("bench").resolve("bench.sock");
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.printf("round %d unix   connect %7.1f us  stream %6.2f ns/value%n", round,
+                    unixConnect(file) / 1000.0 / CONNECTIONS, (double) unixStream(file) / VALUES);
+            System.out.printf("round %d tcp    connect %7.1f us  stream %6.2f ns/value%n", round,
+                    tcpConnect() / 1000.0 / CONNECTIONS, (double) tcpStream() / VALUES);
+        }
+        Files.deleteIfExists(file);
+        Files.delete(file.getParent());
+    }
+
+    private static ServerSocketChannel bindUnix(Path file) throws Exception {
+        Files.deleteIfExists(file);
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(file));
+        return server;
+    }
+
+    private static long unixConnect(Path file) throws Exception {
+        try (ServerSocketChannel server = bindUnix(file)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(file));
+                server.accept().close();
+                client.close();
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static long tcpConnect() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                server.accept().close();
+                client.close();
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static long unixStream(Path file) throws Exception {
+        try (ServerSocketChannel server = bindUnix(file)) {
+            Thread producer = new Thread(() -> {
+                try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(file))) {
+                    produce(Channels.newOutputStream(client));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            long start = System.nanoTime();
+            producer.start();
+            try (SocketChannel channel = server.accept()) {
+                consume(new BufferedInputStream(Channels.newInputStream(channel)));
+            }
+            long elapsed = System.nanoTime() - start;
+            producer.join();
+            return elapsed;
+        }
+    }
+
+    private static long tcpStream() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread producer = new Thread(() -> {
+                try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+                    produce(client.getOutputStream());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            long start = System.nanoTime();
+            producer.start();
+            try (Socket socket = server.accept()) {
+                consume(socket.getInputStream());
+            }
+            long elapsed = System.nanoTime() - start;
+            producer.join();
+            return elapsed;
+        }
+    }
+
+    private static void produce(OutputStream os) throws Exception {
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(os));
+        for (int i = 0; i < VALUES; i++) {
+            out.writeInt((i % BATCH) + 1);
+            if (i % BATCH == BATCH - 1) out.flush();
+        }
+        out.flush();
+    }
+
+    private static void consume(InputStream is) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(is);
+        long sum = 0;
+        for (int i = 0; i < VALUES; i++) sum += in.readInt();
+        if (sum == 0) System.out.println();
+    }
+}
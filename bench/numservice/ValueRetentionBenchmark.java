@@ -0,0 +1,57 @@
+package numservice;
+
+import java.util.Random;
+
+/**
+ * Append cost, packed size and range query time of the value retention,
+ * the range queries against summing the raw values
+ *
+ * @author Samuel Lindqvist
+ */
+public class ValueRetentionBenchmark {
+
+    // values appended and the block size they arrive in
+    private static final int VALUES = 20_000_000;
+    private static final int FRAME = 1024;
+    // values of the range queries, "the last 10M values"
+    private static final int RANGE = 10_000_000;
+    private static final int QUERIES = 100;
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        int[] values = new int[VALUES];
+        for (int i = 0; i < VALUES; i++) values[i] = random.nextInt(41) - 20;
+
+        ValueRetention retention = new ValueRetention(VALUES);
+        int[] frame = new int[FRAME];
+        long start = System.nanoTime();
+        for (int i = 0; i < VALUES; i += FRAME) {
+            System.arraycopy(values, i, frame, 0, Math.min(FRAME, VALUES - i));
+            retention.append(frame, Math.min(FRAME, VALUES - i));
+        }
+        long append = System.nanoTime() - start;
+        System.out.printf("append %.2f ns/value, packed %.2f bytes/value%n",
+                (double) append / VALUES, (double) retention.getPackedBytes() / VALUES);
+
+        for (int round = 0; round < 3; round++) {
+            start = System.nanoTime();
+            long sum = 0;
+            for (int q = 0; q < QUERIES; q++) {
+                // unaligned ends, both boundary chunks are unpacked
+                sum += retention.aggregate(VALUES - RANGE - q * 7L, VALUES - q * 3L).getSum();
+            }
+            long ranged = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long raw = 0;
+            for (int q = 0; q < QUERIES; q++) {
+                for (int i = VALUES - RANGE - q * 7; i < VALUES - q * 3; i++) raw += values[i];
+            }
+            long scanned = System.nanoTime() - start;
+            if (round == 2) {
+                System.out.printf("range of %d values: retention %.1f us, raw scan %.1f us (sums %d %d)%n", RANGE,
+                        ranged / 1000.0 / QUERIES, scanned / 1000.0 / QUERIES, sum, raw);
+            }
+        }
+    }
+}
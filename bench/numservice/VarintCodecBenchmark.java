@@ -0,0 +1,68 @@
+package numservice;
+
+import java.util.Random;
+
+/**
+ * Compares the wire size and receive cost of the block and varint stream formats,
+ * for small values and for values drifting slowly over a large base
+ *
+ * @author Samuel Lindqvist
+ */
+public class VarintCodecBenchmark {
+
+    // values per frame and frames per round
+    private static final int FRAME = NetworkCommunicationService.MAX_FRAME_LENGTH;
+    private static final int FRAMES = 1024;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        int[][] small = new int[FRAMES][FRAME];
+        int[][] drifting = new int[FRAMES][FRAME];
+        int base = 1_000_000_000;
+        for (int f = 0; f < FRAMES; f++) {
+            for (int i = 0; i < FRAME; i++) {
+                small[f][i] = random.nextInt(41) - 20;
+                base += random.nextInt(101) - 50;
+                drifting[f][i] = base;
+            }
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean report = round == ROUNDS - 1;
+            run("small", small, report);
+            run("drifting", drifting, report);
+        }
+    }
+
+    private static void run(String name, int[][] frames, boolean report) {
+        BlockAccumulator accumulator = BlockAccumulator.create();
+        WorkerStatus status = new WorkerStatus();
+        long start = System.nanoTime();
+        for (int[] frame : frames) {
+            accumulator.accumulate(frame, frame.length, status);
+        }
+        long blockTime = System.nanoTime() - start;
+
+        byte[][] encoded = new byte[frames.length][FRAME * VarintCodec.MAX_BYTES];
+        int[] lengths = new int[frames.length];
+        long bytes = 0;
+        for (int f = 0; f < frames.length; f++) {
+            lengths[f] = VarintCodec.encode(frames[f], FRAME, encoded[f]);
+            bytes += lengths[f] + 4;
+        }
+        WorkerStatus decoded = new WorkerStatus();
+        start = System.nanoTime();
+        for (int f = 0; f < frames.length; f++) {
+            VarintCodec.accumulate(encoded[f], lengths[f], decoded);
+        }
+        long varintTime = System.nanoTime() - start;
+
+        if (!report) return;
+        long values = (long) frames.length * FRAME;
+        System.out.printf("%-9s block  %5.2f bytes/value %7.3f ns/value (sum %d)%n", name,
+                (FRAME * 4 + 4) / (double) FRAME, (double) blockTime / values, status.getSum());
+        System.out.printf("%-9s varint %5.2f bytes/value %7.3f ns/value (sum %d)%n", name,
+                (double) bytes / values, (double) varintTime / values, decoded.getSum());
+    }
+}
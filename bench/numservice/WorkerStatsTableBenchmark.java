@@ -0,0 +1,55 @@
+package numservice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Query sweep over many workers: the statistics table against
+ * a map of status objects with an atomic per field
+ *
+ * @author Samuel Lindqvist
+ */
+public class WorkerStatsTableBenchmark {
+
+    private static final int WORKERS = 100000;
+    private static final int SWEEPS = 200;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        WorkerStatsTable table = new WorkerStatsTable();
+        Map<Object, AtomicInteger[]> map = new HashMap<>();
+        for (int i = 1; i <= WORKERS; i++) {
+            WorkerStatus status = table.allocate();
+            status.setWorkerId(i);
+            status.addValue(i % 100);
+            map.put(new Object(), new AtomicInteger[]{new AtomicInteger(i % 100), new AtomicInteger(1)});
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int check = 0;
+            for (int n = 0; n < SWEEPS; n++) {
+                check += table.sum() + table.count();
+            }
+            long tableNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int n = 0; n < SWEEPS; n++) {
+                int sum = 0;
+                int count = 0;
+                for (AtomicInteger[] status : map.values()) {
+                    sum += status[0].get();
+                }
+                for (AtomicInteger[] status : map.values()) {
+                    count += status[1].get();
+                }
+                check -= sum + count;
+            }
+            long mapNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d  %d workers  sum and count sweep: table %6.1f us  map %6.1f us  (%d)%n",
+                    round, WORKERS, tableNanos / 1000.0 / SWEEPS, mapNanos / 1000.0 / SWEEPS, check);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package numservice;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Block accumulator using the incubating Vector API
+ * Requires --add-modules jdk.incubator.vector, see {@link BlockAccumulator#create()}
+ * Kept out of src so the default build compiles without the incubator module
+ *
+ * @author Samuel Lindqvist
+ */
+class VectorBlockAccumulator extends BlockAccumulator {
+
+    // widest int vector the CPU supports
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void reduce(int[] values, int length) {
+        IntVector vSum = IntVector.zero(SPECIES);
+        IntVector vMin = IntVector.broadcast(SPECIES, Integer.MAX_VALUE);
+        IntVector vMax = IntVector.broadcast(SPECIES, Integer.MIN_VALUE);
+
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, values, i);
+            vSum = vSum.add(v);
+            vMin = vMin.min(v);
+            vMax = vMax.max(v);
+        }
+
+        int s = vSum.reduceLanes(VectorOperators.ADD);
+        int lo = vMin.reduceLanes(VectorOperators.MIN);
+        int hi = vMax.reduceLanes(VectorOperators.MAX);
+        // scalar tail
+        for (; i < length; i++) {
+            int v = values[i];
+            s += v;
+            lo = Math.min(lo, v);
+            hi = Math.max(hi, v);
+        }
+        sum = s;
+        min = lo;
+        max = hi;
+    }
+}
@@ -0,0 +1,506 @@
+package client;
+
+import numservice.ControlMessage;
+import numservice.Loopback;
+import numservice.NumberService;
+import numservice.RangeUnit;
+import numservice.StreamFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client of a NumberService
+ * <p>
+ * Takes the place of the WorkDistributor: accepts the service's UDP offer,
+ * performs the handshake and holds the worker streams and the control
+ * connection. Producers share the worker streams, see {@link WorkerStream}.
+ * <p>
+ * Queries are pipelined, each one is written without waiting for the answers
+ * of the ones before it. The service answers in order, so the futures complete
+ * in the order the queries were sent, on the thread reading the answers;
+ * dependent work that blocks belongs on the *Async stages.
+ * <p>
+ * Covers the TCP and LOOPBACK transports without resumption and subscriptions.
+ * The client reads flow control grants, the worker streams honour the credits
+ * if the service has flow control enabled.
+ *
+ * @author Samuel Lindqvist
+ */
+public class NumberClient implements Closeable {
+
+    // milliseconds to wait for the service's offer
+    public static final int OFFER_TIMEOUT = 60000;
+    // milliseconds close waits for the answers of the queries sent before it
+    public static final int CLOSE_TIMEOUT = 5000;
+    // bytes buffered below the object streams of the sockets
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // socket or loopback connection of the control channel
+    private final Closeable control;
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+    private final StreamFormat format;
+    private final WorkerStream[] workers;
+    // worker handed out next by next()
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    // queries sent and not yet answered, in the order they were sent, written under the out lock
+    private final BlockingQueue<Pending<?>> pending = new LinkedBlockingQueue<>();
+    // ends the reader once the queries before it are answered
+    private final Pending<?> end = new Pending<>(null, null);
+    private final Thread reader;
+    // set under the out lock, no query is sent afterwards
+    private boolean closed;
+
+    /**
+     * Reads the answer of a query from the control connection
+     */
+    interface Answer<T> {
+        T read(ObjectInputStream in) throws IOException;
+    }
+
+    /**
+     * Writes a query to the control connection
+     */
+    interface Query {
+        void write(ObjectOutputStream out) throws IOException;
+    }
+
+    /**
+     * Opens the stream of the worker at the endpoint the service sent
+     */
+    interface WorkerConnector {
+        WorkerStream connect(String endpoint, StreamFormat format, boolean credits) throws IOException;
+    }
+
+    private NumberClient(Closeable control, ObjectOutputStream out, ObjectInputStream in,
+                         StreamFormat format, WorkerStream[] workers) {
+        this.control = control;
+        this.out = out;
+        this.in = in;
+        this.format = format;
+        this.workers = workers;
+        reader = new Thread(this::readAnswers, "number-client-answers");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Wait for the offer of a service on {@link NumberService#UDP_CLIENT_PORT} and connect to it
+     *
+     * @param workers number of workers
+     * @param format  stream format to request, the service may answer with another one
+     * @return connected client
+     * @throws IOException if no offer arrives in time or the handshake fails
+     */
+    public static NumberClient accept(int workers, StreamFormat format) throws IOException {
+        try (DatagramSocket udp = new DatagramSocket(NumberService.UDP_CLIENT_PORT)) {
+            udp.setSoTimeout(OFFER_TIMEOUT);
+            byte[] data = new byte[256];
+            DatagramPacket offer = new DatagramPacket(data, data.length);
+            udp.receive(offer);
+            // acknowledge so the service stops retransmitting the offer
+            byte[] ack = "ACK".getBytes();
+            udp.send(new DatagramPacket(ack, ack.length, offer.getSocketAddress()));
+            String port = new String(data, 0, offer.getLength()).trim();
+            try {
+                return connect(new InetSocketAddress(offer.getAddress(), Integer.parseInt(port)), workers, format);
+            } catch (NumberFormatException e) {
+                throw new IOException("Offer of " + port + " is not a port, only the TCP transport is supported");
+            }
+        }
+    }
+
+    /**
+     * Connect to a service which offered the given address
+     *
+     * @param service address of the service's control connection
+     * @param workers number of workers
+     * @param format  stream format to request, the service may answer with another one
+     * @return connected client
+     * @throws IOException if the handshake fails
+     */
+    public static NumberClient connect(InetSocketAddress service, int workers, StreamFormat format) throws IOException {
+        checkWorkers(workers);
+        Socket control = new Socket(service.getAddress(), service.getPort());
+        try {
+            // queries are small and latency bound
+            control.setTcpNoDelay(true);
+            return handshake(control, control.getInputStream(), new BufferedOutputStream(control.getOutputStream()),
+                    workers, format, false, (port, negotiated, credits) -> {
+                        Socket s = new Socket(service.getAddress(), Integer.parseInt(port));
+                        try {
+                            return new WorkerStream(s.getInputStream(),
+                                    new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE), s, negotiated, credits);
+                        } catch (IOException e) {
+                            s.close();
+                            throw e;
+                        }
+                    });
+        } catch (IOException | RuntimeException e) {
+            control.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect to an embedded service of this JVM which uses the LOOPBACK transport
+     *
+     * @param name    name of the service's loopback endpoint, the client it was started with
+     * @param workers number of workers
+     * @param format  stream format to request, the service may answer with another one
+     * @return connected client
+     * @throws IOException if the handshake fails
+     */
+    public static NumberClient connect(String name, int workers, StreamFormat format) throws IOException {
+        checkWorkers(workers);
+        Loopback.Connection control = Loopback.connect(name);
+        try {
+            return handshake(control, control.getInputStream(), control.getOutputStream(),
+                    workers, format, true, (endpoint, negotiated, credits) -> {
+                        Loopback.Connection c = Loopback.connect(endpoint);
+                        try {
+                            return new WorkerStream(c.getInputStream(), c.getOutputStream(), c, negotiated, credits);
+                        } catch (IOException e) {
+                            c.close();
+                            throw e;
+                        }
+                    });
+        } catch (IOException | RuntimeException e) {
+            control.close();
+            throw e;
+        }
+    }
+
+    private static void checkWorkers(int workers) {
+        if (workers < NumberService.MIN_WORKERS || workers > NumberService.MAX_WORKERS) {
+            throw new IllegalArgumentException("Invalid number of workers " + workers + ", legal: "
+                    + NumberService.MIN_WORKERS + "-" + NumberService.MAX_WORKERS);
+        }
+    }
+
+    /**
+     * Request the workers and the format, offer to read grants and open the worker streams
+     *
+     * @param named true if the workers are sent as endpoint names instead of ports
+     */
+    private static NumberClient handshake(Closeable control, InputStream is, OutputStream os, int workers,
+                                          StreamFormat format, boolean named, WorkerConnector connector)
+            throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(os);
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(is);
+        out.writeInt(workers | format.getId() << NumberService.FORMAT_REQUEST_SHIFT | NumberService.CREDITS_REQUEST);
+        out.flush();
+        String[] endpoints = new String[workers];
+        for (int i = 0; i < workers; i++) {
+            if (named) {
+                endpoints[i] = in.readUTF();
+                continue;
+            }
+            int port = in.readInt();
+            if (port == ControlMessage.CLIENT_TIMEOUT.getValue()) {
+                throw new IOException("Service timed out waiting for the worker count");
+            }
+            endpoints[i] = Integer.toString(port);
+        }
+        StreamFormat negotiated = StreamFormat.fromId(in.readInt());
+        if (negotiated == null) throw new IOException("Service negotiated an unknown stream format");
+        // flow control window of the workers, 0 if the service has none
+        boolean credits = in.readInt() > 0;
+        List<WorkerStream> streams = new ArrayList<>();
+        try {
+            for (String endpoint : endpoints) streams.add(connector.connect(endpoint, negotiated, credits));
+        } catch (IOException | RuntimeException e) {
+            for (WorkerStream s : streams) s.close();
+            throw e;
+        }
+        return new NumberClient(control, out, in, negotiated, streams.toArray(new WorkerStream[0]));
+    }
+
+    /**
+     * @return negotiated format of the worker streams
+     */
+    public StreamFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return number of worker streams
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @param index index of the worker in the order of the handshake
+     * @return stream of the worker
+     */
+    public WorkerStream getWorker(int index) {
+        return workers[index];
+    }
+
+    /**
+     * Hand out the worker streams in turn, spreading producers over the workers
+     *
+     * @return stream of the next worker
+     */
+    public WorkerStream next() {
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+    }
+
+    /**
+     * Write the buffered values of every worker stream
+     *
+     * @throws IOException if the values can't be written
+     */
+    public void flush() throws IOException {
+        for (WorkerStream w : workers) w.flush();
+    }
+
+    /**
+     * Send a query which is answered with a single int
+     *
+     * @param query one of the QUERY_ messages answered with an int
+     * @return future of the answer
+     */
+    public CompletableFuture<Integer> query(ControlMessage query) {
+        switch (query) {
+            case QUERY_SUM_COMPLETE:
+            case QUERY_MAX_SUM_WORKER:
+            case QUERY_NUMBER_COUNT:
+            case QUERY_FLOW_STALLS:
+            case QUERY_LOST_DATAGRAMS:
+            case QUERY_DUPLICATE_DATAGRAMS:
+                return send(o -> o.writeInt(query.getValue()), ObjectInputStream::readInt);
+            default:
+                throw new IllegalArgumentException(query + " is not answered with a single int");
+        }
+    }
+
+    /**
+     * @return future of the total sum of all workers
+     */
+    public CompletableFuture<Integer> sum() {
+        return query(ControlMessage.QUERY_SUM_COMPLETE);
+    }
+
+    /**
+     * @return future of the total count of values
+     */
+    public CompletableFuture<Integer> count() {
+        return query(ControlMessage.QUERY_NUMBER_COUNT);
+    }
+
+    /**
+     * @return future of the number of the worker with the largest sum
+     */
+    public CompletableFuture<Integer> maxSumWorker() {
+        return query(ControlMessage.QUERY_MAX_SUM_WORKER);
+    }
+
+    /**
+     * @return future of the sample count followed by p50, p99, p99.9 and max in microseconds,
+     * null if the service does not measure freshness
+     */
+    public CompletableFuture<int[]> freshness() {
+        return send(o -> o.writeInt(ControlMessage.QUERY_FRESHNESS.getValue()), i -> {
+            int samples = i.readInt();
+            if (samples == ControlMessage.INVALID_QUERY.getValue()) return null;
+            return new int[]{samples, i.readInt(), i.readInt(), i.readInt(), i.readInt()};
+        });
+    }
+
+    /**
+     * Aggregate retained values of a worker
+     *
+     * @param worker id of the worker
+     * @param unit   unit of from and to
+     * @param from   start of the range, or the number of values for RangeUnit.LAST
+     * @param to     end of the range
+     * @return future of the sum, count, min and max, null if the worker retains no values
+     */
+    public CompletableFuture<long[]> range(int worker, RangeUnit unit, long from, long to) {
+        return send(o -> {
+            o.writeInt(ControlMessage.QUERY_RANGE.getValue());
+            o.writeInt(worker);
+            o.writeInt(unit.ordinal());
+            o.writeLong(from);
+            o.writeLong(to);
+        }, i -> {
+            if (i.readInt() == ControlMessage.INVALID_QUERY.getValue()) return null;
+            return new long[]{i.readLong(), i.readLong(), i.readInt(), i.readInt()};
+        });
+    }
+
+    /**
+     * @param key key of a keyed stream
+     * @return future of the key's sum and count over all workers, null if no stream is keyed
+     */
+    public CompletableFuture<long[]> key(int key) {
+        return send(o -> {
+            o.writeInt(ControlMessage.QUERY_KEY.getValue());
+            o.writeInt(key);
+        }, i -> {
+            if (i.readInt() == ControlMessage.INVALID_QUERY.getValue()) return null;
+            return new long[]{i.readLong(), i.readInt()};
+        });
+    }
+
+    /**
+     * @param n number of keys wanted
+     * @return future of the keys with the largest sums and their sums, largest first
+     */
+    public CompletableFuture<Map<Integer, Long>> topKeys(int n) {
+        return send(o -> {
+            o.writeInt(ControlMessage.QUERY_TOP_KEYS.getValue());
+            o.writeInt(n);
+        }, i -> {
+            int m = i.readInt();
+            Map<Integer, Long> top = new LinkedHashMap<>();
+            for (int k = 0; k < m; k++) top.put(i.readInt(), i.readLong());
+            return top;
+        });
+    }
+
+    /**
+     * End every worker stream, wait for the answers of the queries sent so far
+     * and close the session
+     *
+     * @throws IOException if a worker stream can't be ended
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (WorkerStream w : workers) {
+            try {
+                w.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        synchronized (out) {
+            if (!closed) {
+                closed = true;
+                pending.add(end);
+                try {
+                    out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+                    out.flush();
+                } catch (IOException e) {
+                    // the session is gone already
+                }
+            }
+        }
+        try {
+            reader.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // fails the queries left unanswered
+        control.close();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Write a query and queue its answer
+     */
+    private <T> CompletableFuture<T> send(Query query, Answer<T> answer) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        synchronized (out) {
+            if (closed) {
+                future.completeExceptionally(new IOException("Client closed"));
+                return future;
+            }
+            // queued first, the answer may arrive before write returns
+            pending.add(new Pending<>(future, answer));
+            try {
+                query.write(out);
+                out.flush();
+            } catch (IOException e) {
+                // the reader fails every pending query once the connection is closed
+                closeControl();
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Complete the pending queries in order with the answers until the client closes
+     */
+    private void readAnswers() {
+        Pending<?> p = null;
+        try {
+            while ((p = pending.take()) != end) {
+                p.complete(in);
+            }
+            return;
+        } catch (IOException e) {
+            failPending(p, e);
+            closeControl();
+        } catch (InterruptedException e) {
+            failPending(null, e);
+        }
+    }
+
+    /**
+     * Fail the queries left unanswered, no query is sent afterwards
+     *
+     * @param current query whose answer was being read, null if none
+     */
+    private void failPending(Pending<?> current, Exception cause) {
+        List<Pending<?>> failed = new ArrayList<>();
+        synchronized (out) {
+            closed = true;
+            if (current != null) failed.add(current);
+            pending.drainTo(failed);
+        }
+        // outside the lock, callbacks may send queries
+        for (Pending<?> p : failed) {
+            if (p != end) p.future.completeExceptionally(cause);
+        }
+    }
+
+    private void closeControl() {
+        try {
+            control.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Future of a query sent and the reader of its answer
+     */
+    private static final class Pending<T> {
+
+        final CompletableFuture<T> future;
+        final Answer<T> answer;
+
+        Pending(CompletableFuture<T> future, Answer<T> answer) {
+            this.future = future;
+            this.answer = answer;
+        }
+
+        void complete(ObjectInputStream in) throws IOException {
+            future.complete(answer.read(in));
+        }
+    }
+}
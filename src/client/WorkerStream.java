@@ -0,0 +1,225 @@
+package client;
+
+import numservice.ControlMessage;
+import numservice.NetworkCommunicationService;
+import numservice.StreamFormat;
+import numservice.VarintCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Producer end of one worker stream
+ * <p>
+ * Values are collected into a frame of the stream's format and written when
+ * the frame is full or on {@link #flush()}, the connection sees a few large writes
+ * instead of a flush per value. The stream may be shared by producer threads,
+ * a frame holds the values of whichever thread added them.
+ * <p>
+ * With flow control the stream sends no more values than the worker granted
+ * credits, a frame is cut to the credits at hand and the producer waits for
+ * the next grant, so a worker which is behind holds the producer back.
+ *
+ * @author Samuel Lindqvist
+ */
+public class WorkerStream implements Closeable {
+
+    // values per frame, the longest frame a worker accepts
+    public static final int FRAME_VALUES = NetworkCommunicationService.MAX_FRAME_LENGTH;
+
+    // socket or loopback connection to the worker
+    private final Closeable connection;
+    private final ObjectOutputStream out;
+    private final StreamFormat format;
+    // grants of the worker, null without flow control
+    private final ObjectInputStream grants;
+    // credits left to spend, values may be sent up to them
+    private long credits;
+    // number of times the stream waited for a grant
+    private long creditWaits;
+
+    // values of the frame being filled
+    private final int[] values = new int[FRAME_VALUES];
+    private int count;
+    // the frame as bytes, length and values, or the varints
+    private final ByteBuffer frame;
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param in         stream from the worker
+     * @param out        stream to the worker
+     * @param connection connection of the streams, closed with the stream
+     * @param format     negotiated format of the stream
+     * @param credits    true if the worker grants flow control credits
+     * @throws IOException if the worker's stream header can't be read
+     */
+    WorkerStream(InputStream in, OutputStream out, Closeable connection, StreamFormat format,
+                 boolean credits) throws IOException {
+        this.connection = connection;
+        this.format = format;
+        this.out = new ObjectOutputStream(out);
+        this.out.flush();
+        // read the worker's stream header, unread data would reset the connection on close
+        ObjectInputStream header = new ObjectInputStream(in);
+        grants = credits ? header : null;
+        frame = ByteBuffer.allocate(format == StreamFormat.VARINT
+                ? FRAME_VALUES * VarintCodec.MAX_BYTES : (FRAME_VALUES + 1) * Integer.BYTES);
+    }
+
+    /**
+     * Add a value to the stream
+     *
+     * @param value value, not 0 on an INT stream where 0 ends the stream
+     * @throws IOException if a full frame can't be written
+     */
+    public synchronized void add(int value) throws IOException {
+        checkValue(value);
+        values[count++] = value;
+        if (count == FRAME_VALUES) writeFrame();
+    }
+
+    /**
+     * Add values to the stream
+     *
+     * @param source values, none of them 0 on an INT stream
+     * @param offset index of the first value
+     * @param length number of values
+     * @throws IOException if a full frame can't be written
+     */
+    public synchronized void add(int[] source, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) checkValue(source[i]);
+        while (length > 0) {
+            int n = Math.min(length, FRAME_VALUES - count);
+            System.arraycopy(source, offset, values, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+            if (count == FRAME_VALUES) writeFrame();
+        }
+    }
+
+    /**
+     * Add a value of a key to a KEYED stream
+     *
+     * @param key   key
+     * @param value value
+     * @throws IOException if a full frame can't be written
+     */
+    public synchronized void add(int key, int value) throws IOException {
+        if (format != StreamFormat.KEYED) {
+            throw new IllegalStateException("Keys need a KEYED stream, the stream is " + format);
+        }
+        if (closed) throw new IOException("Stream closed");
+        values[count++] = key;
+        values[count++] = value;
+        if (count == FRAME_VALUES) writeFrame();
+    }
+
+    /**
+     * Write the buffered values to the worker
+     *
+     * @throws IOException if the values can't be written
+     */
+    public synchronized void flush() throws IOException {
+        writeFrame();
+        out.flush();
+    }
+
+    /**
+     * Write the buffered values and end the stream
+     *
+     * @throws IOException if the values or the end can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        try {
+            writeFrame();
+            out.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+            out.flush();
+            if (grants != null) {
+                // the worker closes after the end, grants sent meanwhile are read
+                // so that the close does not reset the connection under the last values
+                while (grants.read() != -1) {
+                    // skip
+                }
+            }
+        } finally {
+            closed = true;
+            connection.close();
+        }
+    }
+
+    /**
+     * @return format of the stream
+     */
+    public StreamFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return number of times the stream ran out of credits and waited for a grant
+     */
+    public synchronized long getCreditWaits() {
+        return creditWaits;
+    }
+
+    private void checkValue(int value) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (format == StreamFormat.KEYED) {
+            throw new IllegalStateException("A KEYED stream takes keys with the values");
+        }
+        if (value == 0 && format == StreamFormat.INT) {
+            throw new IllegalArgumentException("0 would end the INT stream");
+        }
+    }
+
+    private void writeFrame() throws IOException {
+        if (grants == null) {
+            writeFrame(0, count);
+        } else {
+            // a KEYED pair costs one credit and is never split
+            int perCredit = format == StreamFormat.KEYED ? 2 : 1;
+            for (int offset = 0; offset < count; ) {
+                if (credits == 0) awaitGrant();
+                int n = (int) Math.min(count - offset, credits * perCredit);
+                writeFrame(offset, n);
+                credits -= n / perCredit;
+                offset += n;
+            }
+        }
+        count = 0;
+    }
+
+    private void writeFrame(int offset, int length) throws IOException {
+        if (length == 0) return;
+        if (format == StreamFormat.VARINT) {
+            int bytes = VarintCodec.encode(values, offset, length, frame.array());
+            out.writeInt(bytes);
+            out.write(frame.array(), 0, bytes);
+        } else {
+            frame.clear();
+            if (format != StreamFormat.INT) frame.putInt(length);
+            for (int i = offset; i < offset + length; i++) frame.putInt(values[i]);
+            out.write(frame.array(), 0, frame.position());
+        }
+    }
+
+    /**
+     * Send what was written and wait for the worker to grant credits
+     */
+    private void awaitGrant() throws IOException {
+        out.flush();
+        creditWaits++;
+        while (credits == 0) {
+            credits += grants.readInt();
+        }
+    }
+}
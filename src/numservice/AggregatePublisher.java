@@ -0,0 +1,130 @@
+package numservice;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Background thread of a node which pushes the partial aggregates of
+ * the node's workers to an aggregation coordinator whenever they change
+ *
+ * @author Samuel Lindqvist
+ */
+public class AggregatePublisher implements Runnable {
+
+    // default interval between two pushes
+    public static final int PUBLISH_INTERVAL = 50;
+    // wait before reconnecting to the coordinator
+    public static final int RECONNECT_DELAY = 1000;
+
+    // coordinator address
+    private final String host;
+    private final int port;
+    // id of this node
+    private final int nodeId;
+    // worker statuses of this node
+    private final Map<NumberWorker, WorkerStatus> statuses;
+    // milliseconds between pushes
+    private final int interval;
+
+    // running flag
+    private AtomicBoolean running;
+
+    // sampled latencies of the service, told about every push, null if not measured
+    private FreshnessTracker freshness;
+
+    /**
+     * Constructor
+     *
+     * @param coordinator coordinator address as host:port
+     * @param nodeId      id of this node
+     * @param statuses    worker statuses to aggregate
+     * @param interval    milliseconds between pushes
+     */
+    public AggregatePublisher(String coordinator, int nodeId, Map<NumberWorker, WorkerStatus> statuses, int interval) {
+        int colon = coordinator.lastIndexOf(':');
+        this.host = coordinator.substring(0, colon);
+        this.port = Integer.parseInt(coordinator.substring(colon + 1));
+        this.nodeId = nodeId;
+        this.statuses = statuses;
+        this.interval = interval;
+        this.running = new AtomicBoolean(true);
+    }
+
+    /**
+     * Thread body
+     * Connect to the coordinator and push changed aggregates, reconnect if the connection drops
+     */
+    @Override
+    public void run() {
+        LOG.info("Node " + nodeId + " publishing aggregates to " + host + ":" + port);
+        PartialAggregate last;
+        while (running.get()) {
+            try (Socket socket = new Socket(host, port);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                out.writeInt(nodeId);
+                last = null;
+                // the round after stop() still pushes the final aggregates
+                boolean stopping = false;
+                while (!stopping) {
+                    stopping = !running.get();
+                    PartialAggregate current = aggregate();
+                    if (!current.equals(last)) {
+                        current.write(out);
+                        out.flush();
+                        if (freshness != null) freshness.published();
+                        last = current;
+                    }
+                    if (!stopping) sleep(interval);
+                }
+            } catch (IOException e) {
+                LOG.warning("Node " + nodeId + " lost coordinator connection: " + e.getMessage());
+                sleep(RECONNECT_DELAY);
+            }
+        }
+        LOG.info("Aggregate publisher exiting");
+    }
+
+    /**
+     * Sleep, an interrupt only wakes the thread up early
+     */
+    private void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // woken up by stop()
+        }
+    }
+
+    /**
+     * @return partial aggregate of this node's workers
+     */
+    private PartialAggregate aggregate() {
+        PartialAggregate p = new PartialAggregate();
+        for (Map.Entry<NumberWorker, WorkerStatus> e : statuses.entrySet()) {
+            p.add(e.getKey().getId(), e.getValue());
+        }
+        return p;
+    }
+
+    /**
+     * @param freshness tracker to record the pushes in, null to not measure
+     */
+    public void setFreshness(FreshnessTracker freshness) {
+        this.freshness = freshness;
+    }
+
+    /**
+     * Push the final aggregates and stop
+     */
+    public void stop() {
+        running.set(false);
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(AggregatePublisher.class.getName());
+}
@@ -0,0 +1,110 @@
+package numservice;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the total sum and count of a service to a subscribed client
+ * whenever they change, at most once per interval
+ * <p>
+ * Every update is three ints: a sequence number starting at 1, the sum and
+ * the count. The first update goes out when the subscription starts, the
+ * last one has sequence number 0 and carries the final totals. Changes within
+ * an interval are coalesced into the next update.
+ *
+ * @author Samuel Lindqvist
+ */
+public class AggregateSubscription implements Runnable {
+
+    // default milliseconds between two updates
+    public static final int DEFAULT_INTERVAL = 10;
+
+    // totals of the service
+    private final WorkerStatsTable stats;
+    // writes an update to the client
+    private final Consumer<int[]> sink;
+    // milliseconds between two updates
+    private final int interval;
+
+    // running flag
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private Thread thread;
+    // updates sent, the final one included
+    private volatile int updates;
+
+    /**
+     * Constructor
+     *
+     * @param stats    totals to push
+     * @param sink     writes an update to the client
+     * @param interval milliseconds between two updates
+     */
+    public AggregateSubscription(WorkerStatsTable stats, Consumer<int[]> sink, int interval) {
+        this.stats = stats;
+        this.sink = sink;
+        this.interval = interval;
+    }
+
+    /**
+     * Start pushing in a thread of its own
+     */
+    public void start() {
+        thread = new Thread(this, "aggregate-subscription");
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        int sequence = 1;
+        int sum = stats.sum();
+        int count = stats.count();
+        push(sequence++, sum, count);
+        while (running.get()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // woken up by stop()
+            }
+            int s = stats.sum();
+            int c = stats.count();
+            if (!running.get()) break;
+            if (s == sum && c == count) continue;
+            sum = s;
+            count = c;
+            push(sequence++, sum, count);
+            // wrap past 0, which marks the final update
+            if (sequence < 0) sequence = 1;
+        }
+        push(0, stats.sum(), stats.count());
+    }
+
+    /**
+     * Send the final update and stop, returns after the final update is sent
+     */
+    public void stop() {
+        running.set(false);
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            LOG.warning("Interrupted while sending the final update");
+        }
+        LOG.info("Subscription ended after " + updates + " updates");
+    }
+
+    /**
+     * @return updates sent, the final one included
+     */
+    public int getUpdates() {
+        return updates;
+    }
+
+    private void push(int sequence, int sum, int count) {
+        sink.accept(new int[]{sequence, sum, count});
+        updates++;
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(AggregateSubscription.class.getName());
+}
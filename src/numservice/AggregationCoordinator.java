@@ -0,0 +1,149 @@
+package numservice;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Coordinator of a multi-node deployment
+ * <p>
+ * Every NumberService node owns a subset of the workers and pushes the partial
+ * aggregates of its workers to the coordinator. Clients connect to the query port
+ * and send the same query messages as to a single service, the coordinator answers
+ * them by merging the latest partial aggregates of all nodes.
+ *
+ * @author Samuel Lindqvist
+ */
+public class AggregationCoordinator {
+
+    // default ports
+    public static final int NODE_PORT = 3127;
+    public static final int QUERY_PORT = 3128;
+
+    // latest partial aggregate of every node, kept after the node disconnects
+    private final Map<Integer, PartialAggregate> partials = new ConcurrentHashMap<>();
+
+    /**
+     * Coordinator entry point
+     *
+     * @param args node port and query port
+     */
+    public static void main(String[] args) throws Exception {
+        int nodePort = args.length > 0 ? Integer.parseInt(args[0]) : NODE_PORT;
+        int queryPort = args.length > 1 ? Integer.parseInt(args[1]) : QUERY_PORT;
+        new AggregationCoordinator().start(new ServerSocket(nodePort), new ServerSocket(queryPort));
+    }
+
+    /**
+     * Accept node and query connections, each served by its own thread
+     *
+     * @param nodeSocket  socket nodes push aggregates to
+     * @param querySocket socket clients send queries to
+     */
+    public void start(ServerSocket nodeSocket, ServerSocket querySocket) {
+        LOG.info("Coordinator accepting nodes on " + nodeSocket.getLocalPort() +
+                " and queries on " + querySocket.getLocalPort());
+        Thread nodeAcceptor = new Thread(() -> accept(nodeSocket, true), "node-acceptor");
+        nodeAcceptor.setDaemon(true);
+        nodeAcceptor.start();
+        accept(querySocket, false);
+    }
+
+    /**
+     * Accept connections until the socket is closed
+     */
+    private void accept(ServerSocket serverSocket, boolean nodes) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread t = new Thread(() -> {
+                    if (nodes) receiveAggregates(socket);
+                    else answerQueries(socket);
+                });
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) LOG.warning("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read the partial aggregates pushed by one node until it disconnects
+     */
+    private void receiveAggregates(Socket socket) {
+        int nodeId = -1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            nodeId = in.readInt();
+            LOG.info("Node " + nodeId + " connected from " + socket.getRemoteSocketAddress());
+            while (true) {
+                partials.put(nodeId, PartialAggregate.read(in));
+            }
+        } catch (EOFException e) {
+            LOG.info("Node " + nodeId + " disconnected");
+        } catch (IOException e) {
+            LOG.warning("Node " + nodeId + " connection failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answer the queries of one client until it closes the connection
+     */
+    private void answerQueries(Socket socket) {
+        NetworkCommunicationService netService;
+        try {
+            netService = new NetworkCommunicationService(socket);
+        } catch (Exception e) {
+            LOG.warning("Could not serve query client: " + e.getMessage());
+            return;
+        }
+        try {
+            while (true) {
+                int msg = netService.listenToTCPMessage();
+                if (msg == ControlMessage.CLOSE_CONNECTION.getValue()) break;
+                netService.sendTCPMessage(answer(msg));
+            }
+        } catch (Exception e) {
+            LOG.warning("Query connection failed: " + e.getMessage());
+        } finally {
+            netService.closeConnection();
+        }
+    }
+
+    /**
+     * @param query query message
+     * @return answer merged from the partial aggregates of all nodes
+     */
+    public int answer(int query) {
+        PartialAggregate merged = merge();
+        if (query == ControlMessage.QUERY_SUM_COMPLETE.getValue()) {
+            return merged.getSum();
+        } else if (query == ControlMessage.QUERY_MAX_SUM_WORKER.getValue()) {
+            return merged.getMaxSumWorker();
+        } else if (query == ControlMessage.QUERY_NUMBER_COUNT.getValue()) {
+            return merged.getCount();
+        }
+        LOG.info("Received invalid query " + query + " answering INVALID_QUERY");
+        return ControlMessage.INVALID_QUERY.getValue();
+    }
+
+    /**
+     * @return merge of the latest partial aggregates of all nodes
+     */
+    private PartialAggregate merge() {
+        PartialAggregate merged = new PartialAggregate();
+        for (PartialAggregate p : partials.values()) {
+            merged.merge(p);
+        }
+        return merged;
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(AggregationCoordinator.class.getName());
+}
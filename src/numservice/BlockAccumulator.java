@@ -0,0 +1,115 @@
+package numservice;
+
+import java.util.logging.Logger;
+
+/**
+ * Reduces a block of received values to their sum, minimum and maximum
+ * in a single pass and adds the result to a worker's status
+ * <p>
+ * {@link #create()} returns the Vector API implementation when the
+ * jdk.incubator.vector module is available and the scalar one otherwise.
+ * The Vector API implementation is in the optional src-vector source root,
+ * so a plain build of src needs no incubator module. Compile it onto the same
+ * class path with javac --add-modules jdk.incubator.vector to include it.
+ * An instance holds the result of the last reduction, so it belongs to one thread.
+ *
+ * @author Samuel Lindqvist
+ */
+public abstract class BlockAccumulator {
+
+    // result of the last reduction
+    protected int sum;
+    protected int min;
+    protected int max;
+
+    /**
+     * Reduce values[0..length) into sum, min and max
+     *
+     * @param values block of values
+     * @param length number of values in the block, at least 1
+     */
+    public abstract void reduce(int[] values, int length);
+
+    /**
+     * Reduce a block and add it to the status with one update per field
+     *
+     * @param values block of values
+     * @param length number of values in the block
+     * @param target status of the worker
+     */
+    public void accumulate(int[] values, int length, WorkerStatus target) {
+        if (length <= 0) return;
+        reduce(values, length);
+        target.addBlock(sum, length, min, max);
+    }
+
+    public int getSum() {
+        return sum;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * @return vectorized accumulator if the Vector API is available, scalar otherwise
+     */
+    public static BlockAccumulator create() {
+        if (vectorClass != null) {
+            try {
+                return (BlockAccumulator) vectorClass.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                // fall through to scalar
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * @return true if create() returns the vectorized implementation
+     */
+    public static boolean isVectorized() {
+        return vectorClass != null;
+    }
+
+    /**
+     * Plain loop, also the reference for the vectorized implementation
+     */
+    public static class Scalar extends BlockAccumulator {
+        @Override
+        public void reduce(int[] values, int length) {
+            int s = 0;
+            int lo = Integer.MAX_VALUE;
+            int hi = Integer.MIN_VALUE;
+            for (int i = 0; i < length; i++) {
+                int v = values[i];
+                s += v;
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            }
+            sum = s;
+            min = lo;
+            max = hi;
+        }
+    }
+
+    // vectorized implementation, null if it was not compiled or the incubator module is not present
+    private static final Class<?> vectorClass = loadVectorClass();
+
+    private static Class<?> loadVectorClass() {
+        try {
+            Class<?> c = Class.forName("numservice.VectorBlockAccumulator");
+            // touch the species so a missing module fails here and not on the first block
+            c.getDeclaredConstructor().newInstance();
+            return c;
+        } catch (Throwable e) {
+            Logger.getLogger(BlockAccumulator.class.getName())
+                    .info("Vector API not available, using scalar block accumulation");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package numservice;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Background thread which periodically writes a compact binary snapshot
+ * of every worker's sum, count, min and max to local disk
+ * <p>
+ * The workers are stored under their slot in the service's statistics table,
+ * the order the workers were created in. A restarted service creates its workers
+ * in the same order, whatever ids they get, so each one finds its predecessor's state.
+ * <p>
+ * The snapshot is first written to a temporary file next to the target
+ * and then moved over it, so a crash never leaves a half written checkpoint.
+ * Worker state is read from the atomics only, ingest threads are never blocked.
+ *
+ * @author Samuel Lindqvist
+ */
+public class Checkpointer implements Runnable {
+
+    // default interval between two checkpoints
+    public static final int CHECKPOINT_INTERVAL = 1000;
+
+    // file header, "NSCP"
+    private static final int MAGIC = 0x4E534350;
+    private static final short VERSION = 2;
+
+    // snapshot target file
+    private final Path file;
+    // identity of the session the snapshot belongs to
+    private final long sessionId;
+    // worker statuses to snapshot
+    private final Map<NumberWorker, WorkerStatus> statuses;
+    // milliseconds between checkpoints
+    private final int interval;
+
+    // running flag
+    private AtomicBoolean running;
+
+    /**
+     * Constructor
+     *
+     * @param file      snapshot file
+     * @param sessionId session identity stored in the snapshot
+     * @param statuses  worker statuses to snapshot
+     * @param interval  milliseconds between checkpoints
+     */
+    public Checkpointer(Path file, long sessionId, Map<NumberWorker, WorkerStatus> statuses, int interval) {
+        this.file = file;
+        this.sessionId = sessionId;
+        this.statuses = statuses;
+        this.interval = interval;
+        this.running = new AtomicBoolean(true);
+    }
+
+    /**
+     * Thread body
+     * Write a checkpoint every interval until stopped, and a final one on the way out
+     */
+    @Override
+    public void run() {
+        LOG.info("Checkpointing to " + file + " every " + interval + " ms");
+        try {
+            while (running.get()) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                writeCheckpoint();
+            }
+        } finally {
+            writeCheckpoint();
+        }
+        LOG.info("Checkpointer exiting");
+    }
+
+    /**
+     * Write one snapshot and atomically replace the previous one
+     */
+    public void writeCheckpoint() {
+        // serialize into memory first, a few bytes per worker
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + statuses.size() * 20);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(sessionId);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(statuses.size());
+            for (WorkerStatus status : statuses.values()) {
+                out.writeInt(status.getSlot());
+                out.writeInt(status.getSum());
+                out.writeInt(status.getCount());
+                out.writeInt(status.getMin());
+                out.writeInt(status.getMax());
+            }
+        } catch (IOException e) {
+            LOG.warning("Could not serialize checkpoint: " + e.getMessage());
+            return;
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.warning("Could not write checkpoint " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop checkpointing after the final snapshot
+     */
+    public void stop() {
+        running.set(false);
+    }
+
+    /**
+     * Read the latest snapshot from disk
+     *
+     * @param file snapshot file
+     * @return the restored checkpoint, null if there is none
+     * @throws Exception if the file exists but is not a valid checkpoint
+     */
+    public static Checkpoint restore(Path file) throws Exception {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new Exception("Not a checkpoint file: " + file);
+            }
+            long sessionId = in.readLong();
+            long timestamp = in.readLong();
+            int count = in.readInt();
+            Map<Integer, int[]> workers = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int slot = in.readInt();
+                workers.put(slot, new int[]{in.readInt(), in.readInt(), in.readInt(), in.readInt()});
+            }
+            return new Checkpoint(sessionId, timestamp, workers);
+        } catch (EOFException e) {
+            throw new Exception("Truncated checkpoint file: " + file);
+        }
+    }
+
+    /**
+     * Contents of one restored snapshot
+     */
+    public static class Checkpoint {
+
+        // session the snapshot belongs to
+        private final long sessionId;
+        // wall clock time of the snapshot
+        private final long timestamp;
+        // table slot -> {sum, count, min, max}
+        private final Map<Integer, int[]> workers;
+
+        Checkpoint(long sessionId, long timestamp, Map<Integer, int[]> workers) {
+            this.sessionId = sessionId;
+            this.timestamp = timestamp;
+            this.workers = workers;
+        }
+
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getWorkerCount() {
+            return workers.size();
+        }
+
+        /**
+         * Restore the state of the worker which had the status's slot, if the snapshot contains it
+         *
+         * @param status status object to restore into
+         * @return true if the slot was found in the snapshot
+         */
+        public boolean restoreInto(WorkerStatus status) {
+            int[] values = workers.get(status.getSlot());
+            if (values == null) return false;
+            status.restore(values[0], values[1], values[2], values[3]);
+            return true;
+        }
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(Checkpointer.class.getName());
+}
@@ -14,6 +14,34 @@ public enum ControlMessage {
     QUERY_MAX_SUM_WORKER(2),
     // query number of total sent numbers
     QUERY_NUMBER_COUNT(3),
+    // query how many times the workers withheld flow control credits
+    QUERY_FLOW_STALLS(4),
+    // query number of datagrams lost on the way to the workers
+    QUERY_LOST_DATAGRAMS(5),
+    // query number of datagrams the workers received more than once
+    QUERY_DUPLICATE_DATAGRAMS(6),
+    // add a worker to the session
+    ADD_WORKER(7),
+    // retire the worker whose id follows, its totals stay in the aggregates
+    RETIRE_WORKER(8),
+    // query the sampled latency until received values are visible to the queries,
+    // answered with the sample count followed by p50, p99, p99.9 and max in microseconds
+    QUERY_FRESHNESS(9),
+    // push the total sum and count on change until UNSUBSCRIBE, see AggregateSubscription,
+    // the control channel carries only the updates meanwhile
+    SUBSCRIBE(10),
+    // stop the updates, the final update has sequence number 0
+    UNSUBSCRIBE(11),
+    // query the retained values of a worker, followed by the worker id, the RangeUnit id and
+    // two longs, answered with 0, the sum and count as longs and the min and max as ints,
+    // or INVALID_QUERY if the worker retains no values
+    QUERY_RANGE(12),
+    // query the sum and count of the key that follows over all keyed streams, answered
+    // with 0, the sum as a long and the count as an int, or INVALID_QUERY if no stream is keyed
+    QUERY_KEY(13),
+    // query the keys with the largest sums, followed by how many are wanted, answered with
+    // the number of keys and then every key as an int and its sum as a long, largest first
+    QUERY_TOP_KEYS(14),
     // client wants to close connection
     CLOSE_CONNECTION(0),
     // indicates the end of number strean from client
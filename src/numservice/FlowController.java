@@ -0,0 +1,151 @@
+package numservice;
+
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Credit based flow control of one worker stream
+ * <p>
+ * The producer may only send as many values as it has been granted credits.
+ * The worker grants the whole window when the stream starts and then returns
+ * credits in batches as it consumes values, but only while its queue of
+ * received and not yet accumulated values is below the high water mark.
+ * Withholding a grant is counted as a stall, the producer then waits on the
+ * credits instead of blindly filling the socket buffers.
+ *
+ * @author Samuel Lindqvist
+ */
+public class FlowController {
+
+    // default window in values
+    public static final int DEFAULT_WINDOW = 8192;
+
+    // credits the producer gets when the stream starts
+    private final int window;
+    // consumed values collected before a grant is sent
+    private final int batch;
+    // queue depth above which grants are withheld
+    private final int highWater;
+
+    // current queue depth in values
+    private final IntSupplier queueDepth;
+    // sends a grant to the producer
+    private final IntConsumer grantSender;
+
+    // consumed values not yet returned as credits
+    private int pending;
+
+    // metrics, written by the worker thread only
+    private volatile long granted;
+    private volatile long grants;
+    private volatile long stalls;
+    private volatile long stalledNanos;
+    private volatile int maxDepth;
+    private long stallStart;
+    private boolean stalled;
+
+    /**
+     * Constructor
+     *
+     * @param window      credits granted when the stream starts
+     * @param queueDepth  current number of received values waiting to be accumulated
+     * @param grantSender sends a grant of the given number of credits to the producer
+     */
+    public FlowController(int window, IntSupplier queueDepth, IntConsumer grantSender) {
+        this.window = window;
+        this.batch = Math.max(1, window / 4);
+        this.highWater = Math.max(1, window / 2);
+        this.queueDepth = queueDepth;
+        this.grantSender = grantSender;
+    }
+
+    /**
+     * Grant the initial window
+     */
+    public void start() {
+        grant(window);
+    }
+
+    /**
+     * Called by the worker after it has accumulated values
+     *
+     * @param values number of accumulated values
+     */
+    public void consumed(int values) {
+        pending += values;
+        if (pending < batch) return;
+
+        int depth = queueDepth.getAsInt();
+        if (depth > maxDepth) maxDepth = depth;
+        if (depth > highWater) {
+            // behind, the queued values will call back here as they are consumed
+            if (!stalled) {
+                stalled = true;
+                stallStart = System.nanoTime();
+                stalls++;
+            }
+            return;
+        }
+        if (stalled) {
+            stalled = false;
+            stalledNanos += System.nanoTime() - stallStart;
+        }
+        grant(pending);
+        pending = 0;
+    }
+
+    private void grant(int credits) {
+        grantSender.accept(credits);
+        granted += credits;
+        grants++;
+    }
+
+    /**
+     * @return total credits granted to the producer
+     */
+    public long getGranted() {
+        return granted;
+    }
+
+    /**
+     * @return number of grants sent
+     */
+    public long getGrants() {
+        return grants;
+    }
+
+    /**
+     * @return number of times grants were withheld because the worker was behind
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * @return total time grants were withheld, in nanoseconds
+     */
+    public long getStalledNanos() {
+        return stalledNanos;
+    }
+
+    /**
+     * @return largest observed queue depth in values
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Log the metrics of the stream
+     *
+     * @param name name of the stream for the log
+     */
+    public void logStats(String name) {
+        LOG.info(name + " flow control: granted " + granted + " credits in " + grants + " grants, " +
+                stalls + " stalls for " + stalledNanos / 1000000 + " ms, max queue depth " + maxDepth);
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(FlowController.class.getName());
+}
@@ -0,0 +1,154 @@
+package numservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sampled latency from reading values off a worker's stream until the
+ * queries see them, and until the aggregate publisher has pushed them
+ * <p>
+ * Workers timestamp one read in every {@link #getInterval()} and report the
+ * timestamp once the values of that read are accumulated, from then on
+ * QUERY_SUM_COMPLETE includes them. The latencies are kept in histograms
+ * of power of two nanosecond buckets, so recording never allocates or locks.
+ *
+ * @author Samuel Lindqvist
+ */
+public class FreshnessTracker {
+
+    // reads between two samples of a worker
+    private final int interval;
+
+    // read to accumulated
+    private final Histogram visible = new Histogram();
+    // read to pushed to the coordinator
+    private final Histogram published = new Histogram();
+    // read time of the oldest sample accumulated since the last push, 0 if none
+    private final AtomicLong unpublished = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param interval reads between two samples of a worker
+     */
+    public FreshnessTracker(int interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @return reads between two samples of a worker
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Record a sampled read whose values have just been accumulated
+     *
+     * @param readNanos System.nanoTime() when the read returned
+     */
+    public void visible(long readNanos) {
+        visible.record(System.nanoTime() - readNanos);
+        unpublished.compareAndSet(0, readNanos);
+    }
+
+    /**
+     * Record that the aggregates were pushed, including every sample accumulated so far
+     */
+    public void published() {
+        long readNanos = unpublished.getAndSet(0);
+        if (readNanos != 0) published.record(System.nanoTime() - readNanos);
+    }
+
+    /**
+     * @return read to accumulated latencies
+     */
+    public Histogram getVisible() {
+        return visible;
+    }
+
+    /**
+     * @return read to pushed latencies, empty unless a coordinator is configured
+     */
+    public Histogram getPublished() {
+        return published;
+    }
+
+    /**
+     * @return one line summary of both distributions
+     */
+    public String summary() {
+        String s = "visible " + visible;
+        if (published.getCount() > 0) s += ", published " + published;
+        return s;
+    }
+
+    /**
+     * Latency histogram, bucket i counts the latencies below 2^i nanoseconds
+     * and at least 2^(i-1), percentiles are reported as the upper bound of the bucket
+     */
+    public static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            sum.addAndGet(nanos);
+            long current;
+            while (nanos > (current = max.get())) {
+                if (max.compareAndSet(current, nanos)) break;
+            }
+        }
+
+        /**
+         * @return number of samples
+         */
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+            return count;
+        }
+
+        /**
+         * @param quantile quantile between 0 and 1
+         * @return nanoseconds at most the given share of the samples took, 0 if there are none
+         */
+        public long percentile(double quantile) {
+            long count = getCount();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * @return sum of the samples in nanoseconds
+         */
+        public long getSum() {
+            return sum.get();
+        }
+
+        /**
+         * @return largest sample in nanoseconds
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d samples p50 %.1f us p99 %.1f us p99.9 %.1f us max %.1f us", getCount(),
+                    percentile(0.5) / 1000.0, percentile(0.99) / 1000.0, percentile(0.999) / 1000.0,
+                    getMax() / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package numservice;
+
+/**
+ * Transport the producers use to send values to the workers
+ *
+ * @author Samuel Lindqvist
+ */
+public enum IngestTransport {
+    // one TCP connection per worker, see StreamFormat for the encoding
+    TCP,
+    // datagrams of a sequence number followed by the values, may be lost or duplicated
+    UDP,
+    // memory-mapped ring buffer file per worker for producers on the same host, see SharedMemoryRing
+    SHARED_MEMORY,
+    // unix domain sockets for the control channel and the workers, same encoding as TCP
+    UNIX,
+    // in-memory connections for the control channel and the workers of a service embedded
+    // in the producers' JVM, see Loopback, same encoding as TCP
+    LOOPBACK
+}
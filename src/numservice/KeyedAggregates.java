@@ -0,0 +1,214 @@
+package numservice;
+
+/**
+ * Sum and count per key of a keyed stream, in a primitive open addressing
+ * hash map with linear probing
+ * <p>
+ * Keys, sums and counts live in parallel arrays, nothing is boxed and adding
+ * a pair only allocates when the table grows. The worker adds and the query
+ * thread reads under the map's lock, which is uncontended between queries.
+ *
+ * @author Samuel Lindqvist
+ */
+public class KeyedAggregates {
+
+    // initial number of slots, a power of two
+    public static final int INITIAL_CAPACITY = 1024;
+
+    private int[] keys;
+    private long[] sums;
+    // count of a slot, 0 marks an empty slot
+    private int[] counts;
+    private int size;
+    private int mask;
+
+    /**
+     * Receives the entries of a map
+     */
+    public interface EntryConsumer {
+        void accept(int key, long sum, int count);
+    }
+
+    public KeyedAggregates() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Add the pairs of a keyed frame and their values to the worker's totals
+     *
+     * @param frame  alternating keys and values
+     * @param length number of ints in the frame, twice the pairs
+     * @param target status to add the values to
+     */
+    public synchronized void addPairs(int[] frame, int length, WorkerStatus target) {
+        int sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i + 1 < length; i += 2) {
+            int value = frame[i + 1];
+            add(frame[i], value, 1);
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (length >= 2) target.addBlock(sum, length / 2, min, max);
+    }
+
+    /**
+     * @param key key
+     * @return sum of the key's values, 0 if it has none
+     */
+    public synchronized long getSum(int key) {
+        int slot = find(key);
+        return counts[slot] == 0 ? 0 : sums[slot];
+    }
+
+    /**
+     * @param key key
+     * @return number of the key's values
+     */
+    public synchronized int getCount(int key) {
+        return counts[find(key)];
+    }
+
+    /**
+     * @return number of distinct keys
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Pass every key with its sum and count to the consumer
+     */
+    public synchronized void forEach(EntryConsumer consumer) {
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0) consumer.accept(keys[slot], sums[slot], counts[slot]);
+        }
+    }
+
+    /**
+     * Add the entries of another map to this one
+     *
+     * @param other map to merge, locked while it is read
+     */
+    public synchronized void merge(KeyedAggregates other) {
+        other.forEach(this::add);
+    }
+
+    /**
+     * The keys with the largest sums, largest first
+     *
+     * @param keys destination of the keys, its length is the number of keys wanted
+     * @param sums destination of their sums, as long as keys
+     * @return number of keys written, less than wanted if the map has fewer
+     */
+    public synchronized int top(int[] keys, long[] sums) {
+        // min-heap of the best slots so far, the smallest sum at the root
+        int n = keys.length;
+        int[] heap = new int[n];
+        int filled = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] == 0) continue;
+            if (filled < n) {
+                heap[filled] = slot;
+                siftUp(heap, filled++);
+            } else if (n > 0 && this.sums[slot] > this.sums[heap[0]]) {
+                heap[0] = slot;
+                siftDown(heap, filled);
+            }
+        }
+        // drain smallest first into the back of the result
+        for (int i = filled - 1; i >= 0; i--) {
+            keys[i] = this.keys[heap[0]];
+            sums[i] = this.sums[heap[0]];
+            heap[0] = heap[i];
+            siftDown(heap, i);
+        }
+        return filled;
+    }
+
+    private void add(int key, long sum, int count) {
+        int slot = find(key);
+        if (counts[slot] == 0) {
+            keys[slot] = key;
+            size++;
+        }
+        sums[slot] += sum;
+        counts[slot] += count;
+        // keep at most half of the slots used, probes stay short
+        if (size * 2 > counts.length) grow();
+    }
+
+    /**
+     * @return slot of the key, or the empty slot it would be put in
+     */
+    private int find(int key) {
+        int slot = hash(key) & mask;
+        while (counts[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(int key) {
+        // murmur3 finalizer, sensor ids are often sequential
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldSums = sums;
+        int[] oldCounts = counts;
+        allocate(oldCounts.length * 2);
+        for (int slot = 0; slot < oldCounts.length; slot++) {
+            if (oldCounts[slot] == 0) continue;
+            int s = find(oldKeys[slot]);
+            keys[s] = oldKeys[slot];
+            sums[s] = oldSums[slot];
+            counts[s] = oldCounts[slot];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        sums = new long[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private void siftUp(int[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (sums[heap[parent]] <= sums[heap[i]]) return;
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int length) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < length && sums[heap[left]] < sums[heap[smallest]]) smallest = left;
+            if (right < length && sums[heap[right]] < sums[heap[smallest]]) smallest = right;
+            if (smallest == i) return;
+            swap(heap, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int a, int b) {
+        int t = heap[a];
+        heap[a] = heap[b];
+        heap[b] = t;
+    }
+}
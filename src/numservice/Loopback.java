@@ -0,0 +1,284 @@
+package numservice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory connections between threads of one JVM, in place of sockets
+ * <p>
+ * An endpoint is bound under a name that is unique in the JVM. Connecting to
+ * the name queues one end of a duplex connection for the endpoint to accept
+ * and returns the other end to the caller. Each direction is a byte ring
+ * buffer: reads block until bytes arrive and writes block while it is full.
+ * After either end closes, the reader still drains what was written before
+ * and then sees the end of the stream.
+ *
+ * @author Samuel Lindqvist
+ */
+public class Loopback {
+
+    // bytes buffered per direction
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    // bound endpoints by name
+    private static final ConcurrentHashMap<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+
+    private Loopback() {
+    }
+
+    /**
+     * Bind an endpoint
+     *
+     * @param name name the peers connect to
+     * @return the bound endpoint
+     * @throws BindException if the name is bound already
+     */
+    public static Endpoint bind(String name) throws BindException {
+        Endpoint endpoint = new Endpoint(name);
+        if (ENDPOINTS.putIfAbsent(name, endpoint) != null) {
+            throw new BindException("Loopback endpoint " + name + " is in use");
+        }
+        return endpoint;
+    }
+
+    /**
+     * Connect to a bound endpoint
+     *
+     * @param name name of the endpoint
+     * @return this end of the connection
+     * @throws ConnectException if no endpoint is bound under the name
+     */
+    public static Connection connect(String name) throws ConnectException {
+        Endpoint endpoint = ENDPOINTS.get(name);
+        Pipe up = new Pipe();
+        Pipe down = new Pipe();
+        if (endpoint == null || !endpoint.offer(new Connection(up, down))) {
+            throw new ConnectException("No loopback endpoint " + name);
+        }
+        return new Connection(down, up);
+    }
+
+    /**
+     * Named endpoint accepting connections
+     */
+    public static final class Endpoint implements Closeable {
+
+        // wakes the threads waiting in accept when the endpoint closes
+        private static final Connection CLOSED = new Connection(new Pipe(), new Pipe());
+
+        private final String name;
+        // connections waiting to be accepted
+        private final LinkedBlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        private Endpoint(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Wait for a connection
+         *
+         * @param timeout milliseconds to wait, 0 waits forever
+         * @return the endpoint's end of the connection
+         * @throws SocketTimeoutException if nobody connected in time
+         * @throws SocketException        if the endpoint is closed
+         */
+        public Connection accept(int timeout) throws IOException {
+            Connection c;
+            try {
+                c = timeout > 0 ? pending.poll(timeout, TimeUnit.MILLISECONDS) : pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted in accept");
+            }
+            if (c == null) throw new SocketTimeoutException("Accept timed out");
+            if (c == CLOSED) {
+                // for the next thread waiting
+                pending.offer(CLOSED);
+                throw new SocketException("Loopback endpoint " + name + " closed");
+            }
+            return c;
+        }
+
+        /**
+         * @return name the peers connect to
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Unbind the name and refuse the connections not yet accepted
+         */
+        @Override
+        public void close() {
+            closed = true;
+            ENDPOINTS.remove(name, this);
+            Connection c;
+            while ((c = pending.poll()) != null) c.close();
+            pending.offer(CLOSED);
+        }
+
+        private boolean offer(Connection c) {
+            if (closed) return false;
+            pending.offer(c);
+            return true;
+        }
+    }
+
+    /**
+     * One end of a duplex connection
+     */
+    public static final class Connection implements Closeable {
+
+        private final Pipe in;
+        private final Pipe out;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+
+        private Connection(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+            inputStream = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return in.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public int available() {
+                    return in.available();
+                }
+
+                @Override
+                public void close() {
+                    Connection.this.close();
+                }
+            };
+            outputStream = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    Connection.this.close();
+                }
+            };
+        }
+
+        /**
+         * @return stream of the bytes the peer writes
+         */
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /**
+         * @return stream to the peer
+         */
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        /**
+         * @return true once either end has closed
+         */
+        public boolean isClosed() {
+            return in.isClosed() || out.isClosed();
+        }
+
+        /**
+         * Close both directions, unblocking the reads and writes of both ends
+         */
+        @Override
+        public void close() {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * One direction of a connection
+     */
+    private static final class Pipe {
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        // index of the oldest unread byte and the number of unread bytes
+        private int head;
+        private int count;
+        private boolean closed;
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (count == 0) {
+                if (closed) return -1;
+                await();
+            }
+            int n = Math.min(Math.min(len, count), BUFFER_SIZE - head);
+            System.arraycopy(buffer, head, b, off, n);
+            head = (head + n) % BUFFER_SIZE;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == BUFFER_SIZE && !closed) await();
+                if (closed) throw new SocketException("Loopback connection closed");
+                int tail = (head + count) % BUFFER_SIZE;
+                int n = Math.min(Math.min(len, BUFFER_SIZE - count), BUFFER_SIZE - tail);
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int available() {
+            return count;
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted on a loopback connection");
+            }
+        }
+    }
+}
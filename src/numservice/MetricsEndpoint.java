@@ -0,0 +1,159 @@
+package numservice;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * HTTP endpoint serving the statistics of a service in the Prometheus text format
+ * <p>
+ * The endpoint runs on a thread of its own, so scrapes never touch the control
+ * channel. Rendering reads the same atomics as the queries and iterates the
+ * concurrent worker map, it never locks against the workers.
+ *
+ * @author Samuel Lindqvist
+ */
+public class MetricsEndpoint {
+
+    // path the metrics are served at
+    public static final String PATH = "/metrics";
+
+    // statistics to serve
+    private final WorkerStatsTable stats;
+    private final Map<NumberWorker, WorkerStatus> statuses;
+    // sampled freshness latencies, null if not measured
+    private final FreshnessTracker freshness;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private HttpServer server;
+
+    /**
+     * Constructor
+     *
+     * @param stats     totals of the service
+     * @param statuses  workers and their statistics
+     * @param freshness sampled freshness latencies, null if not measured
+     */
+    public MetricsEndpoint(WorkerStatsTable stats, Map<NumberWorker, WorkerStatus> statuses, FreshnessTracker freshness) {
+        this.stats = stats;
+        this.statuses = statuses;
+        this.freshness = freshness;
+    }
+
+    /**
+     * Start serving
+     *
+     * @param port port to listen on, 0 picks a free one
+     * @throws IOException if the port could not be bound
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        // the default executor is the server's own dispatcher thread
+        server.start();
+        LOG.info("Serving metrics at http://localhost:" + getPort() + PATH);
+    }
+
+    /**
+     * @return port the endpoint listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop serving
+     */
+    public void stop() {
+        if (server != null) server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return current metrics in the Prometheus text format
+     */
+    String render() {
+        StringBuilder b = new StringBuilder(4096);
+
+        metric(b, "numservice_sum", "gauge", "Sum of all received values");
+        b.append("numservice_sum ").append(stats.sum()).append('\n');
+        // the ingest rate is rate() of the counter, a rate kept here would depend on who scraped last
+        metric(b, "numservice_values_total", "counter", "Values received");
+        b.append("numservice_values_total ").append(stats.count()).append('\n');
+
+        int running = 0;
+        int connections = 0;
+        long stalls = 0;
+        long lost = 0;
+        for (NumberWorker w : statuses.keySet()) {
+            if (w.isRunning()) running++;
+            if (w.isConnected()) connections++;
+            FlowController fc = w.getFlowController();
+            if (fc != null) stalls += fc.getStalls();
+            lost += w.getSequenceTracker().getLost();
+        }
+        metric(b, "numservice_workers", "gauge", "Running workers");
+        b.append("numservice_workers ").append(running).append('\n');
+        metric(b, "numservice_worker_connections", "gauge", "Open worker stream connections");
+        b.append("numservice_worker_connections ").append(connections).append('\n');
+        metric(b, "numservice_flow_stalls_total", "counter", "Times the workers withheld flow control credits");
+        b.append("numservice_flow_stalls_total ").append(stalls).append('\n');
+        metric(b, "numservice_lost_datagrams_total", "counter", "Datagrams lost on the way to the workers");
+        b.append("numservice_lost_datagrams_total ").append(lost).append('\n');
+        metric(b, "numservice_threads", "gauge", "Live threads of the JVM");
+        b.append("numservice_threads ").append(threads.getThreadCount()).append('\n');
+
+        metric(b, "numservice_worker_sum", "gauge", "Sum of the values received by a worker");
+        for (Map.Entry<NumberWorker, WorkerStatus> e : statuses.entrySet()) {
+            worker(b, "numservice_worker_sum", e.getKey()).append(e.getValue().getSum()).append('\n');
+        }
+        metric(b, "numservice_worker_values_total", "counter", "Values received by a worker");
+        for (Map.Entry<NumberWorker, WorkerStatus> e : statuses.entrySet()) {
+            worker(b, "numservice_worker_values_total", e.getKey()).append(e.getValue().getCount()).append('\n');
+        }
+
+        if (freshness != null) {
+            FreshnessTracker.Histogram visible = freshness.getVisible();
+            metric(b, "numservice_freshness_seconds", "summary", "Sampled time from reading values until the queries see them");
+            quantile(b, "0.5", visible.percentile(0.5));
+            quantile(b, "0.99", visible.percentile(0.99));
+            quantile(b, "0.999", visible.percentile(0.999));
+            b.append("numservice_freshness_seconds_sum ").append(visible.getSum() / 1e9).append('\n');
+            b.append("numservice_freshness_seconds_count ").append(visible.getCount()).append('\n');
+        }
+        return b.toString();
+    }
+
+    private static void metric(StringBuilder b, String name, String type, String help) {
+        b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static StringBuilder worker(StringBuilder b, String name, NumberWorker w) {
+        return b.append(name).append("{worker=\"").append(w.getId()).append("\"} ");
+    }
+
+    private static void quantile(StringBuilder b, String quantile, long nanos) {
+        b.append("numservice_freshness_seconds{quantile=\"").append(quantile).append("\"} ")
+                .append(nanos / 1e9).append('\n');
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(MetricsEndpoint.class.getName());
+}
@@ -0,0 +1,255 @@
+package numservice;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Ingress for producers which can only open one connection
+ * <p>
+ * The single stream carries (tag, value) pairs where the tag is the 1-based
+ * index of a logical worker in port order. A decoder thread reads the stream
+ * and dispatches the pairs through single producer single consumer ring buffers
+ * to accumulator threads, each of which owns a disjoint shard of the worker statuses.
+ * Tag 0 ends the stream, a value 0 ends the logical worker's stream like
+ * {@link ControlMessage#TERMINATE_STREAM} and is not accumulated, nor is any
+ * value that arrives for the tag afterwards.
+ * With flow control every pair costs one credit. A capture records the values
+ * under their logical worker's id, so it replays against a service with a stream per worker.
+ *
+ * @author Samuel Lindqvist
+ */
+public class MultiplexIngress implements Runnable {
+
+    // entries per accumulator ring
+    public static final int RING_CAPACITY = 1 << 16;
+    // entries an accumulator drains at once
+    private static final int BATCH = 256;
+
+    // statuses of the logical workers, index = tag - 1
+    private final WorkerStatus[] statuses;
+    // logical workers whose stream has ended, only the decoder uses it
+    private final boolean[] ended;
+    // values dropped because their logical worker's stream had ended
+    private volatile long dropped;
+    // one ring and one accumulator per shard
+    private final SpscRingBuffer[] rings;
+    private final List<Thread> accumulators;
+
+    // network service object for the single ingress connection, created up front so close reaches it
+    private final NetworkCommunicationService netService;
+
+    // records received values if capturing is enabled, set after the thread has started
+    private volatile StreamCapture capture;
+    // ids of the logical workers to record the values under, index = tag - 1
+    private volatile int[] workerIds;
+
+    // credit window granted to the producer, 0 disables flow control
+    private int flowWindow;
+    // flow control of the stream, null if disabled
+    private volatile FlowController flowController;
+
+    // binded port, main thread polls
+    private AtomicInteger port;
+
+    // set when the decoder has dispatched the last pair
+    private AtomicBoolean decoderDone;
+    // running flag
+    private AtomicBoolean running;
+
+    /**
+     * Constructor
+     *
+     * @param statuses statuses of the logical workers in port order
+     * @param shards   number of accumulator threads
+     */
+    public MultiplexIngress(WorkerStatus[] statuses, int shards) {
+        this.statuses = statuses;
+        this.ended = new boolean[statuses.length];
+        this.rings = new SpscRingBuffer[Math.max(1, Math.min(shards, statuses.length))];
+        this.accumulators = new ArrayList<>();
+        this.port = new AtomicInteger(0);
+        this.decoderDone = new AtomicBoolean(false);
+        this.running = new AtomicBoolean(true);
+        this.netService = new NetworkCommunicationService();
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new SpscRingBuffer(RING_CAPACITY);
+        }
+        LOG.info("Multiplexed ingress for " + statuses.length + " workers on " + rings.length + " shards");
+    }
+
+    /**
+     * @return default shard count, one core is left for the decoder
+     */
+    public static int defaultShards() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Decoder thread body
+     * Accept the single connection, start the accumulators and dispatch pairs until the stream ends
+     */
+    @Override
+    public void run() {
+        try {
+            port.set(netService.initWorkerConnection(0).getLocalPort());
+            netService.establishWorkerConnection();
+        } catch (Exception e) {
+            LOG.warning("Multiplexed ingress could not establish connection: " + e.getMessage());
+            netService.closeConnection();
+            return;
+        }
+
+        if (flowWindow > 0) {
+            // everything read but not yet accumulated counts as queued
+            flowController = new FlowController(flowWindow, () -> queuedValues(), netService::sendTCPMessage);
+            flowController.start();
+        }
+
+        for (int i = 0; i < rings.length; i++) {
+            final int shard = i;
+            Thread t = new Thread(() -> accumulate(shard), "accumulator-" + shard);
+            accumulators.add(t);
+            t.start();
+        }
+
+        try {
+            while (running.get()) {
+                int tag = netService.listenToTCPMessage();
+                if (tag <= 0 || tag > statuses.length) {
+                    if (tag != 0) LOG.warning("Multiplexed ingress received invalid tag " + tag + ", closing");
+                    break;
+                }
+                int value = netService.listenToTCPMessage();
+                if (flowController != null) flowController.consumed(1);
+                int index = tag - 1;
+                if (ended[index]) {
+                    dropped++;
+                    continue;
+                }
+                // recorded per logical worker like the values of a worker's own stream
+                StreamCapture c = capture;
+                if (c != null) c.recordValue(workerIds[index], value);
+                if (value == TERMINATE) {
+                    ended[index] = true;
+                    continue;
+                }
+
+                SpscRingBuffer ring = rings[index % rings.length];
+                long entry = ((long) index << 32) | (value & 0xFFFFFFFFL);
+                // a full ring stops reading, which backs up into the socket
+                while (!ring.offer(entry)) {
+                    Thread.onSpinWait();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            LOG.warning("Multiplexed ingress timeout, closing");
+        } finally {
+            decoderDone.set(true);
+            for (Thread t : accumulators) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    LOG.warning("Interrupted while draining the accumulators");
+                }
+            }
+            if (flowController != null) flowController.logStats("Multiplexed ingress");
+            if (dropped > 0) LOG.warning("Multiplexed ingress dropped " + dropped + " values of ended workers");
+            netService.closeConnection();
+        }
+        LOG.info("Multiplexed ingress exiting");
+    }
+
+    /**
+     * Accumulator thread body, the only writer of the statuses of its shard
+     */
+    private void accumulate(int shard) {
+        SpscRingBuffer ring = rings[shard];
+        long[] batch = new long[BATCH];
+        int idle = 0;
+        while (true) {
+            int n = ring.poll(batch);
+            if (n == 0) {
+                if (decoderDone.get() && ring.size() == 0) break;
+                // spin briefly, then back off
+                if (++idle < 100) Thread.onSpinWait();
+                else LockSupport.parkNanos(50000);
+                continue;
+            }
+            idle = 0;
+            for (int i = 0; i < n; i++) {
+                statuses[(int) (batch[i] >>> 32)].addValue((int) batch[i]);
+            }
+        }
+    }
+
+    /**
+     * @return values received but not yet accumulated, in the socket and in the rings
+     */
+    private int queuedValues() {
+        // two ints per pair in the socket
+        int queued = netService.getQueuedBytes() / (2 * Integer.BYTES);
+        for (SpscRingBuffer ring : rings) {
+            queued += ring.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Enable credit based flow control, must be called before the thread is started
+     *
+     * @param window credits granted to the producer when the stream starts, 0 disables
+     */
+    public void setFlowWindow(int window) {
+        this.flowWindow = window;
+    }
+
+    /**
+     * @param capture   capture to record received values to, null to stop recording
+     * @param workerIds ids of the logical workers in port order
+     */
+    public void setCapture(StreamCapture capture, int[] workerIds) {
+        this.workerIds = workerIds;
+        this.capture = capture;
+    }
+
+    /**
+     * @return flow control of the stream, null if disabled or not yet connected
+     */
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * @return values dropped because they arrived after their logical worker's stream had ended
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return binded port, 0 if not set
+     */
+    public int getPort() {
+        return port.get();
+    }
+
+    /**
+     * Stop reading the stream, like a retired worker the connection is dropped
+     * so a decoder blocked in a read or waiting for the producer returns
+     */
+    public void close() {
+        running.set(false);
+        netService.closeConnection();
+    }
+
+    // end of a logical worker's stream
+    private static final int TERMINATE = ControlMessage.TERMINATE_STREAM.getValue();
+
+    // logger
+    private Logger LOG = Logger.getLogger(MultiplexIngress.class.getName());
+}
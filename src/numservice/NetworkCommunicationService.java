@@ -2,6 +2,15 @@ package numservice;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.logging.Logger;
 
 /**
@@ -9,7 +18,8 @@ import java.util.logging.Logger;
  * methods for creating, handling the connection and
  * sending and receiving messages
  * UDP for sending TCP port
- * TCP for general communication
+ * TCP for general communication, or unix domain sockets for same host clients,
+ * or in-memory loopback connections for clients in the same JVM
  *
  * @author Samuel Lindqvist
  */
@@ -19,20 +29,67 @@ public class NetworkCommunicationService {
     public static final int MIN_PORT = 1024;
     public static final int MAX_PORT = 65535;
 
-    // udp connection timeout in the beginning
+    // largest accepted block frame, in values
+    public static final int MAX_FRAME_LENGTH = 4096;
+
+    // receive timeout of a worker datagram socket, the worker checks its running flag in between
+    public static final int DATAGRAM_POLL_TIMEOUT = 500;
+
+    // udp connection timeout in the beginning, the offer is retransmitted for at most
+    // UDP_CONNECT_RETRIES * UDP_CONNECT_TIMEOUT, every UDP_CONNECT_TIMEOUT unless it was refused,
+    // and an acknowledged client gets UDP_CONNECT_TIMEOUT to connect
     public static final int UDP_CONNECT_RETRIES = 5;
     public static final int UDP_CONNECT_TIMEOUT = 5000;
+    // wait before retransmitting a refused offer, doubled for every retransmit up to the max,
+    // the polls for the acknowledgement and the connection after an offer back off alike
+    public static final int UDP_OFFER_INITIAL_BACKOFF = 5;
+    public static final int UDP_OFFER_MAX_BACKOFF = 500;
 
     // server client socket
     private ServerSocket serverSocket;
     // socket to client
     private Socket clientSocket;
 
+    // unix domain socket mode, directory of the socket files, null for TCP
+    private Path unixDirectory;
+    // unix domain server channel, its socket file and the accepted channel
+    private ServerSocketChannel unixServer;
+    private Path unixPath;
+    private SocketChannel unixChannel;
+    // accept timeout of the unix domain server channel, channels have no read timeout
+    private int unixTimeout;
+
+    // loopback mode, name of the control endpoint, null otherwise
+    private String loopbackName;
+    // bound loopback endpoint, the accepted connection and the accept timeout
+    private volatile Loopback.Endpoint loopbackEndpoint;
+    private Loopback.Connection loopbackConnection;
+    private int loopbackTimeout;
+    // set by closeConnection, an endpoint bound afterwards is closed at once
+    private volatile boolean closing;
+
     // TCP input stream
     private ObjectInputStream oIs;
+    // stream below the object input stream, for the queue depth
+    private InputStream rawIn;
     // TCP output stream
     private ObjectOutputStream oOs;
 
+    // set when the stream ended without an end of stream message, the client may reconnect
+    private boolean disconnected;
+
+    // reused buffer for reading block frames and its int view
+    private ByteBuffer frameBuffer;
+    private IntBuffer frameInts;
+
+    // worker datagram socket, reused packet and the sequence number of the last datagram
+    private DatagramSocket datagramSocket;
+    private DatagramPacket datagramPacket;
+    private int datagramSequence;
+
+    // single socket for all UDP offers of the handshake
+    private volatile DatagramSocket offerSocket;
+
     // client host name or address
     private InetAddress clientHost;
 
@@ -60,6 +117,32 @@ public class NetworkCommunicationService {
         LOG.info("Creating new worker Communications service object");
     }
 
+    /**
+     * Constructor for an already accepted connection
+     *
+     * @param socket connected socket
+     * @throws Exception if the streams could not be created
+     */
+    public NetworkCommunicationService(Socket socket) throws Exception {
+        clientSocket = socket;
+        getStreams();
+        LOG.info("Creating new Communications service object for " + socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Constructor for a connection over in-memory streams, used by tests
+     *
+     * @param in  stream from the peer, starting with an object stream header
+     * @param out stream to the peer
+     * @throws IOException if the object streams could not be created
+     */
+    NetworkCommunicationService(InputStream in, OutputStream out) throws IOException {
+        oOs = new ObjectOutputStream(out);
+        oOs.flush();
+        oIs = new ObjectInputStream(in);
+        rawIn = in;
+    }
+
     /**
      * Initiate the connection for the main service
      *
@@ -74,9 +157,9 @@ public class NetworkCommunicationService {
             return;
         }
 
-        // resolve client address
+        // resolve client address, a loopback client is found by the endpoint name
         try {
-            resolveHost();
+            if (loopbackName == null) resolveHost();
         } catch (Exception e) {
             throw new Exception("Could not resolve host");
         }
@@ -96,7 +179,7 @@ public class NetworkCommunicationService {
         }
 
         // check if connection is established
-        if (clientSocket == null) {
+        if (!hasClient()) {
             throw new Exception("Client did not connect in time");
         }
 
@@ -125,11 +208,77 @@ public class NetworkCommunicationService {
         } catch (Exception e) {
             throw new Exception("Could not bind a worker to a port");
         }
+        // a close from another thread may have run before the socket was bound
+        if (closing) {
+            serverSocket.close();
+            throw new SocketException("Closed while binding worker " + workerId);
+        }
 
         return serverSocket;
 
     }
 
+    /**
+     * Initialize a worker datagram socket for UDP ingestion
+     *
+     * @param workerId worker id for logging
+     * @return port the worker receives datagrams on
+     * @throws Exception if no port could be bound
+     */
+    public int initWorkerDatagramSocket(int workerId) throws Exception {
+        LOG.info("Initializing datagram socket for worker " + workerId);
+        try {
+            datagramSocket = NetworkUtils.createDatagramSocket(MIN_PORT, MAX_PORT);
+            datagramSocket.setSoTimeout(DATAGRAM_POLL_TIMEOUT);
+            LOG.info("Worker " + workerId + " binded to datagram port " + datagramSocket.getLocalPort());
+        } catch (Exception e) {
+            throw new Exception("Could not bind a worker to a datagram port");
+        }
+        byte[] data = new byte[Integer.BYTES * (MAX_FRAME_LENGTH + 1)];
+        datagramPacket = new DatagramPacket(data, data.length);
+        return datagramSocket.getLocalPort();
+    }
+
+    /**
+     * Listen to a datagram of an int sequence number followed by values
+     *
+     * @param values       destination of the values, at least MAX_FRAME_LENGTH long
+     * @param workerNumber worker id for logging
+     * @return number of values, 0 if nothing arrived within the poll timeout,
+     * -1 if a datagram without values ended the stream
+     */
+    public int listenToDatagram(int[] values, int workerNumber) {
+        try {
+            datagramPacket.setLength(datagramPacket.getData().length);
+            datagramSocket.receive(datagramPacket);
+        } catch (SocketTimeoutException e) {
+            return 0;
+        } catch (IOException e) {
+            if (!datagramSocket.isClosed()) {
+                LOG.warning("Worker " + workerNumber + ": Error receiving datagram: " + e.getMessage());
+            }
+            return -1;
+        }
+        int length = datagramPacket.getLength();
+        if (length < Integer.BYTES) {
+            // malformed, ignore
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(datagramPacket.getData(), 0, length);
+        datagramSequence = buffer.getInt();
+        int count = (length - Integer.BYTES) / Integer.BYTES;
+        if (count == 0) return -1;
+        buffer.asIntBuffer().get(values, 0, count);
+        return count;
+    }
+
+    /**
+     * @return sequence number of the last received datagram
+     */
+    public int getDatagramSequence() {
+        return datagramSequence;
+    }
+
     /**
      * Create a server socket and listen to a connection
      * Block until the client connects to the worker and then return
@@ -138,7 +287,13 @@ public class NetworkCommunicationService {
         LOG.info("Establishing worker connection");
 
         try {
-            clientSocket = serverSocket.accept();
+            if (unixServer != null) {
+                unixChannel = acceptUnix(unixTimeout);
+            } else if (loopbackEndpoint != null) {
+                loopbackConnection = loopbackEndpoint.accept(loopbackTimeout);
+            } else {
+                clientSocket = serverSocket.accept();
+            }
         } catch (SocketTimeoutException e) {
             throw new Exception("Client did not connect to worker in time");
         } catch (Exception e) {
@@ -152,13 +307,113 @@ public class NetworkCommunicationService {
         }
 
         // check if connection is established
-        if (clientSocket == null) {
+        if (!hasClient()) {
             throw new Exception("Client did not connect in time");
         }
 
         LOG.info("Worker connection established");
     }
 
+    /**
+     * Use unix domain sockets instead of TCP, must be called before the connection is initialized
+     *
+     * @param directory directory of the socket files
+     */
+    public void setUnixDirectory(Path directory) {
+        this.unixDirectory = directory;
+    }
+
+    /**
+     * Initialize the worker connection on a unix domain socket
+     *
+     * @param workerId worker id, part of the socket file name
+     * @return path of the socket file the client connects to
+     * @throws Exception if the socket could not be bound
+     */
+    public String initWorkerUnixConnection(int workerId) throws Exception {
+        LOG.info("Initializing unix domain socket for worker " + workerId);
+        try {
+            bindUnix("numservice-" + ProcessHandle.current().pid() + "-worker-" + workerId + ".sock");
+        } catch (IOException e) {
+            throw new Exception("Could not bind a worker to a unix domain socket");
+        }
+        // client connection timeout
+        unixTimeout = NumberService.QUERY_TIMEOUT;
+        LOG.info("Worker " + workerId + " binded to " + unixPath);
+        return unixPath.toString();
+    }
+
+    /**
+     * Use in-memory loopback connections instead of TCP, and no UDP offer,
+     * must be called before the connection is initialized
+     *
+     * @param name name of the endpoint the client connects to, see Loopback
+     */
+    public void setLoopbackName(String name) {
+        this.loopbackName = name;
+    }
+
+    /**
+     * Initialize the worker connection on a loopback endpoint
+     *
+     * @param workerId worker id, part of the endpoint name
+     * @return name of the endpoint the client connects to
+     * @throws Exception if the endpoint could not be bound
+     */
+    public String initWorkerLoopbackConnection(int workerId) throws Exception {
+        LOG.info("Initializing loopback endpoint for worker " + workerId);
+        try {
+            loopbackEndpoint = Loopback.bind("numservice-worker-" + workerId);
+        } catch (IOException e) {
+            throw new Exception("Could not bind a worker to a loopback endpoint");
+        }
+        // client connection timeout
+        loopbackTimeout = NumberService.QUERY_TIMEOUT;
+        LOG.info("Worker " + workerId + " binded to loopback endpoint " + loopbackEndpoint.getName());
+        return loopbackEndpoint.getName();
+    }
+
+    /**
+     * Bind a unix domain server channel, replacing a stale socket file
+     *
+     * @param name socket file name in the unix directory
+     */
+    private void bindUnix(String name) throws IOException {
+        unixPath = unixDirectory.resolve(name);
+        Files.deleteIfExists(unixPath);
+        unixServer = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        unixServer.bind(UnixDomainSocketAddress.of(unixPath));
+    }
+
+    /**
+     * Accept a unix domain connection, channels have no accept timeout so a selector waits
+     *
+     * @param timeout milliseconds to wait, 0 waits forever
+     * @return the connected channel in blocking mode
+     * @throws SocketTimeoutException if no client connected in time
+     */
+    private SocketChannel acceptUnix(int timeout) throws IOException {
+        unixServer.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            unixServer.register(selector, SelectionKey.OP_ACCEPT);
+            if (selector.select(timeout) == 0) {
+                throw new SocketTimeoutException("Accept timed out");
+            }
+        }
+        SocketChannel channel = unixServer.accept();
+        if (channel == null) {
+            throw new SocketTimeoutException("Accept timed out");
+        }
+        return channel;
+    }
+
+    /**
+     * @return true if a client has connected
+     */
+    private boolean hasClient() {
+        return clientSocket != null || unixChannel != null || loopbackConnection != null;
+    }
+
     /**
      * @return port which the server is listening to
      */
@@ -186,11 +441,25 @@ public class NetworkCommunicationService {
     private void getStreams() throws Exception {
         // get streams
         try {
-            InputStream iS = clientSocket.getInputStream();
-            OutputStream oS = clientSocket.getOutputStream();
+            InputStream iS;
+            OutputStream oS;
+            if (unixChannel != null) {
+                iS = new BufferedInputStream(Channels.newInputStream(unixChannel));
+                oS = Channels.newOutputStream(unixChannel);
+            } else if (loopbackConnection != null) {
+                iS = loopbackConnection.getInputStream();
+                oS = loopbackConnection.getOutputStream();
+            } else {
+                // replies are small and latency bound, an object stream flush is two writes
+                // and Nagle would hold the second one until the peer's delayed ack
+                clientSocket.setTcpNoDelay(true);
+                iS = clientSocket.getInputStream();
+                oS = clientSocket.getOutputStream();
+            }
             oS.flush();
             oOs = new ObjectOutputStream(oS);
             oIs = new ObjectInputStream(iS);
+            rawIn = iS;
         } catch (IOException e) {
             e.printStackTrace();
             throw new Exception("Can't create streams");
@@ -201,6 +470,14 @@ public class NetworkCommunicationService {
      * @param ms new timeout for the connection
      */
     public void setTimeout(int ms) {
+        if (unixServer != null) {
+            unixTimeout = ms;
+            return;
+        }
+        if (loopbackEndpoint != null) {
+            loopbackTimeout = ms;
+            return;
+        }
         try {
             serverSocket.setSoTimeout(ms);
         } catch (SocketException e) {
@@ -210,42 +487,145 @@ public class NetworkCommunicationService {
 
     /**
      * Listen to client connecting
+     *
+     * @throws Exception if no port, socket file or loopback endpoint could be bound
      */
-    private void establishConnection() {
+    private void establishConnection() throws Exception {
 
         LOG.info("Establishing connection");
 
-        // create TCP socket
+        // the loopback client connects by name, there is nothing to offer
+        if (loopbackName != null) {
+            loopbackEndpoint = Loopback.bind(loopbackName);
+            // a close from another thread may have run before the endpoint was bound
+            if (closing) {
+                loopbackEndpoint.close();
+                throw new SocketException("Closed while binding loopback endpoint " + loopbackName);
+            }
+            try {
+                loopbackConnection = loopbackEndpoint.accept(UDP_CONNECT_RETRIES * UDP_CONNECT_TIMEOUT);
+                LOG.info("Client connected to loopback endpoint " + loopbackName);
+            } catch (IOException e) {
+                LOG.warning("No client connected to loopback endpoint " + loopbackName + ": " + e.getMessage());
+            }
+            return;
+        }
+
+        // create TCP socket, or unix domain socket
         try {
-            serverSocket = NetworkUtils.createServerSocket(MIN_PORT, MAX_PORT);
-            // client connection timeout
-            serverSocket.setSoTimeout(UDP_CONNECT_TIMEOUT);
+            if (unixDirectory != null) {
+                bindUnix("numservice-" + ProcessHandle.current().pid() + ".sock");
+            } else {
+                serverSocket = NetworkUtils.createServerSocket(MIN_PORT, MAX_PORT);
+            }
         } catch (Exception e) {
-            LOG.warning("Could not bind a port, exiting");
-            System.exit(0);
+            LOG.warning("Could not bind a port");
+            throw e;
+        }
+        // a close from another thread may have run before the socket was bound
+        if (closing) {
+            closeConnection();
+            throw new SocketException("Closed while binding");
         }
 
-        int tries = 0;
-        while (tries < UDP_CONNECT_RETRIES) {
-            LOG.info("Sending UDP, waiting for TCP.. " + (tries + 1) + "/" + UDP_CONNECT_RETRIES);
-            try {
+        // retransmit the offer with exponential backoff while the client port is unreachable,
+        // no one received it then. An offer which was not refused may have reached a client
+        // which does not acknowledge and serves every offer it receives, it is retransmitted
+        // only every UDP_CONNECT_TIMEOUT as before acknowledgements existed
+        long deadline = System.currentTimeMillis() + (long) UDP_CONNECT_RETRIES * UDP_CONNECT_TIMEOUT;
+        int backoff = UDP_OFFER_INITIAL_BACKOFF;
+        int offers = 0;
+        try {
+            offerSocket = new DatagramSocket();
+            // connected, so the port unreachable reply of an unbound client port is reported
+            offerSocket.connect(clientHost, clientUDPPort);
+            boolean done = false;
+            // a close from another thread ends the offers at once
+            while (!done && !closing && System.currentTimeMillis() < deadline) {
                 // send the client an udp packet containing the tcp port to connect
-                sendPort();
-                // listen to connection to tcp port
-                clientSocket = serverSocket.accept();
-                LOG.info("Client " + clientSocket.getInetAddress().toString() +
-                        " connected to port " + serverSocket.getLocalPort());
-                break;
+                long nextOffer = System.currentTimeMillis() + UDP_CONNECT_TIMEOUT;
+                try {
+                    sendPort();
+                } catch (PortUnreachableException e) {
+                    // refusal of an earlier offer, this one went out
+                }
+                offers++;
+                int poll = UDP_OFFER_INITIAL_BACKOFF;
+                while (!done && !closing && System.currentTimeMillis() < nextOffer) {
+                    int wait = (int) Math.max(1, Math.min(poll, nextOffer - System.currentTimeMillis()));
+                    boolean acknowledged = false;
+                    try {
+                        acknowledged = awaitOfferAck(wait);
+                    } catch (PortUnreachableException e) {
+                        // the client is not listening yet
+                        nextOffer = Math.min(nextOffer, System.currentTimeMillis() + backoff);
+                        backoff = Math.min(backoff * 2, UDP_OFFER_MAX_BACKOFF);
+                    }
+                    try {
+                        // listen to connection to tcp port, acknowledged clients get the full timeout
+                        acceptClient(acknowledged ? UDP_CONNECT_TIMEOUT : 1);
+                        done = true;
+                    } catch (SocketTimeoutException e) {
+                        if (acknowledged) {
+                            LOG.info("Client acknowledged but did not connect");
+                            done = true;
+                        }
+                    }
+                    poll = Math.min(poll * 2, UDP_OFFER_MAX_BACKOFF);
+                }
+            }
+        } catch (Exception e) {
+            if (!closing) e.printStackTrace();
+        } finally {
+            if (offerSocket != null) offerSocket.close();
+        }
+        LOG.info("Sent " + offers + " UDP offers");
+    }
+
+    /**
+     * Wait for the client to acknowledge the UDP offer
+     *
+     * @param timeout milliseconds to wait
+     * @return true if the client acknowledged
+     * @throws PortUnreachableException if the client port refused the offer
+     */
+    private boolean awaitOfferAck(int timeout) throws IOException {
+        byte[] data = new byte[16];
+        DatagramPacket ack = new DatagramPacket(data, data.length);
+        offerSocket.setSoTimeout(timeout);
+        long end = System.currentTimeMillis() + timeout;
+        while (true) {
+            try {
+                offerSocket.receive(ack);
             } catch (SocketTimeoutException e) {
-                // send udp packet again
-                tries++;
-                LOG.info("Timeout...");
-                continue;
-            } catch (Exception e) {
-                e.printStackTrace();
-                break;
+                return false;
             }
+            if (ack.getAddress().equals(clientHost)) {
+                return true;
+            }
+            // someone else, keep waiting for the rest of the timeout
+            int left = (int) (end - System.currentTimeMillis());
+            if (left <= 0) return false;
+            offerSocket.setSoTimeout(left);
+        }
+    }
+
+    /**
+     * Accept the client connection of the main service
+     *
+     * @param timeout milliseconds to wait
+     * @throws SocketTimeoutException if the client did not connect in time
+     */
+    private void acceptClient(int timeout) throws IOException {
+        if (unixServer != null) {
+            unixChannel = acceptUnix(timeout);
+            LOG.info("Client connected to " + unixPath);
+            return;
         }
+        serverSocket.setSoTimeout(timeout);
+        clientSocket = serverSocket.accept();
+        LOG.info("Client " + clientSocket.getInetAddress().toString() +
+                " connected to port " + serverSocket.getLocalPort());
     }
 
     /**
@@ -255,15 +635,17 @@ public class NetworkCommunicationService {
      * @throws SocketTimeoutException if connection timeouts
      */
     public int listenToTCPMessage(int workerNumber) throws SocketTimeoutException {
-        String workerName = workerNumber == -1 ? "Main thread" : "Worker " + workerNumber;
         try {
             int msg = oIs.readInt();
 //            System.out.println("Received message: " + msg);
             return msg;
         } catch (EOFException e) {
+            disconnected = true;
         } catch (IOException e) {
             e.printStackTrace();
+            String workerName = workerNumber == -1 ? "Main thread" : "Worker " + workerNumber;
             LOG.warning(workerName + ": Error receiving TCP message: " + e.getCause());
+            disconnected = true;
         }
         // close connection
         return 0;
@@ -273,6 +655,138 @@ public class NetworkCommunicationService {
         return listenToTCPMessage(-1);
     }
 
+    /**
+     * Listen to a block frame from client, an int length followed by that many ints
+     *
+     * @param frame        destination of the values, at least MAX_FRAME_LENGTH long
+     * @param workerNumber worker id for logging
+     * @return number of values in the frame, 0 at the end of the stream
+     * @throws SocketTimeoutException if connection timeouts
+     */
+    public int listenToTCPFrame(int[] frame, int workerNumber) throws SocketTimeoutException {
+        int length = listenToTCPMessage(workerNumber);
+        if (length <= 0) return 0;
+        if (length > MAX_FRAME_LENGTH) {
+            LOG.warning("Worker " + workerNumber + ": Frame of " + length + " values is too long");
+            return 0;
+        }
+        if (frameBuffer == null) {
+            frameBuffer = ByteBuffer.allocate(MAX_FRAME_LENGTH * Integer.BYTES);
+            frameInts = frameBuffer.asIntBuffer();
+        }
+        try {
+            // one bulk read, then a bulk big endian conversion
+            oIs.readFully(frameBuffer.array(), 0, length * Integer.BYTES);
+            frameInts.clear();
+            frameInts.get(frame, 0, length);
+            return length;
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (EOFException e) {
+            disconnected = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            LOG.warning("Worker " + workerNumber + ": Error receiving TCP frame: " + e.getCause());
+            disconnected = true;
+        }
+        return 0;
+    }
+
+    /**
+     * Listen to a byte frame from client, an int byte length followed by that many bytes
+     *
+     * @param frame        destination of the bytes, frames longer than it are rejected
+     * @param workerNumber worker id for logging
+     * @return number of bytes in the frame, 0 at the end of the stream
+     * @throws SocketTimeoutException if connection timeouts
+     */
+    public int listenToTCPBytes(byte[] frame, int workerNumber) throws SocketTimeoutException {
+        int length = listenToTCPMessage(workerNumber);
+        if (length <= 0) return 0;
+        if (length > frame.length) {
+            LOG.warning("Worker " + workerNumber + ": Frame of " + length + " bytes is too long");
+            return 0;
+        }
+        try {
+            oIs.readFully(frame, 0, length);
+            return length;
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (EOFException e) {
+            disconnected = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            LOG.warning("Worker " + workerNumber + ": Error receiving TCP frame: " + e.getCause());
+            disconnected = true;
+        }
+        return 0;
+    }
+
+    /**
+     * Listen to a long value from client
+     *
+     * @param workerNumber worker id for logging
+     * @return the received value, -1 if the connection was lost
+     */
+    public long listenToTCPLong(int workerNumber) {
+        try {
+            return oIs.readLong();
+        } catch (EOFException e) {
+        } catch (IOException e) {
+            LOG.warning("Worker " + workerNumber + ": Error receiving TCP message: " + e.getMessage());
+        }
+        disconnected = true;
+        return -1;
+    }
+
+    /**
+     * @return true if the last read failed because the client went away
+     * instead of ending the stream
+     */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    /**
+     * Drop the lost client connection and accept a new one on the same port or socket file
+     *
+     * @param timeout milliseconds to wait for the client
+     * @throws Exception if the client did not reconnect in time
+     */
+    public void awaitReconnect(int timeout) throws Exception {
+        try {
+            if (clientSocket != null) clientSocket.close();
+            if (unixChannel != null) unixChannel.close();
+            if (loopbackConnection != null) loopbackConnection.close();
+        } catch (IOException e) {
+            LOG.warning("Failed closing the lost connection");
+        }
+        clientSocket = null;
+        unixChannel = null;
+        loopbackConnection = null;
+        disconnected = false;
+        setTimeout(timeout);
+        establishWorkerConnection();
+    }
+
+    /**
+     * Number of received bytes waiting to be read, call on the thread reading the stream
+     * The object stream reports its buffered bytes and the rest of the current data block
+     * which has arrived, the bytes below it are added, so the rest of the block may be
+     * counted twice, at most one block of 1024 bytes.
+     * The bytes a value takes depend on the stream format, the reader converts.
+     *
+     * @return bytes in the object stream's buffer and below it, 0 if unknown
+     */
+    public int getQueuedBytes() {
+        if (oIs == null || rawIn == null) return 0;
+        try {
+            return oIs.available() + rawIn.available();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
     /**
      * Send and integer value over TCP socket
      *
@@ -290,19 +804,94 @@ public class NetworkCommunicationService {
     }
 
     /**
-     * Send the TCP port to the client
+     * Send several integer values over TCP socket with a single flush
+     *
+     * @param values the integer values to be sent
+     */
+    public void sendTCPMessages(int[] values) {
+        try {
+            for (int value : values) {
+                oOs.writeInt(value);
+            }
+            oOs.flush();
+        } catch (IOException e) {
+            LOG.warning("Error sending TCP message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send a string over TCP socket
+     *
+     * @param value the string to be sent
+     */
+    public void sendTCPString(String value) {
+        try {
+            oOs.writeUTF(value);
+            oOs.flush();
+        } catch (IOException e) {
+            LOG.warning("Error sending TCP message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send a long value over TCP socket
+     *
+     * @param value the long value to be sent
+     */
+    public void sendTCPLong(long value) {
+        try {
+            oOs.writeLong(value);
+            oOs.flush();
+        } catch (IOException e) {
+            LOG.warning("Error sending TCP message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send several long values over TCP socket with a single flush
+     *
+     * @param values the long values to be sent
+     */
+    public void sendTCPLongs(long[] values) {
+        try {
+            for (long value : values) {
+                oOs.writeLong(value);
+            }
+            oOs.flush();
+        } catch (IOException e) {
+            LOG.warning("Error sending TCP message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send several strings over TCP socket with a single flush
+     *
+     * @param values the strings to be sent
+     */
+    public void sendTCPStrings(String[] values) {
+        try {
+            for (String value : values) {
+                oOs.writeUTF(value);
+            }
+            oOs.flush();
+        } catch (IOException e) {
+            LOG.warning("Error sending TCP message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send the TCP port, or the unix domain socket file, to the client
      * using UDP datagram packets
      */
     private void sendPort() throws Exception {
         // message, tcp port
-        byte[] udpData = Integer.toString(serverSocket.getLocalPort()).getBytes();
-        DatagramSocket udpSocket = new DatagramSocket();
+        String offer = unixServer != null ? unixPath.toString() : Integer.toString(serverSocket.getLocalPort());
+        byte[] udpData = offer.getBytes();
         DatagramPacket packet = new DatagramPacket(udpData,
                 udpData.length,
                 clientHost,
                 clientUDPPort);
-        udpSocket.send(packet);
-        LOG.info("Sent UDP datagram");
+        offerSocket.send(packet);
     }
 
     /**
@@ -310,9 +899,19 @@ public class NetworkCommunicationService {
      * gracefully
      */
     public void closeConnection() {
+        closing = true;
         try {
+            if (offerSocket != null) offerSocket.close();
             if (serverSocket != null) serverSocket.close();
+            if (datagramSocket != null) datagramSocket.close();
             if (clientSocket != null) clientSocket.close();
+            if (unixChannel != null) unixChannel.close();
+            if (unixServer != null) {
+                unixServer.close();
+                Files.deleteIfExists(unixPath);
+            }
+            if (loopbackConnection != null) loopbackConnection.close();
+            if (loopbackEndpoint != null) loopbackEndpoint.close();
             if (oIs != null) oIs.close();
             if (oOs != null) oOs.close();
         } catch (IOException e) {
@@ -325,7 +924,9 @@ public class NetworkCommunicationService {
      * @return true if the TCP socket is connected to client
      */
     public boolean isConnected() {
-        return clientSocket.isConnected();
+        if (unixChannel != null) return unixChannel.isConnected();
+        if (loopbackConnection != null) return !loopbackConnection.isClosed();
+        return clientSocket != null && clientSocket.isConnected();
     }
 
     // logger
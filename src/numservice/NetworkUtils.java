@@ -1,6 +1,7 @@
 package numservice;
 
 import java.io.IOException;
+import java.net.DatagramSocket;
 import java.net.ServerSocket;
 
 /**
@@ -28,4 +29,22 @@ public class NetworkUtils {
         throw new Exception("No free port found to be bound");
     }
 
+    /**
+     * Find an open port from the given range and open a new datagram socket
+     *
+     * @param minPort min port
+     * @param maxPort max port
+     * @return DatagramSocket object
+     */
+    public static DatagramSocket createDatagramSocket(int minPort, int maxPort) throws Exception {
+        for (int i = minPort; i < maxPort; i++) {
+            try {
+                return new DatagramSocket(i);
+            } catch (IOException e) {
+                continue;
+            }
+        }
+        throw new Exception("No free port found to be bound");
+    }
+
 }
@@ -1,7 +1,14 @@
 package numservice;
 
+import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
@@ -10,6 +17,15 @@ import java.util.logging.Logger;
  * Main class
  * <p>
  * Provides number summing services for a remote server
+ * <p>
+ * Run by main, or embedded into another application with start, stop and await,
+ * the service never exits the JVM itself.
+ * <p>
+ * Queries are answered on the main thread from the workers' atomics, over sockets with
+ * TCP_NODELAY and before the answer is logged, so ingest does not delay them.
+ * The main thread also runs at QUERY_PRIORITY and the ingest threads at INGEST_PRIORITY.
+ * The priorities are best effort: on Linux the JVM ignores them unless it was started
+ * with -XX:ThreadPriorityPolicy=1, which needs root.
  *
  * @author Samuel Lindqvist
  */
@@ -20,16 +36,126 @@ public class NumberService {
     // worker constraints
     public static final int MAX_WORKERS = 10;
     public static final int MIN_WORKERS = 2;
+    // the bits of the initial message above it request a stream format by id,
+    // the bits below it are the worker count
+    public static final int FORMAT_REQUEST_SHIFT = 16;
+    // bit of the initial message set by producers which read flow control grants,
+    // grants are only sent to them, a producer which never reads them would block the worker
+    public static final int CREDITS_REQUEST = 1 << 30;
     // server UDP connection port
     public static final int UDP_CLIENT_PORT = 3126;
+    // thread priorities of the query lane and of the ingest threads, best effort hints
+    // which most platforms ignore, see the class documentation
+    public static final int QUERY_PRIORITY = Thread.MAX_PRIORITY;
+    public static final int INGEST_PRIORITY = Thread.NORM_PRIORITY - 2;
+
+    // system properties enabling checkpointing to a file and setting its interval
+    public static final String CHECKPOINT_PROPERTY = "numservice.checkpoint";
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "numservice.checkpointInterval";
+    // system property enabling stream capture to a file
+    public static final String CAPTURE_PROPERTY = "numservice.capture";
+    // system properties making this service a node of a multi-node deployment,
+    // the node id is in 0..NumberWorker.MAX_NODE_ID
+    public static final String NODE_ID_PROPERTY = "numservice.nodeId";
+    public static final String COORDINATOR_PROPERTY = "numservice.coordinator";
+    // system properties selecting the single connection multiplexed ingress and its shard count
+    public static final String INGRESS_PROPERTY = "numservice.ingress";
+    public static final String MULTIPLEX_INGRESS = "multiplex";
+    public static final String SHARDS_PROPERTY = "numservice.shards";
+    // system property selecting the worker stream format, see StreamFormat
+    public static final String FORMAT_PROPERTY = "numservice.format";
+    // system property enabling credit based flow control with the given window,
+    // for clients which set CREDITS_REQUEST
+    public static final String CREDITS_PROPERTY = "numservice.credits";
+    // system property selecting the worker transport, see IngestTransport
+    public static final String TRANSPORT_PROPERTY = "numservice.transport";
+    // system property setting the directory of the ring buffer and unix domain socket files
+    public static final String ENDPOINT_DIR_PROPERTY = "numservice.endpointDir";
+    // system property letting producers resume lost worker streams within the given milliseconds
+    public static final String RESUME_PROPERTY = "numservice.resume";
+    // system property sampling one in the given number of worker reads for the freshness latency, 0 disables it
+    public static final String FRESHNESS_PROPERTY = "numservice.freshness";
+    // system property setting the minimum milliseconds between two pushed aggregate updates
+    public static final String SUBSCRIBE_INTERVAL_PROPERTY = "numservice.subscribeInterval";
+    // system property serving the statistics over HTTP on the given port, see MetricsEndpoint
+    public static final String METRICS_PORT_PROPERTY = "numservice.metricsPort";
+    // system property retaining the given number of most recent values of every worker for range queries
+    public static final String RETENTION_PROPERTY = "numservice.retention";
+    // system property setting the number of warm workers kept bound ahead of the sessions,
+    // at most MAX_WORKERS, off by default since every pooled worker holds a thread and an endpoint
+    public static final String POOL_PROPERTY = "numservice.pool";
 
-    // service for the client server communication
-    private NetworkCommunicationService netService;
+    // service for the client server communication, closed by stop from another thread
+    private volatile NetworkCommunicationService netService;
 
-    // worker targets
+    // worker targets, retired workers stay for their totals
+    // workers are added and retired while other threads iterate them
     private Map<NumberWorker, WorkerStatus> workerStatuses;
     private List<Thread> threadList;
+    // the statuses' storage, swept by the queries
+    private WorkerStatsTable stats;
+
+    // shared timeouts of the session and the workers
+    private TimingWheel timers;
+    // closes the session when neither queries nor values arrive
+    private TimingWheel.Watch sessionWatch;
+    // number of handled queries
+    private volatile long queries;
+
+    // identity of the current session, carried over from a restored checkpoint
+    private long sessionId;
+    // nanoseconds from init until the worker ports were sent
+    private long timeToReady;
+
+    // checkpoint file, null if checkpointing is disabled
+    private Path checkpointFile;
+    // latest snapshot read at startup, null if none
+    private Checkpointer.Checkpoint restored;
+    // background checkpoint writer and its thread
+    private Checkpointer checkpointer;
+    private Thread checkpointThread;
+
+    // records worker streams and queries, null if capturing is disabled
+    private StreamCapture capture;
+
+    // pushes partial aggregates to the coordinator, null if not a node
+    private AggregatePublisher publisher;
+    private Thread publisherThread;
+
+    // single connection ingress, null unless multiplexed ingress is selected
+    private MultiplexIngress ingress;
 
+    // encoding of the values on the worker streams
+    private StreamFormat format;
+    // whether the client requested a format and expects the negotiated one in the reply
+    private boolean formatRequested;
+    // whether the client reads grants and expects the flow control window in the reply
+    private boolean creditsRequested;
+    // flow control window of the worker streams, 0 if disabled
+    private int flowWindow;
+    // transport of the worker streams
+    private IngestTransport transport;
+    // ring buffer or unix domain socket files of the workers in port order
+    private String[] endpointPaths;
+    // milliseconds a worker waits for its lost producer, 0 if resumption is disabled
+    private int resumeTimeout;
+    // session token followed by the resume tokens of the workers in port order
+    private long[] resumeTokens;
+    // warm workers of the stream transports, null if disabled
+    private WorkerPool pool;
+    // sampled latency until received values are visible, null if not measured
+    private FreshnessTracker freshness;
+    // pushes aggregate updates to the client, null unless subscribed
+    private AggregateSubscription subscription;
+    // serves the statistics over HTTP, null if disabled
+    private MetricsEndpoint metrics;
+
+    // counted down once the session has closed
+    private final CountDownLatch closed = new CountDownLatch(1);
+    // set by stop, the workers are retired instead of waiting for their producers
+    private volatile boolean stopping;
+    // 0 if the session closed normally or was stopped, 1 on error
+    private volatile int exitStatus;
 
     /**
      * Application entry point
@@ -52,7 +178,9 @@ public class NumberService {
 
         // if no argument is specified, use localhost as client
         String client = args.length > 0 ? args[0] : "localhost";
-        new NumberService().init(client);
+        NumberService service = new NumberService();
+        service.init(client);
+        System.exit(service.getExitStatus());
     }
 
     /**
@@ -60,46 +188,256 @@ public class NumberService {
      */
     public NumberService() {
         // init empty map
-        workerStatuses = new HashMap<>();
-        threadList = new ArrayList<>();
+        workerStatuses = new ConcurrentHashMap<>();
+        stats = new WorkerStatsTable();
+        threadList = new CopyOnWriteArrayList<>();
+        sessionId = new Random().nextLong();
+        timers = TimingWheel.start("timing-wheel");
+        String checkpoint = System.getProperty(CHECKPOINT_PROPERTY);
+        checkpointFile = checkpoint != null ? Paths.get(checkpoint) : null;
+        NumberWorker.setNodeId(Integer.getInteger(NODE_ID_PROPERTY, 0));
+        flowWindow = Integer.getInteger(CREDITS_PROPERTY, 0);
+        transport = IngestTransport.valueOf(System.getProperty(TRANSPORT_PROPERTY, IngestTransport.TCP.name()).toUpperCase());
+        format = StreamFormat.valueOf(System.getProperty(FORMAT_PROPERTY, StreamFormat.INT.name()).toUpperCase());
+        resumeTimeout = Integer.getInteger(RESUME_PROPERTY, 0);
+        if (resumeTimeout > 0 && (transport == IngestTransport.UDP || transport == IngestTransport.SHARED_MEMORY
+                || MULTIPLEX_INGRESS.equals(System.getProperty(INGRESS_PROPERTY)))) {
+            LOG.warning("Resumption needs a stream per worker, disabled for " + transport + " transport");
+            resumeTimeout = 0;
+        }
+        if (resumeTimeout > 0 && flowWindow > 0) {
+            // acknowledgements and credits would share the return channel
+            LOG.warning("Flow control is disabled on resumable streams");
+            flowWindow = 0;
+        }
+        int sampleInterval = Integer.getInteger(FRESHNESS_PROPERTY, 0);
+        freshness = sampleInterval > 0 ? new FreshnessTracker(sampleInterval) : null;
+        int poolSize = Math.min(Integer.getInteger(POOL_PROPERTY, 0), MAX_WORKERS);
+        if (poolSize > 0 && (transport == IngestTransport.TCP || transport == IngestTransport.UNIX
+                || transport == IngestTransport.LOOPBACK)
+                && !MULTIPLEX_INGRESS.equals(System.getProperty(INGRESS_PROPERTY))) {
+            // fills while the client is found and the handshake runs
+            pool = WorkerPool.start(poolSize, transport);
+        }
         LOG.info("Initializing new service server object");
     }
 
     /**
-     * Initialize and start the service
+     * Run the service on a thread of its own, for embedding it into another application
+     * Returns at once, the session runs until the client closes it or stop is called.
+     *
+     * @param client client host, or with the LOOPBACK transport the name of the loopback
+     *               endpoint the client connects to
+     */
+    public void start(String client) {
+        new Thread(() -> init(client), "number-service").start();
+    }
+
+    /**
+     * Close the session from another thread, the connections of the client and the
+     * workers are dropped with the values still in flight, the aggregates stay readable
+     * Returns at once, see await.
+     */
+    public void stop() {
+        stopping = true;
+        NetworkCommunicationService n = netService;
+        // unblocks the handshake or the query loop, which then close the session
+        if (n != null) n.closeConnection();
+    }
+
+    /**
+     * Wait until the session has closed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        closed.await();
+    }
+
+    /**
+     * Wait until the session has closed
+     *
+     * @param timeout time to wait
+     * @param unit    unit of the timeout
+     * @return true if the session closed, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return closed.await(timeout, unit);
+    }
+
+    /**
+     * @return 0 if the session closed normally or was stopped, 1 if it failed
+     */
+    public int getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * Initialize and start the service, returns once the session has closed
      */
     public void init(String client) {
+        long start = System.nanoTime();
+
+        // restore worker aggregates before any worker is created
+        restoreCheckpoint();
+
+        // scrapeable while the session starts
+        startMetrics();
+
         netService = new NetworkCommunicationService(client, UDP_CLIENT_PORT);
+        if (transport == IngestTransport.UNIX) {
+            // the UDP offer then carries the socket file instead of a port
+            netService.setUnixDirectory(getEndpointDirectory());
+        } else if (transport == IngestTransport.LOOPBACK) {
+            // no UDP offer, the client connects to the endpoint by name
+            netService.setLoopbackName(client);
+        }
         try {
+            // stop may have missed the service above
+            if (stopping) throw new Exception("Stopped");
             netService.initServiceConnection();
         } catch (Exception e) {
-            e.printStackTrace();
+            if (!stopping) e.printStackTrace();
             exit();
+            return;
         }
 
         // create workers
-        int[] wPorts = createWorkers(getWorkerCount());
+        int count = getWorkerCount();
+        if (stopping || closed.getCount() == 0) {
+            closeConnection();
+            return;
+        }
+        int[] wPorts = createWorkers(count);
 
         // send worker ports to client
         sendWorkerPorts(wPorts);
+        timeToReady = System.nanoTime() - start;
+        LOG.info("Session ready in " + timeToReady / 1000 + " us");
+
+        // snapshot worker state in the background
+        startCheckpointer();
+
+        // push aggregates to the coordinator in the background
+        startPublisher();
 
         // listen to queries from client while workers are running
         listenToQueries();
     }
 
     /**
-     * Send client the ports of the created workers
+     * Serve the statistics over HTTP, if a metrics port is given
+     */
+    private void startMetrics() {
+        Integer port = Integer.getInteger(METRICS_PORT_PROPERTY);
+        if (port == null) return;
+        metrics = new MetricsEndpoint(stats, workerStatuses, freshness);
+        try {
+            metrics.start(port);
+        } catch (IOException e) {
+            LOG.warning("Could not serve metrics on port " + port + ": " + e.getMessage());
+            metrics = null;
+        }
+    }
+
+    /**
+     * Read the latest checkpoint, if checkpointing is enabled and one exists
+     */
+    private void restoreCheckpoint() {
+        if (checkpointFile == null) return;
+        long start = System.nanoTime();
+        try {
+            restored = Checkpointer.restore(checkpointFile);
+        } catch (Exception e) {
+            LOG.warning("Ignoring checkpoint: " + e.getMessage());
+            return;
+        }
+        if (restored == null) {
+            LOG.info("No checkpoint found at " + checkpointFile);
+            return;
+        }
+        sessionId = restored.getSessionId();
+        LOG.info("Restored session " + sessionId + " with " + restored.getWorkerCount() +
+                " workers from " + new Date(restored.getTimestamp()) + " in " +
+                (System.nanoTime() - start) / 1000 + " us");
+    }
+
+    /**
+     * Start the background checkpoint writer, if checkpointing is enabled
+     */
+    private void startCheckpointer() {
+        if (checkpointFile == null) return;
+        int interval = Integer.getInteger(CHECKPOINT_INTERVAL_PROPERTY, Checkpointer.CHECKPOINT_INTERVAL);
+        checkpointer = new Checkpointer(checkpointFile, sessionId, workerStatuses, interval);
+        checkpointThread = new Thread(checkpointer, "checkpointer");
+        checkpointThread.setDaemon(true);
+        checkpointThread.start();
+    }
+
+    /**
+     * Start pushing partial aggregates, if this service is a node of a multi-node deployment
+     */
+    private void startPublisher() {
+        String coordinator = System.getProperty(COORDINATOR_PROPERTY);
+        if (coordinator == null) return;
+        publisher = new AggregatePublisher(coordinator, Integer.getInteger(NODE_ID_PROPERTY, 0),
+                workerStatuses, AggregatePublisher.PUBLISH_INTERVAL);
+        publisher.setFreshness(freshness);
+        publisherThread = new Thread(publisher, "aggregate-publisher");
+        publisherThread.setDaemon(true);
+        publisherThread.start();
+    }
+
+    /**
+     * @return true if the workers are reached through files instead of ports
+     */
+    private boolean usesEndpointPaths() {
+        return ingress == null && (transport == IngestTransport.SHARED_MEMORY
+                || transport == IngestTransport.UNIX || transport == IngestTransport.LOOPBACK);
+    }
+
+    /**
+     * @return directory of the ring buffer and unix domain socket files
+     */
+    public static Path getEndpointDirectory() {
+        // a tmpfs directory such as /dev/shm keeps ring buffer pages out of the disk writeback
+        return Paths.get(System.getProperty(ENDPOINT_DIR_PROPERTY, System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Send client the ports of the created workers,
+     * or the ring buffer or unix domain socket files as UTF strings
+     * If the client requested a format they are followed by the id of the negotiated format.
+     * If the client reads grants they are followed by the window, 0 if flow control is off.
+     * If resumption is enabled they are followed by the session token
+     * and the resume tokens of the workers as longs
      */
     private void sendWorkerPorts(int[] ports) {
-        LOG.info("Sending worker ports to client");
-        Arrays.stream(ports).forEach((p) -> {
-            netService.sendTCPMessage(p);
-        });
+        // all of them in one message
+        if (usesEndpointPaths()) {
+            LOG.info("Sending worker files to client");
+            netService.sendTCPStrings(endpointPaths);
+        } else {
+            LOG.info("Sending worker ports to client");
+            netService.sendTCPMessages(ports);
+        }
+        if (formatRequested) {
+            netService.sendTCPMessage(format.getId());
+        }
+        if (creditsRequested) {
+            netService.sendTCPMessage(flowWindow);
+        }
+        if (resumeTokens != null) {
+            LOG.info("Sending resume tokens to client");
+            netService.sendTCPLongs(resumeTokens);
+        }
     }
 
     /**
      * Receive to initial message from client
-     * Which encloses the worker count
+     * Which encloses the worker count, optionally a requested stream format
+     * and whether the client reads flow control grants
      */
     public int getWorkerCount() {
         // listen to the initial message from client
@@ -112,6 +450,17 @@ public class NumberService {
             LOG.warning("Failed to receive the initial message from client, exiting");
             exit();
         }
+        creditsRequested = (numWorkers & CREDITS_REQUEST) != 0;
+        numWorkers &= ~CREDITS_REQUEST;
+        if (!creditsRequested && flowWindow > 0) {
+            LOG.warning("Client does not read flow control grants, flow control is disabled");
+            flowWindow = 0;
+        }
+        int requested = numWorkers >>> FORMAT_REQUEST_SHIFT;
+        if (requested != 0) {
+            numWorkers &= (1 << FORMAT_REQUEST_SHIFT) - 1;
+            negotiateFormat(requested);
+        }
 
         // check validness
         if (!(numWorkers >= MIN_WORKERS) && (numWorkers <= MAX_WORKERS)) {
@@ -123,6 +472,28 @@ public class NumberService {
         return numWorkers;
     }
 
+    /**
+     * Use the stream format requested by the client if the worker streams support it,
+     * otherwise keep the configured one, the client is told which one is used
+     *
+     * @param id id of the requested format
+     */
+    private void negotiateFormat(int id) {
+        formatRequested = true;
+        StreamFormat requested = StreamFormat.fromId(id);
+        if (requested == null) {
+            LOG.warning("Unknown stream format " + id + " requested, using " + format);
+        } else if (transport == IngestTransport.UDP || transport == IngestTransport.SHARED_MEMORY
+                || MULTIPLEX_INGRESS.equals(System.getProperty(INGRESS_PROPERTY))) {
+            // these carry single values in their own framing
+            LOG.warning("Stream formats need a stream per worker, " + requested + " is not used for " + transport + " transport");
+            format = StreamFormat.INT;
+        } else {
+            format = requested;
+            LOG.info("Negotiated " + format + " stream format");
+        }
+    }
+
     /**
      * Create the NumberWorkers
      *
@@ -130,41 +501,256 @@ public class NumberService {
      * @return array of integers which are the ports the workers are listening to
      */
     private int[] createWorkers(int count) {
+        if (MULTIPLEX_INGRESS.equals(System.getProperty(INGRESS_PROPERTY))) {
+            return createMultiplexedWorkers(count);
+        }
+
         int[] result = new int[count];
+        endpointPaths = new String[count];
+        NumberWorker[] workers = new NumberWorker[count];
+        if (resumeTimeout > 0) {
+            resumeTokens = new long[count + 1];
+            resumeTokens[0] = sessionId;
+        }
         for (int i = 0; i < count; i++) {
 
-            // new thread safe status object
-            WorkerStatus status = new WorkerStatus();
-            NumberWorker worker = new NumberWorker(status);
-            workerStatuses.put(worker, status);
-
-            // create a new thread object for worker and add to list
-            Thread newThread = new Thread(worker);
-            threadList.add(newThread);
-
-            // start the worker
-            newThread.start();
-            LOG.info("Worker " + i + " created and started");
-
-            // poll for the port
-            while (true) {
-                int port = worker.getPort();
-                if (port != 0) {
-                    result[i] = port;
-                    break;
-                }
+            NumberWorker worker = startNextWorker();
+            workers[i] = worker;
+            if (resumeTokens != null) {
+                resumeTokens[i + 1] = worker.getResumeToken();
             }
+
+            // an empty file name tells the client the worker could not be reached
+            endpointPaths[i] = worker.getEndpointPath() != null ? worker.getEndpointPath() : "";
+            result[i] = worker.getPort();
         }
+        startCapture(workers);
         return result;
     }
 
+    /**
+     * Register a worker and start it, a warm one from the pool if there is one
+     *
+     * @return registered worker which can be reached
+     */
+    private NumberWorker startNextWorker() {
+        NumberWorker pooled = pool != null ? pool.take(threadList) : null;
+        if (pooled != null) {
+            LOG.info("Worker " + pooled.getId() + " taken from the pool");
+            return registerWorker(pooled);
+        }
+        NumberWorker worker = registerWorker();
+        startWorker(worker);
+        return worker;
+    }
+
+    /**
+     * Start the thread of a worker and wait until the worker can be reached,
+     * or until its thread has ended because it could not bind
+     *
+     * @param worker registered worker
+     */
+    private void startWorker(NumberWorker worker) {
+        // create a new thread object for worker and add to list
+        Thread newThread = new Thread(worker);
+        newThread.setPriority(INGEST_PRIORITY);
+        threadList.add(newThread);
+
+        // start the worker
+        newThread.start();
+        LOG.info("Worker " + worker.getId() + " created and started");
+
+        // poll for the file, shared memory and unix domain socket workers have no port
+        if (usesEndpointPaths()) {
+            while (worker.getEndpointPath() == null && newThread.isAlive()) {
+                Thread.onSpinWait();
+            }
+            if (worker.getEndpointPath() == null) {
+                LOG.warning("Worker " + worker.getId() + " could not create its endpoint file");
+            }
+            return;
+        }
+
+        // poll for the port
+        while (worker.getPort() == 0 && newThread.isAlive()) {
+            Thread.onSpinWait();
+        }
+        if (worker.getPort() == 0) {
+            LOG.warning("Worker " + worker.getId() + " could not bind a port");
+        }
+    }
+
+    /**
+     * Add a worker to the live session
+     * Answered with the new worker's id followed by its port, or by its file as an UTF string
+     * on the shared memory and unix domain socket transports, and by its resume token if
+     * resumption is enabled. INVALID_QUERY if the session has MAX_WORKERS running workers
+     * or uses the multiplexed ingress.
+     */
+    private void addWorker() {
+        if (ingress != null || getRunningWorkerCount() >= MAX_WORKERS) {
+            sendAnswer(ControlMessage.INVALID_QUERY.getValue());
+            LOG.info("Received query ADD_WORKER, answering INVALID_QUERY");
+            return;
+        }
+        NumberWorker worker = startNextWorker();
+
+        // values of the added worker are not captured, the capture header lists the initial workers
+        sendAnswer(worker.getId());
+        if (usesEndpointPaths()) {
+            netService.sendTCPString(worker.getEndpointPath() != null ? worker.getEndpointPath() : "");
+        } else {
+            netService.sendTCPMessage(worker.getPort());
+        }
+        if (resumeTimeout > 0) {
+            netService.sendTCPLong(worker.getResumeToken());
+        }
+        LOG.info("Received query ADD_WORKER, added worker " + worker.getId());
+    }
+
+    /**
+     * Retire a worker of the live session, its totals stay in the aggregates
+     * The producer should end the worker's stream first, values still in flight are dropped.
+     * Answered with the worker's id, INVALID_QUERY if no such worker is running
+     * or the session would be left with less than MIN_WORKERS running workers.
+     *
+     * @param id id of the worker
+     */
+    private void retireWorker(int id) {
+        NumberWorker worker = null;
+        for (NumberWorker w : workerStatuses.keySet()) {
+            if (w.getId() == id && w.isRunning()) worker = w;
+        }
+        if (worker == null || ingress != null || getRunningWorkerCount() <= MIN_WORKERS) {
+            sendAnswer(ControlMessage.INVALID_QUERY.getValue());
+            LOG.info("Received query RETIRE_WORKER " + id + ", answering INVALID_QUERY");
+            return;
+        }
+        worker.retire();
+        sendAnswer(id);
+        LOG.info("Received query RETIRE_WORKER, retired worker " + id + " with sum " + worker.getSum());
+    }
+
+    /**
+     * @return number of workers which have not ended or been retired
+     */
+    private int getRunningWorkerCount() {
+        int running = 0;
+        for (NumberWorker w : workerStatuses.keySet()) {
+            if (w.isRunning()) running++;
+        }
+        return running;
+    }
+
+    /**
+     * Create the logical workers of a multiplexed ingress
+     * All of them share the single ingress connection, so every port sent to the client is the same
+     *
+     * @param count count of logical workers
+     * @return array of integers which are the ports the workers are listening to
+     */
+    private int[] createMultiplexedWorkers(int count) {
+        WorkerStatus[] statuses = new WorkerStatus[count];
+        NumberWorker[] workers = new NumberWorker[count];
+        for (int i = 0; i < count; i++) {
+            // the worker thread is never started, the ingress accumulates into its status
+            workers[i] = registerWorker();
+            statuses[i] = workerStatuses.get(workers[i]);
+        }
+
+        ingress = new MultiplexIngress(statuses, Integer.getInteger(SHARDS_PROPERTY, MultiplexIngress.defaultShards()));
+        ingress.setFlowWindow(flowWindow);
+        Thread newThread = new Thread(ingress, "multiplex-ingress");
+        // the accumulators inherit it
+        newThread.setPriority(INGEST_PRIORITY);
+        threadList.add(newThread);
+        newThread.start();
+
+        // poll for the port, or until the thread has ended because it could not bind
+        while (ingress.getPort() == 0 && newThread.isAlive()) {
+            Thread.onSpinWait();
+        }
+        startCapture(workers);
+        int[] result = new int[count];
+        Arrays.fill(result, ingress.getPort());
+        return result;
+    }
+
+    /**
+     * Create a worker and its status, restored from the checkpoint if there is one
+     *
+     * @return the new worker, not yet started
+     */
+    private NumberWorker registerWorker() {
+        return registerWorker(null);
+    }
+
+    private NumberWorker registerWorker(NumberWorker pooled) {
+        // new thread safe status object in the statistics table
+        WorkerStatus status = stats.allocate();
+        NumberWorker worker = pooled != null ? pooled : new NumberWorker(status, format);
+        status.setWorkerId(worker.getId());
+        worker.setFlowWindow(flowWindow);
+        if (pooled == null) worker.setTransport(transport);
+        worker.setTimers(timers);
+        worker.setFreshness(freshness);
+        long retained = Long.getLong(RETENTION_PROPERTY, 0L);
+        if (retained > 0) worker.setRetention(new ValueRetention(retained));
+        if (resumeTimeout > 0) {
+            worker.setResume(sessionId, resumeTimeout);
+        }
+        if (restored != null && restored.restoreInto(status)) {
+            LOG.info("Worker " + worker.getId() + " restored from slot " + status.getSlot() + ", sum " +
+                    status.getSum() + " count " + status.getCount());
+        }
+        workerStatuses.put(worker, status);
+        // last, the worker thread reads the settings above once released
+        if (pooled != null) pooled.assign(status, format);
+        return worker;
+    }
+
+    /**
+     * Start capturing the worker streams, or the multiplexed ingress stream,
+     * and the queries, if capturing is enabled
+     * The client has not received the ports yet, so no value is missed
+     *
+     * @param workers workers in the order their ports are sent to the client
+     */
+    private void startCapture(NumberWorker[] workers) {
+        String file = System.getProperty(CAPTURE_PROPERTY);
+        if (file == null) return;
+        int[] ids = Arrays.stream(workers).mapToInt(NumberWorker::getId).toArray();
+        try {
+            // the multiplexed ingress only takes INT pairs
+            capture = new StreamCapture(Paths.get(file), ids, ingress != null ? StreamFormat.INT : format);
+        } catch (Exception e) {
+            LOG.warning("Could not open capture file " + file + ": " + e.getMessage());
+            return;
+        }
+        if (ingress != null) {
+            ingress.setCapture(capture, ids);
+            return;
+        }
+        for (NumberWorker w : workers) {
+            w.setCapture(capture);
+        }
+    }
+
     /**
      * Main thread listens to queries and responds accordingly
      * while the workers do their jobs
      */
     private void listenToQueries() {
+        // the main thread is the query lane
+        Thread.currentThread().setPriority(QUERY_PRIORITY);
         // set new timeout
         netService.setTimeout(QUERY_TIMEOUT);
+        // the session is idle when neither queries nor values arrive
+        sessionWatch = timers.watchIdle(() -> queries + getReceivedValuesCount(), QUERY_TIMEOUT, () -> {
+            LOG.warning("Session idle for " + QUERY_TIMEOUT + " ms, closing");
+            // unblocks the main thread waiting for a query
+            netService.closeConnection();
+        });
         while (true) {
             try {
                 int msg = netService.listenToTCPMessage();
@@ -191,105 +777,407 @@ public class NumberService {
      * @return true if connection closing message was received
      */
     private boolean handleQuery(int msg) {
+        if (capture != null) capture.recordQuery(msg);
+        queries++;
+
+        // a subscribed client reads updates only, an answer would break their framing,
+        // the arguments of an ignored query are read so that they are not taken for queries
+        if (subscription != null && msg != ControlMessage.UNSUBSCRIBE.getValue()
+                && msg != ControlMessage.CLOSE_CONNECTION.getValue()) {
+            LOG.warning("Ignoring query " + msg + " while subscribed");
+            skipArguments(msg);
+            return false;
+        }
+
+        // answers are read from the workers' atomics, which never lock against ingest,
+        // and sent before logging, the log handler is shared with the ingest threads
+
         if (msg == ControlMessage.QUERY_MAX_SUM_WORKER.getValue()) {
             int answer = getLargestIndividualSumWorker();
+            sendAnswer(answer);
             LOG.info("Received query MAX_SUM_WORKER, answering " + answer);
-            netService.sendTCPMessage(answer);
         } else if (msg == ControlMessage.QUERY_SUM_COMPLETE.getValue()) {
             int answer = getSumOfAllWorkers();
+            sendAnswer(answer);
             LOG.info("Received query SUM_COMPLETE, answering " + answer);
-            netService.sendTCPMessage(answer);
         } else if (msg == ControlMessage.QUERY_NUMBER_COUNT.getValue()) {
             int answer = getReceivedValuesCount();
+            sendAnswer(answer);
             LOG.info("Received query NUMBER_COUNT, answering " + answer);
-            netService.sendTCPMessage(answer);
+        } else if (msg == ControlMessage.QUERY_FLOW_STALLS.getValue()) {
+            long stalls = getFlowStalls();
+            // the answer is an int, a count beyond it saturates instead of wrapping
+            int answer = (int) Math.min(stalls, Integer.MAX_VALUE);
+            sendAnswer(answer);
+            LOG.info("Received query FLOW_STALLS, answering " + answer);
+        } else if (msg == ControlMessage.QUERY_LOST_DATAGRAMS.getValue()) {
+            int answer = getLostDatagrams();
+            sendAnswer(answer);
+            LOG.info("Received query LOST_DATAGRAMS, answering " + answer);
+        } else if (msg == ControlMessage.QUERY_DUPLICATE_DATAGRAMS.getValue()) {
+            int answer = getDuplicateDatagrams();
+            sendAnswer(answer);
+            LOG.info("Received query DUPLICATE_DATAGRAMS, answering " + answer);
+        } else if (msg == ControlMessage.QUERY_FRESHNESS.getValue()) {
+            sendFreshness();
+        } else if (msg == ControlMessage.SUBSCRIBE.getValue()) {
+            subscription = new AggregateSubscription(stats, netService::sendTCPMessages,
+                    Integer.getInteger(SUBSCRIBE_INTERVAL_PROPERTY, AggregateSubscription.DEFAULT_INTERVAL));
+            subscription.start();
+            LOG.info("Received SUBSCRIBE, pushing aggregate updates");
+        } else if (msg == ControlMessage.UNSUBSCRIBE.getValue()) {
+            if (subscription != null) {
+                subscription.stop();
+                subscription = null;
+            }
+            LOG.info("Received UNSUBSCRIBE");
+        } else if (msg == ControlMessage.QUERY_RANGE.getValue()) {
+            queryRange();
+        } else if (msg == ControlMessage.QUERY_KEY.getValue()) {
+            queryKey();
+        } else if (msg == ControlMessage.QUERY_TOP_KEYS.getValue()) {
+            queryTopKeys();
+        } else if (msg == ControlMessage.ADD_WORKER.getValue()) {
+            addWorker();
+        } else if (msg == ControlMessage.RETIRE_WORKER.getValue()) {
+            try {
+                retireWorker(readArgument());
+            } catch (SocketTimeoutException e) {
+                LOG.warning("No worker id received for RETIRE_WORKER");
+            }
         } else if (msg == ControlMessage.CLOSE_CONNECTION.getValue()) {
             return true;
         } else {
             LOG.info("Received invalid query " + msg + " answering INVALID_QUERY");
-            netService.sendTCPMessage(ControlMessage.INVALID_QUERY.getValue());
+            sendAnswer(ControlMessage.INVALID_QUERY.getValue());
         }
         return false;
     }
 
     /**
-     * @return largest of the individual worker's sums
+     * Read and drop the arguments following a query which is not answered
+     *
+     * @param msg the query
      */
-    private int getLargestIndividualSumWorker() {
-        int largest = Integer.MIN_VALUE;
-        NumberWorker largestWorker = null;
-        for (NumberWorker w : workerStatuses.keySet()) {
-            int tempSum = w.getSum();
-            if (tempSum > largest) {
-                largest = tempSum;
-                largestWorker = w;
+    private void skipArguments(int msg) {
+        try {
+            if (msg == ControlMessage.RETIRE_WORKER.getValue() || msg == ControlMessage.QUERY_KEY.getValue()
+                    || msg == ControlMessage.QUERY_TOP_KEYS.getValue()) {
+                readArgument();
+            } else if (msg == ControlMessage.QUERY_RANGE.getValue()) {
+                readArgument();
+                readArgument();
+                readLongArgument();
+                readLongArgument();
             }
+        } catch (SocketTimeoutException e) {
+            LOG.warning("No arguments received for query " + msg);
         }
-        return largestWorker.getId();
+    }
+
+    /**
+     * Read an int argument of a query, recorded after the query if capturing
+     *
+     * @return the argument
+     * @throws SocketTimeoutException if the argument did not arrive in time
+     */
+    private int readArgument() throws SocketTimeoutException {
+        int argument = netService.listenToTCPMessage();
+        if (capture != null) capture.recordArgument(argument);
+        return argument;
+    }
+
+    /**
+     * Read a long argument of a query, recorded after the query if capturing
+     *
+     * @return the argument, -1 if it could not be read
+     */
+    private long readLongArgument() {
+        long argument = netService.listenToTCPLong(-1);
+        if (capture != null) capture.recordArgument(argument);
+        return argument;
+    }
+
+    /**
+     * Send an answer to a query over the control channel
+     *
+     * @param answer the answer value
+     */
+    private void sendAnswer(int answer) {
+        if (capture != null) capture.recordAnswer(answer);
+        netService.sendTCPMessage(answer);
+    }
+
+    /**
+     * @return largest of the individual worker's sums
+     */
+    private int getLargestIndividualSumWorker() {
+        return stats.maxSumWorker();
     }
 
     /**
      * @return sum of all of the worker's sums
      */
     private int getSumOfAllWorkers() {
-        int sum = 0;
-        for (WorkerStatus e : workerStatuses.values()) {
-            sum += e.getSum();
-        }
-        return sum;
+        return stats.sum();
     }
 
     /**
      * @return total count of received values to workers
      */
     private int getReceivedValuesCount() {
+        return stats.count();
+    }
+
+    /**
+     * @return total number of times the worker streams withheld flow control credits
+     */
+    private long getFlowStalls() {
+        long stalls = 0;
+        for (NumberWorker w : workerStatuses.keySet()) {
+            FlowController fc = w.getFlowController();
+            if (fc != null) stalls += fc.getStalls();
+        }
+        if (ingress != null && ingress.getFlowController() != null) {
+            stalls += ingress.getFlowController().getStalls();
+        }
+        return stalls;
+    }
+
+    /**
+     * Answer QUERY_FRESHNESS with the sample count and the percentiles in microseconds,
+     * INVALID_QUERY if freshness is not measured
+     */
+    private void sendFreshness() {
+        if (freshness == null) {
+            sendAnswer(ControlMessage.INVALID_QUERY.getValue());
+            LOG.info("Received query FRESHNESS, not measured, answering INVALID_QUERY");
+            return;
+        }
+        FreshnessTracker.Histogram visible = freshness.getVisible();
+        sendAnswer((int) Math.min(visible.getCount(), Integer.MAX_VALUE));
+        netService.sendTCPMessages(new int[]{
+                micros(visible.percentile(0.5)), micros(visible.percentile(0.99)),
+                micros(visible.percentile(0.999)), micros(visible.getMax())});
+        LOG.info("Received query FRESHNESS, answering " + visible);
+    }
+
+    /**
+     * Answer QUERY_RANGE from the retained values of the worker
+     */
+    private void queryRange() {
+        int id;
+        RangeUnit unit;
+        try {
+            id = readArgument();
+            unit = RangeUnit.fromId(readArgument());
+        } catch (SocketTimeoutException e) {
+            LOG.warning("No range received for QUERY_RANGE");
+            return;
+        }
+        long from = readLongArgument();
+        long to = readLongArgument();
+
+        ValueRetention retention = null;
+        for (NumberWorker w : workerStatuses.keySet()) {
+            if (w.getId() == id) retention = w.getRetention();
+        }
+        if (retention == null || unit == null) {
+            sendAnswer(ControlMessage.INVALID_QUERY.getValue());
+            LOG.info("Received query RANGE for worker " + id + ", answering INVALID_QUERY");
+            return;
+        }
+        ValueRetention.Aggregate a;
+        if (unit == RangeUnit.INDEX) {
+            a = retention.aggregate(from, to);
+        } else if (unit == RangeUnit.TIME) {
+            a = retention.aggregateTime(from, to);
+        } else {
+            a = retention.aggregateLast(from);
+        }
+        sendAnswer(0);
+        netService.sendTCPLongs(new long[]{a.getSum(), a.getCount()});
+        netService.sendTCPMessages(new int[]{a.getMin(), a.getMax()});
+        LOG.info("Received query RANGE " + unit + " " + from + " " + to + " for worker " + id +
+                ", answering sum " + a.getSum() + " count " + a.getCount());
+    }
+
+    /**
+     * Answer QUERY_KEY from the keyed streams of all workers
+     */
+    private void queryKey() {
+        int key;
+        try {
+            key = readArgument();
+        } catch (SocketTimeoutException e) {
+            LOG.warning("No key received for QUERY_KEY");
+            return;
+        }
+        boolean keyed = false;
+        long sum = 0;
         int count = 0;
-        for (WorkerStatus e : workerStatuses.values()) {
-            count += e.getCount();
+        for (NumberWorker w : workerStatuses.keySet()) {
+            KeyedAggregates k = w.getKeyed();
+            if (k == null) continue;
+            keyed = true;
+            sum += k.getSum(key);
+            count += k.getCount(key);
+        }
+        if (!keyed) {
+            sendAnswer(ControlMessage.INVALID_QUERY.getValue());
+            LOG.info("Received query KEY " + key + ", answering INVALID_QUERY");
+            return;
+        }
+        sendAnswer(0);
+        netService.sendTCPLong(sum);
+        netService.sendTCPMessages(new int[]{count});
+        LOG.info("Received query KEY " + key + ", answering sum " + sum + " count " + count);
+    }
+
+    /**
+     * Answer QUERY_TOP_KEYS from the keyed streams of all workers merged
+     */
+    private void queryTopKeys() {
+        int wanted;
+        try {
+            wanted = Math.max(0, readArgument());
+        } catch (SocketTimeoutException e) {
+            LOG.warning("No key count received for QUERY_TOP_KEYS");
+            return;
+        }
+        KeyedAggregates merged = new KeyedAggregates();
+        for (NumberWorker w : workerStatuses.keySet()) {
+            KeyedAggregates k = w.getKeyed();
+            if (k != null) merged.merge(k);
         }
-        return count;
+        int[] keys = new int[Math.min(wanted, merged.size())];
+        long[] sums = new long[keys.length];
+        int n = merged.top(keys, sums);
+        sendAnswer(n);
+        for (int i = 0; i < n; i++) {
+            netService.sendTCPMessages(new int[]{keys[i]});
+            netService.sendTCPLong(sums[i]);
+        }
+        LOG.info("Received query TOP_KEYS " + wanted + ", answering " + n + " keys");
+    }
+
+    private static int micros(long nanos) {
+        return (int) Math.min(nanos / 1000, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return total number of datagrams lost on the way to the workers,
+     * Integer.MAX_VALUE if it does not fit the answer
+     */
+    private int getLostDatagrams() {
+        long lost = 0;
+        for (NumberWorker w : workerStatuses.keySet()) {
+            lost += w.getSequenceTracker().getLost();
+        }
+        return (int) Math.min(lost, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return total number of datagrams the workers received more than once,
+     * Integer.MAX_VALUE if it does not fit the answer
+     */
+    private int getDuplicateDatagrams() {
+        long duplicates = 0;
+        for (NumberWorker w : workerStatuses.keySet()) {
+            duplicates += w.getSequenceTracker().getDuplicates();
+        }
+        return (int) Math.min(duplicates, Integer.MAX_VALUE);
     }
 
     /**
      * Close connection
      */
     private void closeConnection() {
+        if (closed.getCount() == 0) return;
 
         // close X connection to client
+        if (sessionWatch != null) sessionWatch.stop();
+        if (subscription != null) subscription.stop();
         if (netService != null) netService.closeConnection();
 
 //        threadList.stream().forEach((t) -> t.interrupt());
 
-        // tell each worker to stop and quit
+        // tell each worker to stop and quit, a stopped service does not wait for the producers
         workerStatuses.keySet().forEach((w) -> {
-            w.closeWorker();
+            if (stopping) w.retire();
+            else w.closeWorker();
         });
+        if (ingress != null) ingress.close();
+        if (pool != null) pool.close();
 
         LOG.info("Waiting for workers to close");
 
-        // wait until the workers are all closed and then quit
-        boolean areWorkersClosed;
-        do {
-            areWorkersClosed = true;
-            for (Thread t : threadList) {
-                if (t.isAlive()) areWorkersClosed = false;
+        // wait until the workers are all closed
+        for (Thread t : threadList) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                LOG.warning("Interrupted while waiting for the workers");
+                Thread.currentThread().interrupt();
+                break;
             }
-        } while (!areWorkersClosed);
+        }
+
+        if (capture != null) capture.close();
 
+        // push the final aggregates
+        if (publisher != null) {
+            publisher.stop();
+            publisherThread.interrupt();
+            try {
+                publisherThread.join();
+            } catch (InterruptedException e) {
+                LOG.warning("Interrupted while pushing the final aggregates");
+            }
+        }
+
+        // write the final checkpoint
+        if (checkpointer != null) {
+            checkpointer.stop();
+            checkpointThread.interrupt();
+            try {
+                checkpointThread.join();
+            } catch (InterruptedException e) {
+                LOG.warning("Interrupted while writing the final checkpoint");
+            }
+        }
+
+        if (freshness != null) LOG.info("Freshness " + freshness.summary());
+        if (metrics != null) metrics.stop();
+
+        timers.stop();
         LOG.info("Exiting..");
 
-        // exit cleanly
-        System.exit(0);
+        closed.countDown();
     }
 
     /**
-     * Close connections and exit system in case of error
-     * Signal an error with status 1
+     * Close connections in case of error
+     * Signal an error with status 1, unless the service was stopped
      */
     public void exit() {
+        if (!stopping) exitStatus = 1;
         closeConnection();
         System.err.println("Exiting..");
-        System.exit(1);
+    }
+
+    /**
+     * @return identity of the current session
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return nanoseconds from init until the worker ports were sent, 0 before that
+     */
+    public long getTimeToReady() {
+        return timeToReady;
     }
 
     /**
@@ -1,10 +1,17 @@
 package numservice;
 
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static numservice.ControlMessage.TERMINATE_STREAM;
@@ -18,6 +25,13 @@ import static numservice.ControlMessage.TERMINATE_STREAM;
  */
 public class NumberWorker implements Runnable {
 
+    // bits of a worker id reserved for the per node counter, the node id is above them
+    public static final int NODE_ID_SHIFT = 20;
+    // highest node id whose worker ids stay positive
+    public static final int MAX_NODE_ID = (1 << (31 - NODE_ID_SHIFT)) - 1;
+    // values between the sequence acknowledgements of a resumable stream
+    public static final int ACK_INTERVAL = 1024;
+
     // target accumulated integer
     private WorkerStatus target;
 
@@ -25,11 +39,14 @@ public class NumberWorker implements Runnable {
     private ServerSocket socket;
     private Socket clientSocket;
 
-    // network service object which encloses all low level communication details
-    private NetworkCommunicationService netService;
+    // network service object which encloses all low level communication details,
+    // created by the worker thread
+    private volatile NetworkCommunicationService netService;
 
     // binded port, main thread polls
     private AtomicInteger port;
+    // ring buffer file or unix domain socket file the worker is reached at, main thread polls
+    private volatile String endpointPath;
 
     // worker id
     private int id;
@@ -37,15 +54,73 @@ public class NumberWorker implements Runnable {
     // running flag
     private AtomicBoolean running;
 
+    // encoding of the values on the stream
+    private StreamFormat format;
+    // transport the values arrive on
+    private IngestTransport transport = IngestTransport.TCP;
+    // loss and duplicate accounting of UDP ingestion
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+
+    // credit window granted to the producer, 0 disables flow control
+    private int flowWindow;
+    // flow control of the stream, null if disabled
+    private volatile FlowController flowController;
+    // bytes and values of the VARINT frames received, their ratio converts queued bytes to values
+    private long varintBytes;
+    private long varintValues;
+
+    // milliseconds to wait for a lost producer to reconnect, 0 disables resumption
+    private int resumeTimeout;
+    // tokens the producer presents on every connection to this worker
+    private long sessionToken;
+    private final long resumeToken = RANDOM.nextLong();
+    // values received on the stream, a resuming producer continues after the last one
+    private long sequence;
+
+    // shared timeouts of the service, null if the worker is not evicted when idle
+    private TimingWheel timers;
+    // evicts the worker when no values arrive, null until the stream starts
+    private TimingWheel.Watch idleWatch;
+
+    // sampled read to accumulated latencies of the service, null if not measured
+    private FreshnessTracker freshness;
+    // reads until the next sample
+    private int untilSample;
+
+    // history of the received values, null if not retained
+    private ValueRetention retention;
+    // per key aggregates of a keyed stream, null until the keyed stream starts
+    private volatile KeyedAggregates keyed;
+
+    // released when a pooled worker is handed to a session, null if the worker was created for one
+    private CountDownLatch assignment;
+
+    // records received values if capturing is enabled, set after the thread has started
+    private volatile StreamCapture capture;
+
+    // reduces the received blocks, vectorized if the Vector API is available
+    private BlockAccumulator accumulator = BlockAccumulator.create();
+
     /**
      * Constructor
      *
      * @param target target WorkerStatus object which will be used to store the count and sum
      */
     public NumberWorker(WorkerStatus target) {
+        this(target, StreamFormat.INT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param target target WorkerStatus object which will be used to store the count and sum
+     * @param format encoding of the values on the stream
+     */
+    public NumberWorker(WorkerStatus target, StreamFormat format) {
         this.target = target;
+        this.format = format;
         this.port = new AtomicInteger(0);
-        this.id = workerId++;
+        this.id = (nodeId << NODE_ID_SHIFT) | workerId.getAndIncrement();
         this.running = new AtomicBoolean(true);
 
         LOG.info("Worker " + id + " created, not yet connected");
@@ -60,41 +135,419 @@ public class NumberWorker implements Runnable {
     @Override
     public void run() {
         try {
-            // listen to client connection
             netService = new NetworkCommunicationService();
-            try {
-                // open socket and get the port
-                port.set(netService.initWorkerConnection(id).getLocalPort());
-                // listen for the connection
-                netService.establishWorkerConnection();
-                LOG.info("Worker " + this.id + " instantiated and connected");
-            } catch (Exception e) {
-                LOG.warning("Worker " + this.id + " could not create establish connection");
-                closeWorker();
-            }
-
-            if (!netService.isConnected()) {
-                LOG.severe("Worker " + id + "was not connected, closing");
-                return;
-            }
-
-            // loop
-            while (this.running.get() == true) {
-                // listen to messages
-                int msg = netService.listenToTCPMessage(id);
-                if (handleMessage(msg)) break;
+            if (transport == IngestTransport.UDP) {
+                receiveDatagrams();
+            } else if (transport == IngestTransport.SHARED_MEMORY) {
+                receiveSharedMemory();
+            } else {
+                receiveStream();
             }
         } catch (SocketTimeoutException e) {
             LOG.warning("Worker " + id + " timeout, closing");
 //        } catch (InterruptedException e) {
 //            LOG.info("Worker " + id + " thread " + Thread.currentThread().getName() + " interrupted");
         } finally {
+            if (idleWatch != null) idleWatch.stop();
+            if (flowController != null) flowController.logStats("Worker " + id);
             // close tcp socket and related objects
             netService.closeConnection();
         }
         LOG.info("Worker " + id + " exiting");
     }
 
+    /**
+     * Accept the TCP connection and receive the stream until it ends
+     *
+     * @throws SocketTimeoutException if connection timeouts
+     */
+    private void receiveStream() throws SocketTimeoutException {
+        // listen to client connection
+        try {
+            if (transport == IngestTransport.UNIX) {
+                // open socket file and give out its path
+                netService.setUnixDirectory(NumberService.getEndpointDirectory());
+                endpointPath = netService.initWorkerUnixConnection(id);
+            } else if (transport == IngestTransport.LOOPBACK) {
+                // bind the endpoint and give out its name
+                endpointPath = netService.initWorkerLoopbackConnection(id);
+            } else {
+                // open socket and get the port
+                port.set(netService.initWorkerConnection(id).getLocalPort());
+            }
+            // a pooled worker waits bound until a session takes it
+            if (assignment != null) {
+                assignment.await();
+                if (!running.get()) return;
+            }
+            // listen for the connection
+            netService.establishWorkerConnection();
+            LOG.info("Worker " + this.id + " instantiated and connected");
+        } catch (Exception e) {
+            LOG.warning("Worker " + this.id + " could not create establish connection");
+            closeWorker();
+        }
+
+        if (!netService.isConnected()) {
+            LOG.severe("Worker " + id + "was not connected, closing");
+            return;
+        }
+        receiveConnected();
+    }
+
+    /**
+     * Receive a stream over a service which is already connected, used by tests
+     *
+     * @param service connected service
+     * @throws SocketTimeoutException if connection timeouts
+     */
+    void receive(NetworkCommunicationService service) throws SocketTimeoutException {
+        netService = service;
+        receiveConnected();
+    }
+
+    /**
+     * Receive the stream of the connected producer until it ends
+     *
+     * @throws SocketTimeoutException if connection timeouts
+     */
+    private void receiveConnected() throws SocketTimeoutException {
+        if (resumeTimeout > 0 && !acceptProducer()) {
+            closeWorker();
+            return;
+        }
+        watchIdle();
+
+        if (flowWindow > 0) {
+            flowController = new FlowController(flowWindow, this::queuedValues,
+                    netService::sendTCPMessage);
+            flowController.start();
+        }
+
+        if (format == StreamFormat.BLOCK) {
+            receiveBlocks();
+            return;
+        }
+        if (format == StreamFormat.VARINT) {
+            receiveVarints();
+            return;
+        }
+        if (format == StreamFormat.KEYED) {
+            receiveKeyed();
+            return;
+        }
+
+        // loop
+        while (this.running.get() == true) {
+            // listen to messages
+            int msg = netService.listenToTCPMessage(id);
+            if (resumeTimeout > 0 && netService.isDisconnected()) {
+                if (resume()) continue;
+                closeWorker();
+                break;
+            }
+            if (handleMessage(msg)) {
+                // tell a resumable producer that everything arrived
+                if (resumeTimeout > 0) netService.sendTCPLong(sequence);
+                break;
+            }
+            acknowledge(1);
+        }
+    }
+
+    /**
+     * Check the tokens of a connected producer and tell it the sequence to resume from,
+     * a connection with wrong tokens is dropped and another one is waited for
+     *
+     * @return false if no valid producer connected in time
+     */
+    private boolean acceptProducer() {
+        while (true) {
+            long session = netService.listenToTCPLong(id);
+            long token = netService.listenToTCPLong(id);
+            if (!netService.isDisconnected()) {
+                if (session == sessionToken && token == resumeToken) {
+                    // everything up to here is accumulated, the producer replays the rest
+                    netService.sendTCPLong(sequence);
+                    LOG.info("Worker " + id + " producer connected at sequence " + sequence);
+                    return true;
+                }
+                LOG.warning("Worker " + id + " rejected a producer with invalid tokens");
+            }
+            if (!awaitProducer()) return false;
+        }
+    }
+
+    /**
+     * Wait for the producer of a lost stream to reconnect and resume it
+     *
+     * @return true if the stream was resumed
+     */
+    private boolean resume() {
+        if (!running.get()) return false;
+        LOG.info("Worker " + id + " lost its producer after " + sequence + " values, waiting " +
+                resumeTimeout + " ms for it to resume");
+        return awaitProducer() && acceptProducer();
+    }
+
+    /**
+     * @return false if no producer connected within the resume timeout
+     */
+    private boolean awaitProducer() {
+        try {
+            netService.awaitReconnect(resumeTimeout);
+            return true;
+        } catch (Exception e) {
+            LOG.warning("Worker " + id + " producer did not reconnect in time");
+            return false;
+        }
+    }
+
+    /**
+     * Evict the worker if no values arrive within QUERY_TIMEOUT
+     */
+    private void watchIdle() {
+        if (timers == null) return;
+        idleWatch = timers.watchIdle(() -> target.getCount(), NumberService.QUERY_TIMEOUT, () -> {
+            LOG.warning("Worker " + id + " idle for " + NumberService.QUERY_TIMEOUT + " ms, evicting");
+            closeWorker();
+            // unblocks a worker waiting in a read
+            netService.closeConnection();
+        });
+    }
+
+    /**
+     * Count accumulated values and acknowledge them to a resumable producer
+     * every ACK_INTERVAL values, so it can drop them from its replay buffer
+     *
+     * @param values number of accumulated values
+     */
+    private void acknowledge(int values) {
+        if (resumeTimeout == 0) return;
+        long previous = sequence;
+        sequence += values;
+        if (previous / ACK_INTERVAL != sequence / ACK_INTERVAL) {
+            netService.sendTCPLong(sequence);
+        }
+    }
+
+    /**
+     * Receive datagrams, drop duplicates and accumulate the rest
+     * until a datagram without values ends the stream
+     */
+    private void receiveDatagrams() {
+        try {
+            port.set(netService.initWorkerDatagramSocket(id));
+        } catch (Exception e) {
+            LOG.warning("Worker " + this.id + " could not bind a datagram socket");
+            closeWorker();
+            return;
+        }
+
+        int[] values = new int[NetworkCommunicationService.MAX_FRAME_LENGTH];
+        watchIdle();
+        while (this.running.get()) {
+            int count = netService.listenToDatagram(values, id);
+            if (count == 0) continue;
+            long read = sampleRead();
+            if (count < 0) {
+                LOG.info("Worker " + id + " received END OF STREAM");
+                closeWorker();
+                break;
+            }
+            if (!sequenceTracker.accept(netService.getDatagramSequence())) continue;
+
+            StreamCapture c = capture;
+            if (c != null) {
+                for (int i = 0; i < count; i++) c.recordValue(id, values[i]);
+            }
+            accumulator.accumulate(values, count, target);
+            if (retention != null) retention.append(values, count);
+            sampleVisible(read);
+        }
+        LOG.info("Worker " + id + " datagrams: " + sequenceTracker.getReceived() + " received, " +
+                sequenceTracker.getLost() + " lost, " + sequenceTracker.getDuplicates() + " duplicates, " +
+                sequenceTracker.getLate() + " late");
+    }
+
+    /**
+     * Create the ring buffer file and consume values from it until 0 ends the stream
+     */
+    private void receiveSharedMemory() {
+        // an unguessable name, the endpoint directory may be shared with other users
+        Path file = NumberService.getEndpointDirectory().resolve(
+                "numservice-worker-" + id + "-" + Long.toHexString(RANDOM.nextLong()) + ".ring");
+        SharedMemoryRing ring;
+        try {
+            ring = SharedMemoryRing.create(file, SharedMemoryRing.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            LOG.warning("Worker " + id + " could not create ring buffer " + file + ": " + e.getMessage());
+            closeWorker();
+            return;
+        }
+        endpointPath = file.toString();
+        LOG.info("Worker " + id + " consuming ring buffer " + file);
+
+        int[] values = new int[NetworkCommunicationService.MAX_FRAME_LENGTH];
+        int idle = 0;
+        watchIdle();
+        try {
+            while (this.running.get()) {
+                int count = ring.poll(values);
+                if (count == 0) {
+                    // spin briefly, then back off
+                    if (++idle < 100) {
+                        Thread.onSpinWait();
+                    } else {
+                        LockSupport.parkNanos(50000);
+                    }
+                    continue;
+                }
+                idle = 0;
+                long read = sampleRead();
+
+                // values up to a terminating 0 belong to the stream
+                int length = 0;
+                while (length < count && values[length] != TERMINATE_STREAM.getValue()) length++;
+                StreamCapture c = capture;
+                if (c != null) {
+                    for (int i = 0; i < length; i++) c.recordValue(id, values[i]);
+                }
+                accumulator.accumulate(values, length, target);
+                if (retention != null) retention.append(values, length);
+                sampleVisible(read);
+                if (length < count) {
+                    LOG.info("Worker " + id + " received END OF STREAM");
+                    closeWorker();
+                    break;
+                }
+            }
+        } finally {
+            try {
+                ring.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warning("Worker " + id + " could not remove ring buffer " + file);
+            }
+        }
+    }
+
+    /**
+     * Receive block frames and accumulate each one in a single pass
+     *
+     * @throws SocketTimeoutException if connection timeouts
+     */
+    private void receiveBlocks() throws SocketTimeoutException {
+        int[] frame = new int[NetworkCommunicationService.MAX_FRAME_LENGTH];
+        while (this.running.get()) {
+            int length = netService.listenToTCPFrame(frame, id);
+            long read = sampleRead();
+            if (resumeTimeout > 0 && netService.isDisconnected()) {
+                if (resume()) continue;
+                closeWorker();
+                break;
+            }
+            StreamCapture c = capture;
+            if (c != null) {
+                for (int i = 0; i < length; i++) c.recordValue(id, frame[i]);
+            }
+            if (length == 0) {
+                if (c != null) c.recordEnd(id);
+                LOG.info("Worker " + id + " received END OF STREAM");
+                if (resumeTimeout > 0) netService.sendTCPLong(sequence);
+                closeWorker();
+                break;
+            }
+            accumulator.accumulate(frame, length, target);
+            if (retention != null) retention.append(frame, length);
+            sampleVisible(read);
+            if (flowController != null) flowController.consumed(length);
+            acknowledge(length);
+        }
+    }
+
+    /**
+     * Receive frames of key and value pairs until the end frame,
+     * aggregating per key and into the worker's totals
+     * The pairs are neither captured nor retained, both keep plain values.
+     */
+    private void receiveKeyed() throws SocketTimeoutException {
+        KeyedAggregates aggregates = new KeyedAggregates();
+        keyed = aggregates;
+        int[] frame = new int[NetworkCommunicationService.MAX_FRAME_LENGTH];
+        while (this.running.get()) {
+            int length = netService.listenToTCPFrame(frame, id);
+            long read = sampleRead();
+            if (resumeTimeout > 0 && netService.isDisconnected()) {
+                if (resume()) continue;
+                closeWorker();
+                break;
+            }
+            if (length == 0) {
+                LOG.info("Worker " + id + " received END OF STREAM, " + aggregates.size() + " keys");
+                if (resumeTimeout > 0) netService.sendTCPLong(sequence);
+                closeWorker();
+                break;
+            }
+            aggregates.addPairs(frame, length, target);
+            sampleVisible(read);
+            if (flowController != null) flowController.consumed(length / 2);
+            acknowledge(length / 2);
+        }
+    }
+
+    /**
+     * Receive frames of delta zigzag varints until the end frame,
+     * decoding and accumulating each frame in one pass
+     */
+    private void receiveVarints() throws SocketTimeoutException {
+        byte[] frame = new byte[NetworkCommunicationService.MAX_FRAME_LENGTH * VarintCodec.MAX_BYTES];
+        // decoded values, only needed while capturing or retaining, a value takes at least one byte
+        int[] values = null;
+        while (this.running.get()) {
+            int length = netService.listenToTCPBytes(frame, id);
+            long read = sampleRead();
+            if (resumeTimeout > 0 && netService.isDisconnected()) {
+                if (resume()) continue;
+                closeWorker();
+                break;
+            }
+            StreamCapture c = capture;
+            if (length == 0) {
+                if (c != null) c.recordEnd(id);
+                LOG.info("Worker " + id + " received END OF STREAM");
+                if (resumeTimeout > 0) netService.sendTCPLong(sequence);
+                closeWorker();
+                break;
+            }
+            int count;
+            if (c != null || retention != null) {
+                if (values == null) values = new int[frame.length];
+                count = VarintCodec.decode(frame, length, values);
+                for (int i = 0; i < count; i++) {
+                    if (c != null) c.recordValue(id, values[i]);
+                    target.addValue(values[i]);
+                }
+                if (retention != null && count > 0) retention.append(values, count);
+            } else {
+                count = VarintCodec.accumulate(frame, length, target);
+            }
+            if (count < 0) {
+                LOG.warning("Worker " + id + " received a malformed frame, closing");
+                closeWorker();
+                break;
+            }
+            sampleVisible(read);
+            if (flowController != null) {
+                // the frame and its length
+                varintBytes += length + Integer.BYTES;
+                varintValues += count;
+                flowController.consumed(count);
+            }
+            acknowledge(count);
+        }
+    }
+
     /**
      * Handle an incoming message,
      * edit the state accordingly
@@ -103,6 +556,10 @@ public class NumberWorker implements Runnable {
      * @return true if a end of communication message was received
      */
     private boolean handleMessage(int msg) {
+        long read = sampleRead();
+        StreamCapture c = capture;
+        if (c != null) c.recordValue(id, msg);
+
         // when the client wishes to terminate the number stream
         if (msg == TERMINATE_STREAM.getValue()) {
             LOG.info("Worker " + id + " received END OF STREAM");
@@ -111,13 +568,17 @@ public class NumberWorker implements Runnable {
         }
 
         // otherwise
-        // add to sum
-        target.addSum(msg);
-        // increment number count
-        target.incrementCount();
+        // add to sum and increment number count
+        target.addValue(msg);
+        if (retention != null) retention.append(msg);
+        sampleVisible(read);
+        if (flowController != null) flowController.consumed(1);
 
-        LOG.info("Worker " + id + " received " + msg + " Sum now: " + target.getSum() +
-                " Count " + target.getCount());
+        // the message is only built if it is logged, this runs for every value
+        if (LOG.isLoggable(Level.INFO)) {
+            LOG.info("Worker " + id + " received " + msg + " Sum now: " + target.getSum() +
+                    " Count " + target.getCount());
+        }
 
         return false;
     }
@@ -129,6 +590,13 @@ public class NumberWorker implements Runnable {
         return port.get();
     }
 
+    /**
+     * @return ring buffer file or unix domain socket file of the worker, null if not set
+     */
+    public String getEndpointPath() {
+        return endpointPath;
+    }
+
     /**
      * @return id
      */
@@ -143,6 +611,188 @@ public class NumberWorker implements Runnable {
         return target.getSum();
     }
 
+    /**
+     * @param capture capture to record received values to, null to stop recording
+     */
+    public void setCapture(StreamCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Replace the block accumulator, must be called before the worker receives
+     *
+     * @param accumulator accumulator of the received blocks
+     */
+    void setBlockAccumulator(BlockAccumulator accumulator) {
+        this.accumulator = accumulator;
+    }
+
+    /**
+     * Enable credit based flow control, must be called before the thread is started
+     *
+     * @param window credits granted to the producer when the stream starts, 0 disables
+     */
+    public void setFlowWindow(int window) {
+        this.flowWindow = window;
+    }
+
+    /**
+     * Queue depth of the flow control, the queued bytes divided by the bytes per value
+     * of the stream format, for VARINT the average of the frames received so far
+     *
+     * @return values received but not yet read
+     */
+    private int queuedValues() {
+        long bytes = netService.getQueuedBytes();
+        if (format == StreamFormat.VARINT) {
+            // a value takes at least one byte
+            return (int) (varintBytes == 0 ? bytes : bytes * varintValues / varintBytes);
+        }
+        if (format == StreamFormat.KEYED) {
+            // a credit per pair
+            return (int) (bytes / (2 * Integer.BYTES));
+        }
+        return (int) (bytes / Integer.BYTES);
+    }
+
+    /**
+     * Timestamp the read which just returned if it is sampled
+     *
+     * @return System.nanoTime() of a sampled read, 0 otherwise
+     */
+    private long sampleRead() {
+        if (freshness == null || --untilSample > 0) return 0;
+        untilSample = freshness.getInterval();
+        return System.nanoTime();
+    }
+
+    /**
+     * Report a sampled read whose values are now accumulated
+     *
+     * @param read timestamp from sampleRead
+     */
+    private void sampleVisible(long read) {
+        if (read != 0) freshness.visible(read);
+    }
+
+    /**
+     * @param freshness tracker of the read to accumulated latencies, null to not measure
+     */
+    public void setFreshness(FreshnessTracker freshness) {
+        this.freshness = freshness;
+    }
+
+    /**
+     * @param retention store to append the received values to, null to not retain them
+     */
+    public void setRetention(ValueRetention retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * @return per key aggregates, null unless the worker receives a keyed stream
+     */
+    public KeyedAggregates getKeyed() {
+        return keyed;
+    }
+
+    /**
+     * @return history of the received values, null if not retained
+     */
+    public ValueRetention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Make the worker wait after binding its endpoint until it is assigned to a session,
+     * call before the thread is started
+     */
+    public void setPooled() {
+        this.assignment = new CountDownLatch(1);
+    }
+
+    /**
+     * Hand a pooled worker to a session, it accepts its producer from then on
+     * Everything set on the worker before is visible to the worker thread
+     *
+     * @param target status the worker accumulates into
+     * @param format encoding of the values on the stream
+     */
+    public void assign(WorkerStatus target, StreamFormat format) {
+        this.target = target;
+        this.format = format;
+        assignment.countDown();
+    }
+
+    /**
+     * Select the transport, must be called before the thread is started
+     *
+     * @param transport transport the values arrive on
+     */
+    public void setTransport(IngestTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Evict the worker through the given wheel when its stream goes idle,
+     * must be called before the thread is started
+     *
+     * @param timers shared timeouts of the service
+     */
+    public void setTimers(TimingWheel timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * Let a producer whose connection is lost reconnect and continue the stream,
+     * must be called before the thread is started
+     * Every connection then starts with the session token and the worker's resume token,
+     * and the worker answers with the number of values it has accumulated
+     *
+     * @param sessionToken token of the session the worker belongs to
+     * @param timeout      milliseconds to wait for a lost producer, 0 disables
+     */
+    public void setResume(long sessionToken, int timeout) {
+        this.sessionToken = sessionToken;
+        this.resumeTimeout = timeout;
+    }
+
+    /**
+     * @return token the producer presents when connecting to this worker
+     */
+    public long getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * @return loss and duplicate accounting of UDP ingestion
+     */
+    public SequenceTracker getSequenceTracker() {
+        return sequenceTracker;
+    }
+
+    /**
+     * @return flow control of the stream, null if disabled or not yet connected
+     */
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * Set the node id which makes the ids of the workers created after
+     * this call unique across the nodes of a multi-node deployment
+     *
+     * @param id node id, 0 for a single node
+     * @throws IllegalArgumentException if the id is outside 0..MAX_NODE_ID, its
+     *                                  worker ids would collide with another node's
+     */
+    public static void setNodeId(int id) {
+        if (id < 0 || id > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id " + id + " is outside 0.." + MAX_NODE_ID);
+        }
+        nodeId = id;
+    }
+
     /**
      * Close the connection
      */
@@ -150,8 +800,41 @@ public class NumberWorker implements Runnable {
         running.set(false);
     }
 
+    /**
+     * Stop the worker from another thread and drop its connection,
+     * the values accumulated so far stay in its status
+     */
+    public void retire() {
+        LOG.info("Worker " + id + " retiring");
+        closeWorker();
+        // unblocks a pooled worker which was never assigned
+        if (assignment != null) assignment.countDown();
+        NetworkCommunicationService n = netService;
+        // unblocks a worker waiting in a read
+        if (n != null) n.closeConnection();
+    }
+
+    /**
+     * @return false once the worker has ended, been retired or evicted
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return true while the worker has an open stream connection to its producer
+     */
+    public boolean isConnected() {
+        NetworkCommunicationService n = netService;
+        return running.get() && n != null && n.isConnected() && !n.isDisconnected();
+    }
+
     // logger
     private Logger LOG = Logger.getLogger(NumberWorker.class.getName());
-    // logger ids
-    private static int workerId = 1;
+    // logger ids, unique within this node
+    private static AtomicInteger workerId = new AtomicInteger(1);
+    // id of this node, 0 for a single node
+    private static volatile int nodeId = 0;
+    // source of the resume tokens and ring buffer file names
+    private static final SecureRandom RANDOM = new SecureRandom();
 }
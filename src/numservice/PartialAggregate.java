@@ -0,0 +1,99 @@
+package numservice;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Aggregates of a subset of workers which can be merged with
+ * the aggregates of other subsets to answer the queries
+ *
+ * @author Samuel Lindqvist
+ */
+public class PartialAggregate {
+
+    // sum and count of all values of the workers
+    private int sum;
+    private int count;
+    // id and sum of the worker with the largest sum, 0 if there are no workers
+    private int maxSumWorker;
+    private int maxSum = Integer.MIN_VALUE;
+
+    /**
+     * Add one worker's status
+     *
+     * @param workerId id of the worker
+     * @param status   the worker's status
+     */
+    public void add(int workerId, WorkerStatus status) {
+        int workerSum = status.getSum();
+        sum += workerSum;
+        count += status.getCount();
+        if (workerSum > maxSum) {
+            maxSum = workerSum;
+            maxSumWorker = workerId;
+        }
+    }
+
+    /**
+     * Merge another partial aggregate into this one
+     */
+    public void merge(PartialAggregate other) {
+        sum += other.sum;
+        count += other.count;
+        if (other.maxSumWorker != 0 && other.maxSum > maxSum) {
+            maxSum = other.maxSum;
+            maxSumWorker = other.maxSumWorker;
+        }
+    }
+
+    public int getSum() {
+        return sum;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getMaxSumWorker() {
+        return maxSumWorker;
+    }
+
+    public int getMaxSum() {
+        return maxSum;
+    }
+
+    /**
+     * Serialize to a stream
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(sum);
+        out.writeInt(count);
+        out.writeInt(maxSumWorker);
+        out.writeInt(maxSum);
+    }
+
+    /**
+     * Deserialize from a stream
+     */
+    public static PartialAggregate read(DataInputStream in) throws IOException {
+        PartialAggregate p = new PartialAggregate();
+        p.sum = in.readInt();
+        p.count = in.readInt();
+        p.maxSumWorker = in.readInt();
+        p.maxSum = in.readInt();
+        return p;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PartialAggregate)) return false;
+        PartialAggregate p = (PartialAggregate) o;
+        return sum == p.sum && count == p.count && maxSumWorker == p.maxSumWorker && maxSum == p.maxSum;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * sum + count) + maxSumWorker;
+    }
+}
@@ -0,0 +1,24 @@
+package numservice;
+
+/**
+ * How the two longs of a QUERY_RANGE select the retained values, see ValueRetention
+ *
+ * @author Samuel Lindqvist
+ */
+public enum RangeUnit {
+    // first arrival index and the arrival index following the last one
+    INDEX,
+    // epoch milliseconds of the start, inclusive, and of the end, exclusive
+    TIME,
+    // number of most recent values, the second long is ignored
+    LAST;
+
+    /**
+     * @param id id of a unit in a QUERY_RANGE, its ordinal
+     * @return the unit, null if the id is unknown
+     */
+    public static RangeUnit fromId(int id) {
+        RangeUnit[] units = values();
+        return id >= 0 && id < units.length ? units[id] : null;
+    }
+}
@@ -0,0 +1,242 @@
+package numservice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+/**
+ * Producer side of a resumable worker stream
+ * <p>
+ * Every connection starts with the session token and the worker's resume token,
+ * the worker answers with the number of values it has accumulated. Values sent
+ * but not yet acknowledged are kept in a replay buffer, so after a lost connection
+ * the stream reconnects and replays them from where the worker left off instead
+ * of starting the session over. The worker acknowledges every
+ * {@link NumberWorker#ACK_INTERVAL} values and when the stream ends.
+ *
+ * @author Samuel Lindqvist
+ */
+public class ResumableStream implements Closeable {
+
+    // default replay buffer capacity in values, a full buffer waits for an acknowledgement
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    // reconnect attempts after a lost connection and the wait before each
+    public static final int RECONNECT_ATTEMPTS = 10;
+    public static final int RECONNECT_DELAY = 100;
+
+    // worker address
+    private final String host;
+    private final int port;
+
+    // tokens presented on every connection
+    private final long sessionToken;
+    private final long resumeToken;
+
+    // values sent but not acknowledged, value of sequence s at s & mask
+    private final int[] replay;
+    private final int mask;
+    // sequence of the next value to send and the acknowledged sequence
+    private long sent;
+    private long acknowledged;
+
+    // current connection
+    private Socket socket;
+    private ObjectOutputStream oOs;
+    private ObjectInputStream oIs;
+
+    // number of reconnects
+    private int resumes;
+
+    /**
+     * Constructor, connects to the worker
+     *
+     * @param host         worker host
+     * @param port         worker port
+     * @param sessionToken session token received in the handshake
+     * @param resumeToken  resume token of the worker received in the handshake
+     * @param capacity     minimum replay buffer capacity in values, rounded up to a power of two
+     * @throws IOException if the worker could not be reached or rejected the tokens
+     */
+    public ResumableStream(String host, int port, long sessionToken, long resumeToken, int capacity) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.sessionToken = sessionToken;
+        this.resumeToken = resumeToken;
+        int size = Integer.highestOneBit(Math.max(NumberWorker.ACK_INTERVAL * 2, capacity) - 1) << 1;
+        this.replay = new int[size];
+        this.mask = size - 1;
+        connect();
+    }
+
+    /**
+     * Send a value, reconnecting if the connection is lost
+     *
+     * @param value value to add, 0 is reserved for the end of the stream
+     * @throws IOException if the worker could not be reconnected
+     */
+    public void send(int value) throws IOException {
+        if (value == ControlMessage.TERMINATE_STREAM.getValue()) {
+            throw new IllegalArgumentException("0 ends the stream, use close()");
+        }
+        try {
+            readAcknowledgements();
+            while (sent - acknowledged >= replay.length) {
+                // replay buffer full, wait for the worker to catch up
+                oOs.flush();
+                acknowledged = Math.max(acknowledged, oIs.readLong());
+            }
+        } catch (IOException e) {
+            resume(e);
+        }
+        replay[(int) sent & mask] = value;
+        sent++;
+        try {
+            oOs.writeInt(value);
+        } catch (IOException e) {
+            // the value is in the replay buffer
+            resume(e);
+        }
+    }
+
+    /**
+     * Send buffered values to the worker
+     *
+     * @throws IOException if the worker could not be reconnected
+     */
+    public void flush() throws IOException {
+        try {
+            oOs.flush();
+        } catch (IOException e) {
+            resume(e);
+        }
+    }
+
+    /**
+     * End the stream and wait until the worker has acknowledged every value
+     *
+     * @throws IOException if the worker could not be reconnected
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    oOs.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+                    oOs.flush();
+                    while (acknowledged < sent) {
+                        acknowledged = Math.max(acknowledged, oIs.readLong());
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (attempt >= RECONNECT_ATTEMPTS) throw e;
+                    resume(e);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Drop the current connection like a network failure would, for tests
+     */
+    void dropConnection() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * @return number of values sent
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return number of values the worker has acknowledged
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * @return number of times the stream was resumed on a new connection
+     */
+    public int getResumes() {
+        return resumes;
+    }
+
+    /**
+     * Read the acknowledgements which have already arrived, without blocking
+     */
+    private void readAcknowledgements() throws IOException {
+        while (oIs.available() >= Long.BYTES) {
+            acknowledged = Math.max(acknowledged, oIs.readLong());
+        }
+    }
+
+    /**
+     * Connect, present the tokens and replay what the worker has not received
+     *
+     * @throws IOException if the worker could not be reached or rejected the tokens
+     */
+    private void connect() throws IOException {
+        socket = new Socket(host, port);
+        socket.setSoTimeout(NumberService.QUERY_TIMEOUT);
+        oOs = new ObjectOutputStream(socket.getOutputStream());
+        oOs.flush();
+        oIs = new ObjectInputStream(socket.getInputStream());
+        oOs.writeLong(sessionToken);
+        oOs.writeLong(resumeToken);
+        oOs.flush();
+
+        long resumeAt = oIs.readLong();
+        if (resumeAt < acknowledged || resumeAt > sent) {
+            socket.close();
+            throw new IOException("Worker resumed at " + resumeAt + ", expected " + acknowledged + "-" + sent);
+        }
+        acknowledged = resumeAt;
+        for (long s = resumeAt; s < sent; s++) {
+            oOs.writeInt(replay[(int) s & mask]);
+        }
+    }
+
+    /**
+     * Reconnect after a lost connection
+     *
+     * @param cause the failure which lost the connection
+     * @throws IOException if every reconnect attempt failed
+     */
+    private void resume(IOException cause) throws IOException {
+        LOG.info("Connection to worker " + host + ":" + port + " lost after " + sent + " values: " +
+                cause.getMessage());
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already broken
+        }
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            try {
+                connect();
+                resumes++;
+                LOG.info("Resumed stream to worker " + host + ":" + port + " at " + acknowledged +
+                        ", replayed " + (sent - acknowledged) + " values");
+                return;
+            } catch (IOException e) {
+                LOG.info("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            }
+        }
+        throw new IOException("Could not resume the stream to " + host + ":" + port, cause);
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(ResumableStream.class.getName());
+}
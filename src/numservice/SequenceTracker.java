@@ -0,0 +1,124 @@
+package numservice;
+
+/**
+ * Tracks the sequence numbers of received datagrams to detect
+ * lost and duplicated datagrams
+ * <p>
+ * Remembers which of the last {@link #WINDOW} sequence numbers below the highest
+ * one have been received. A datagram older than the window can not be told apart
+ * from a duplicate, so it is counted as late and dropped; if it was not a duplicate
+ * it also stays counted as lost. The 32-bit sequence numbers of the datagrams wrap,
+ * each one is extended to 64 bits by serial number arithmetic: it is taken as newer
+ * than the highest one if it is ahead by less than 2^31, as older otherwise.
+ * Written by one worker thread, read by the queries.
+ *
+ * @author Samuel Lindqvist
+ */
+public class SequenceTracker {
+
+    // number of sequence numbers remembered below the highest one
+    public static final int WINDOW = 1024;
+
+    // received flags of the window, bit (seq % WINDOW)
+    private final long[] received = new long[WINDOW / 64];
+
+    // first and highest received sequence number
+    private long first = -1;
+    private long highest = -1;
+
+    // counters
+    private volatile long unique;
+    private volatile long duplicates;
+    private volatile long late;
+    // highest - first + 1, published for the queries
+    private volatile long expected;
+
+    /**
+     * Register a received datagram
+     *
+     * @param sequence sequence number of the datagram, an unsigned counter wrapping at 2^32
+     * @return true if the datagram is new and its values should be accumulated
+     */
+    public boolean accept(int sequence) {
+        if (highest < 0) {
+            long seq = sequence & 0xFFFFFFFFL;
+            first = seq;
+            highest = seq;
+            set(seq);
+            unique++;
+            expected = 1;
+            return true;
+        }
+
+        // the signed 32-bit distance from the highest one, wrapping like the counter
+        long seq = highest + (sequence - (int) highest);
+        if (seq > highest) {
+            // forget the flags the window slides over
+            long from = Math.max(highest + 1, seq - WINDOW + 1);
+            for (long s = from; s < seq; s++) {
+                clear(s);
+            }
+            highest = seq;
+            set(seq);
+            unique++;
+            expected = highest - first + 1;
+            return true;
+        }
+
+        if (seq <= highest - WINDOW || seq < first) {
+            late++;
+            return false;
+        }
+        if (isSet(seq)) {
+            duplicates++;
+            return false;
+        }
+        // reordered, arrived after a later one
+        set(seq);
+        unique++;
+        return true;
+    }
+
+    /**
+     * @return datagrams missing between the first and the highest received sequence number
+     */
+    public long getLost() {
+        return Math.max(0, expected - unique);
+    }
+
+    /**
+     * @return datagrams received more than once
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return datagrams dropped because they arrived after the window had passed them
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * @return distinct datagrams received
+     */
+    public long getReceived() {
+        return unique;
+    }
+
+    private void set(long seq) {
+        int bit = (int) (seq % WINDOW);
+        received[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long seq) {
+        int bit = (int) (seq % WINDOW);
+        received[bit >>> 6] &= ~(1L << bit);
+    }
+
+    private boolean isSet(long seq) {
+        int bit = (int) (seq % WINDOW);
+        return (received[bit >>> 6] & (1L << bit)) != 0;
+    }
+}
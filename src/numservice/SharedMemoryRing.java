@@ -0,0 +1,182 @@
+package numservice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Single producer single consumer ring buffer of ints in a memory-mapped file,
+ * used by producers running on the same host as the service
+ * <p>
+ * File layout, each index on its own 64 byte cache line:
+ * <pre>
+ *   0  magic, capacity
+ *  64  head, next index the consumer reads
+ * 128  tail, next index the producer writes
+ * 192  capacity ints
+ * </pre>
+ * The producer publishes values with a release store of the tail and the
+ * consumer frees slots with a release store of the head. Values are in
+ * native byte order, so both sides must run on the same host.
+ *
+ * @author Samuel Lindqvist
+ */
+public class SharedMemoryRing implements Closeable {
+
+    // default capacity in values
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // "NSRB"
+    private static final int MAGIC = 0x4E535242;
+    private static final int HEAD_OFFSET = 64;
+    private static final int TAIL_OFFSET = 128;
+    private static final int DATA_OFFSET = 192;
+    // permissions of a new ring file
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    // ordered access to the indexes in the mapped buffer
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+
+    // each side's own index and cached copy of the other side's index
+    private long head;
+    private long tailCache;
+    private long tail;
+    private long headCache;
+
+    private SharedMemoryRing(FileChannel channel, int capacity) throws IOException {
+        this.channel = channel;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + (long) capacity * Integer.BYTES);
+        this.buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Create a new ring file, the consumer side
+     *
+     * The file is created readable and writable by the owner only. It must not exist,
+     * so a file or symbolic link planted at its path is never opened.
+     *
+     * @param file     ring file, must not exist
+     * @param capacity minimum capacity in values, rounded up to a power of two
+     * @return the ring
+     * @throws IOException if the file exists or can not be created or mapped
+     */
+    public static SharedMemoryRing create(Path file, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        Set<OpenOption> options = Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel channel = file.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? FileChannel.open(file, options, PosixFilePermissions.asFileAttribute(OWNER_ONLY))
+                : FileChannel.open(file, options);
+        SharedMemoryRing ring = new SharedMemoryRing(channel, size);
+        LONG.setRelease(ring.buffer, HEAD_OFFSET, 0L);
+        LONG.setRelease(ring.buffer, TAIL_OFFSET, 0L);
+        ring.buffer.putInt(4, size);
+        // magic last, the producer checks it before using the ring
+        ring.buffer.putInt(0, MAGIC);
+        return ring;
+    }
+
+    /**
+     * Open an existing ring file, the producer side
+     *
+     * @param file ring file created by a worker
+     * @return the ring
+     * @throws IOException if the file is not a ring
+     */
+    public static SharedMemoryRing open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, DATA_OFFSET);
+        header.order(ByteOrder.nativeOrder());
+        if (header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a ring buffer: " + file);
+        }
+        SharedMemoryRing ring = new SharedMemoryRing(channel, header.getInt(4));
+        ring.tail = (long) LONG.getAcquire(ring.buffer, TAIL_OFFSET);
+        ring.headCache = (long) LONG.getAcquire(ring.buffer, HEAD_OFFSET);
+        return ring;
+    }
+
+    /**
+     * Producer side: append values and publish them at once
+     *
+     * @return number of values appended, less than length if the ring is full
+     */
+    public int offer(int[] values, int offset, int length) {
+        long free = capacity - (tail - headCache);
+        if (free < length) {
+            headCache = (long) LONG.getAcquire(buffer, HEAD_OFFSET);
+            free = capacity - (tail - headCache);
+        }
+        int n = (int) Math.min(free, length);
+        for (int i = 0; i < n; i++) {
+            buffer.putInt(DATA_OFFSET + (int) ((tail + i) & mask) * Integer.BYTES, values[offset + i]);
+        }
+        tail += n;
+        LONG.setRelease(buffer, TAIL_OFFSET, tail);
+        return n;
+    }
+
+    /**
+     * Producer side: append one value
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(int value) {
+        if (tail - headCache >= capacity) {
+            headCache = (long) LONG.getAcquire(buffer, HEAD_OFFSET);
+            if (tail - headCache >= capacity) return false;
+        }
+        buffer.putInt(DATA_OFFSET + (int) (tail & mask) * Integer.BYTES, value);
+        tail++;
+        LONG.setRelease(buffer, TAIL_OFFSET, tail);
+        return true;
+    }
+
+    /**
+     * Consumer side: move up to batch.length values into batch
+     *
+     * @return number of values moved, 0 if the ring was empty
+     */
+    public int poll(int[] batch) {
+        if (head >= tailCache) {
+            tailCache = (long) LONG.getAcquire(buffer, TAIL_OFFSET);
+            if (head >= tailCache) return 0;
+        }
+        int n = (int) Math.min(batch.length, tailCache - head);
+        for (int i = 0; i < n; i++) {
+            batch[i] = buffer.getInt(DATA_OFFSET + (int) ((head + i) & mask) * Integer.BYTES);
+        }
+        head += n;
+        LONG.setRelease(buffer, HEAD_OFFSET, head);
+        return n;
+    }
+
+    /**
+     * @return capacity in values
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,121 @@
+package numservice;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Lock-free bounded queue of longs for exactly one producer thread
+ * and one consumer thread
+ * <p>
+ * Head and tail live on their own cache lines so the producer and the
+ * consumer do not invalidate each other's line on every operation.
+ * Each side caches the other side's index and only re-reads it when
+ * the cached value says the queue is full or empty.
+ *
+ * @author Samuel Lindqvist
+ */
+public class SpscRingBuffer extends SpscRingTail {
+
+    // padding after the tail
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+
+    // entries, capacity is a power of two
+    private final long[] buffer;
+    private final int mask;
+
+    /**
+     * @param capacity minimum capacity, rounded up to a power of two
+     */
+    public SpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        buffer = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side: append a value
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(long value) {
+        long t = tail;
+        if (t - headCache >= buffer.length) {
+            headCache = (long) HEAD.getAcquire(this);
+            if (t - headCache >= buffer.length) return false;
+        }
+        buffer[(int) t & mask] = value;
+        TAIL.setRelease(this, t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side: move up to batch.length values into batch
+     *
+     * @return number of values moved, 0 if the queue was empty
+     */
+    public int poll(long[] batch) {
+        long h = head;
+        if (h >= tailCache) {
+            tailCache = (long) TAIL.getAcquire(this);
+            if (h >= tailCache) return 0;
+        }
+        int n = (int) Math.min(batch.length, tailCache - h);
+        for (int i = 0; i < n; i++) {
+            batch[i] = buffer[(int) (h + i) & mask];
+        }
+        HEAD.setRelease(this, h + n);
+        return n;
+    }
+
+    /**
+     * @return number of queued values, approximate while both sides are active
+     */
+    public int size() {
+        return (int) ((long) TAIL.getAcquire(this) - (long) HEAD.getAcquire(this));
+    }
+
+    /**
+     * @return maximum number of queued values
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    // index handles
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(SpscRingHead.class, "head", long.class);
+            TAIL = lookup.findVarHandle(SpscRingTail.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
+
+// the superclasses fix the field layout: pad, head, pad, tail, pad
+
+abstract class SpscRingPad0 {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SpscRingHead extends SpscRingPad0 {
+    // next index to read, written by the consumer
+    volatile long head;
+    // consumer's cached copy of the tail
+    long tailCache;
+}
+
+abstract class SpscRingPad1 extends SpscRingHead {
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SpscRingTail extends SpscRingPad1 {
+    // next index to write, written by the producer
+    volatile long tail;
+    // producer's cached copy of the head
+    long headCache;
+}
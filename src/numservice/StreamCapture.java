@@ -0,0 +1,246 @@
+package numservice;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * Records every value received by the workers and every query received
+ * on the control channel into a compact binary file, so that a session
+ * can later be replayed against a service
+ * <p>
+ * File layout: header (magic, version, stream format id, worker count, worker ids
+ * in port order) followed by fixed size records (kind, microseconds since previous
+ * record, channel, value). Control channel records use channel {@link #CONTROL_CHANNEL}.
+ * <p>
+ * On an {@link StreamFormat#INT} stream a value 0 ends the stream as on the wire.
+ * The framed formats carry 0 as a value, their end is a {@link #KIND_END} record.
+ * The arguments of a query follow it as {@link #KIND_ARGUMENT} records, a long as
+ * two records, high half first. Only the first int of an answer is recorded.
+ *
+ * @author Samuel Lindqvist
+ */
+public class StreamCapture {
+
+    // channel id of the control channel, worker channels use the worker id
+    public static final int CONTROL_CHANNEL = -1;
+
+    // record kinds
+    public static final byte KIND_VALUE = 0;
+    public static final byte KIND_QUERY = 1;
+    public static final byte KIND_ANSWER = 2;
+    public static final byte KIND_END = 3;
+    public static final byte KIND_ARGUMENT = 4;
+
+    // file header, "NSCA"
+    private static final int MAGIC = 0x4E534341;
+    private static final short VERSION = 2;
+    // captures before the format was recorded, all INT streams
+    private static final short VERSION_INT_ONLY = 1;
+
+    // buffered file output
+    private final DataOutputStream out;
+    // timestamp of the previous record
+    private long lastNanos;
+
+    /**
+     * Create the capture file of INT streams and write the header
+     *
+     * @param file      capture file
+     * @param workerIds ids of the workers, in the order their ports were sent to the client
+     * @throws IOException if the file can not be written
+     */
+    public StreamCapture(Path file, int[] workerIds) throws IOException {
+        this(file, workerIds, StreamFormat.INT);
+    }
+
+    /**
+     * Create the capture file and write the header
+     *
+     * @param file      capture file
+     * @param workerIds ids of the workers, in the order their ports were sent to the client
+     * @param format    format of the worker streams, replayed in the same framing
+     * @throws IOException if the file can not be written
+     */
+    public StreamCapture(Path file, int[] workerIds, StreamFormat format) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(format.getId());
+        out.writeInt(workerIds.length);
+        for (int id : workerIds) {
+            out.writeInt(id);
+        }
+        lastNanos = System.nanoTime();
+        LOG.info("Capturing " + workerIds.length + " " + format + " worker streams to " + file);
+    }
+
+    /**
+     * Record a value received by a worker
+     */
+    public void recordValue(int workerId, int value) {
+        record(KIND_VALUE, workerId, value);
+    }
+
+    /**
+     * Record the end of a framed worker stream
+     */
+    public void recordEnd(int workerId) {
+        record(KIND_END, workerId, 0);
+    }
+
+    /**
+     * Record a query received on the control channel
+     */
+    public void recordQuery(int query) {
+        record(KIND_QUERY, CONTROL_CHANNEL, query);
+    }
+
+    /**
+     * Record an int argument of the previous query
+     */
+    public void recordArgument(int argument) {
+        record(KIND_ARGUMENT, CONTROL_CHANNEL, argument);
+    }
+
+    /**
+     * Record a long argument of the previous query
+     */
+    public void recordArgument(long argument) {
+        recordArgument((int) (argument >>> 32));
+        recordArgument((int) argument);
+    }
+
+    /**
+     * Record the answer sent to the previous query
+     */
+    public void recordAnswer(int answer) {
+        record(KIND_ANSWER, CONTROL_CHANNEL, answer);
+    }
+
+    /**
+     * Append one record, workers record concurrently so writes are serialized
+     */
+    private synchronized void record(byte kind, int channel, int value) {
+        long now = System.nanoTime();
+        try {
+            out.writeByte(kind);
+            out.writeInt((int) ((now - lastNanos) / 1000));
+            out.writeInt(channel);
+            out.writeInt(value);
+        } catch (IOException e) {
+            LOG.warning("Error writing capture record: " + e.getMessage());
+        }
+        lastNanos = now;
+    }
+
+    /**
+     * Flush and close the capture file
+     */
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warning("Failed closing the capture file");
+        }
+    }
+
+    /**
+     * Sequential reader for a capture file
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final StreamFormat format;
+        private final int[] workerIds;
+
+        // fields of the current record
+        private byte kind;
+        private long offsetMicros;
+        private int channel;
+        private int value;
+
+        /**
+         * Open a capture file and read the header
+         *
+         * @param file capture file
+         * @throws Exception if the file is not a capture
+         */
+        public Reader(Path file) throws Exception {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            short version = in.readInt() == MAGIC ? in.readShort() : -1;
+            if (version != VERSION && version != VERSION_INT_ONLY) {
+                in.close();
+                throw new Exception("Not a capture file: " + file);
+            }
+            format = version == VERSION_INT_ONLY ? StreamFormat.INT : StreamFormat.fromId(in.readInt());
+            if (format == null) {
+                in.close();
+                throw new Exception("Unknown stream format in capture file: " + file);
+            }
+            workerIds = new int[in.readInt()];
+            for (int i = 0; i < workerIds.length; i++) {
+                workerIds[i] = in.readInt();
+            }
+        }
+
+        /**
+         * @return format of the captured worker streams
+         */
+        public StreamFormat getFormat() {
+            return format;
+        }
+
+        /**
+         * @return worker ids in the order their ports were sent to the client
+         */
+        public int[] getWorkerIds() {
+            return workerIds;
+        }
+
+        /**
+         * Advance to the next record
+         *
+         * @return false at the end of the capture
+         */
+        public boolean next() throws IOException {
+            try {
+                kind = in.readByte();
+                offsetMicros += in.readInt();
+                channel = in.readInt();
+                value = in.readInt();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        /**
+         * @return microseconds from the start of the capture to the current record
+         */
+        public long getOffsetMicros() {
+            return offsetMicros;
+        }
+
+        public int getChannel() {
+            return channel;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(StreamCapture.class.getName());
+}
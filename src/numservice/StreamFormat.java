@@ -0,0 +1,35 @@
+package numservice;
+
+/**
+ * Encoding of the values on a worker stream
+ *
+ * @author Samuel Lindqvist
+ */
+public enum StreamFormat {
+    // one int per value, 0 ends the stream
+    INT,
+    // frames of an int length followed by that many ints, length 0 ends the stream
+    BLOCK,
+    // frames of an int byte length followed by delta zigzag varints, see VarintCodec,
+    // length 0 ends the stream
+    VARINT,
+    // frames of an int length followed by that many ints, alternating keys and values,
+    // see KeyedAggregates, length 0 ends the stream
+    KEYED;
+
+    /**
+     * @return id of the format in a format request of the handshake
+     */
+    public int getId() {
+        return ordinal() + 1;
+    }
+
+    /**
+     * @param id id from a format request
+     * @return the format, null if the id is unknown
+     */
+    public static StreamFormat fromId(int id) {
+        StreamFormat[] formats = values();
+        return id >= 1 && id <= formats.length ? formats[id - 1] : null;
+    }
+}
@@ -0,0 +1,343 @@
+package numservice;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical hashed timing wheel shared by all the timeouts of the service
+ * <p>
+ * One thread advances the wheel every tick. Level 0 has a slot per tick,
+ * each higher level has a slot per full turn of the level below it, and when
+ * a lower level wraps around the next slot of the level above is cascaded
+ * down into it. A timeout is a node of an intrusive doubly linked slot list,
+ * so scheduling, cancelling and expiring are O(1) and no task is scheduled
+ * per connection. Other threads only enqueue new and cancelled timeouts,
+ * the wheel itself is touched by the wheel thread alone. Tasks run on the
+ * wheel thread and must not block.
+ *
+ * @author Samuel Lindqvist
+ */
+public class TimingWheel implements Runnable {
+
+    // default tick length in milliseconds
+    public static final int DEFAULT_TICK = 100;
+
+    // slots per level and levels, together they cover SLOTS^LEVELS ticks
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    // longest delay that fits, longer ones are cascaded again when their slot comes up
+    private static final long RANGE = 1L << (SLOT_BITS * LEVELS);
+
+    // milliseconds per tick
+    private final int tickMillis;
+    // slot list heads, [level][slot]
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+
+    // current tick, written by the wheel thread only
+    private volatile long tick;
+
+    // timeouts waiting to be put into the wheel or taken out of it
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    // number of timeouts waiting in the wheel
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // running flag
+    private AtomicBoolean running;
+
+    /**
+     * Constructor
+     *
+     * @param tickMillis milliseconds per tick, the resolution of the timeouts
+     */
+    public TimingWheel(int tickMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.running = new AtomicBoolean(true);
+    }
+
+    /**
+     * Create a wheel and start its daemon thread
+     *
+     * @param name name of the thread
+     * @return the running wheel
+     */
+    public static TimingWheel start(String name) {
+        TimingWheel wheel = new TimingWheel(DEFAULT_TICK);
+        Thread thread = new Thread(wheel, name);
+        thread.setDaemon(true);
+        thread.start();
+        return wheel;
+    }
+
+    /**
+     * Thread body
+     * Advance one tick at a time, catching up if the thread was late
+     */
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        while (running.get()) {
+            long due = start + (tick + 1) * tickMillis * 1000000L;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            advance();
+        }
+        LOG.info("Timing wheel exiting with " + pending.get() + " pending timeouts");
+    }
+
+    /**
+     * Run a task once after a delay
+     *
+     * @param task  task to run on the wheel thread
+     * @param delay milliseconds from now, rounded up to whole ticks
+     * @return handle for cancelling
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        long ticks = Math.max(1, (delay + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task, tick + ticks);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Run a task when a progress counter has not moved for a whole idle period
+     * <p>
+     * The counter is only sampled when the timeout expires and the timeout
+     * is then scheduled again, so the owner of the counter does no timer work
+     * per event. Idleness is detected between one and two idle periods after
+     * the last event.
+     *
+     * @param progress counter which moves while the watched party is active
+     * @param idle     milliseconds of no progress
+     * @param onIdle   task to run when idle, runs once
+     * @return handle for stopping the watch
+     */
+    public Watch watchIdle(LongSupplier progress, long idle, Runnable onIdle) {
+        Watch watch = new Watch(progress, idle, onIdle);
+        watch.arm();
+        return watch;
+    }
+
+    /**
+     * Advance the wheel by one tick and expire the timeouts due
+     * Package private for tests, which drive the wheel without its thread
+     */
+    void advance() {
+        long now = tick + 1;
+        tick = now;
+
+        // cascade the levels which wrapped around, highest first
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((now & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                int slot = (int) (now >>> (SLOT_BITS * level)) & (SLOTS - 1);
+                Timeout t = slots[level][slot];
+                slots[level][slot] = null;
+                while (t != null) {
+                    Timeout next = t.next;
+                    t.prev = t.next = null;
+                    place(t, now);
+                    t = next;
+                }
+            }
+        }
+
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            unlink(t);
+        }
+        while ((t = added.poll()) != null) {
+            if (t.state.get() == Timeout.CANCELLED) continue;
+            place(t, now);
+        }
+
+        // everything in the current level 0 slot is due
+        int slot = (int) now & (SLOTS - 1);
+        t = slots[0][slot];
+        slots[0][slot] = null;
+        while (t != null) {
+            Timeout next = t.next;
+            t.prev = t.next = null;
+            t.level = -1;
+            if (t.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                pending.decrementAndGet();
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    LOG.warning("Timeout task failed: " + e);
+                }
+            }
+            t = next;
+        }
+    }
+
+    /**
+     * Put a timeout in the slot of the lowest level its deadline fits in
+     */
+    private void place(Timeout t, long now) {
+        long deadline = Math.max(t.deadline, now);
+        long delta = deadline - now;
+        if (delta >= RANGE) {
+            // cascaded again from the top level until it fits
+            deadline = now + RANGE - 1;
+            delta = RANGE - 1;
+        }
+        int level = 0;
+        while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) (deadline >>> (SLOT_BITS * level)) & (SLOTS - 1);
+        t.level = level;
+        t.slot = slot;
+        t.next = slots[level][slot];
+        if (t.next != null) t.next.prev = t;
+        slots[level][slot] = t;
+    }
+
+    /**
+     * Take a cancelled timeout out of its slot
+     */
+    private void unlink(Timeout t) {
+        if (t.level < 0) return;
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else if (slots[t.level][t.slot] == t) {
+            slots[t.level][t.slot] = t.next;
+        }
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.level = -1;
+    }
+
+    /**
+     * @return number of timeouts waiting to expire
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return milliseconds per tick
+     */
+    public int getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Stop the wheel thread, pending timeouts never expire
+     */
+    public void stop() {
+        running.set(false);
+    }
+
+    /**
+     * A scheduled task
+     */
+    public class Timeout {
+
+        static final int WAITING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        // task and its deadline in ticks
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // position in the wheel, level -1 when not in a slot, wheel thread only
+        private Timeout prev;
+        private Timeout next;
+        private int level = -1;
+        private int slot;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout
+         *
+         * @return false if it had already expired or been cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * @return true if the task has been run
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * An idle watch, a timeout which schedules itself again while there is progress
+     */
+    public class Watch {
+
+        // watched counter and its value when last sampled
+        private final LongSupplier progress;
+        private long lastProgress;
+
+        private final long idle;
+        private final Runnable onIdle;
+
+        // current timeout, null when stopped
+        private volatile Timeout timeout;
+        private volatile boolean stopped;
+
+        private Watch(LongSupplier progress, long idle, Runnable onIdle) {
+            this.progress = progress;
+            this.lastProgress = progress.getAsLong();
+            this.idle = idle;
+            this.onIdle = onIdle;
+        }
+
+        private void arm() {
+            timeout = schedule(this::check, idle);
+            // a concurrent stop may have missed the new timeout
+            if (stopped) timeout.cancel();
+        }
+
+        private void check() {
+            if (stopped) return;
+            long current = progress.getAsLong();
+            if (current == lastProgress) {
+                stopped = true;
+                onIdle.run();
+                return;
+            }
+            lastProgress = current;
+            arm();
+        }
+
+        /**
+         * Stop watching, the idle task will not run
+         */
+        public void stop() {
+            stopped = true;
+            Timeout t = timeout;
+            if (t != null) t.cancel();
+        }
+    }
+
+    // logger
+    private Logger LOG = Logger.getLogger(TimingWheel.class.getName());
+}
@@ -0,0 +1,367 @@
+package numservice;
+
+import java.util.Arrays;
+
+/**
+ * Compressed in-memory history of the values a worker received,
+ * for sum, count, min and max over a range of them
+ * <p>
+ * Values are appended to an open chunk of {@link #CHUNK_VALUES} ints. A full
+ * chunk is sealed into its min, max and sum and its values as offsets from the
+ * min, bit packed with the width the largest offset needs. Range queries take
+ * whole chunks from their summaries and only unpack the chunks at the ends of
+ * the range. The oldest chunks are dropped once the retention limit is reached.
+ * <p>
+ * Values are addressed by arrival index, the number of values the worker
+ * received before them. Times are resolved to arrival indexes through marks
+ * taken every {@link #TIME_RESOLUTION} milliseconds. At most {@link #MARKS_PER_CHUNK}
+ * marks per retained chunk are kept, beyond that every second one is dropped and marks
+ * are taken half as often, so the time resolution of a long, slow history coarsens
+ * instead of the marks growing without limit before the oldest chunk is dropped. The worker appends and the
+ * query thread reads under the store's lock, which is uncontended between queries.
+ *
+ * @author Samuel Lindqvist
+ */
+public class ValueRetention {
+
+    // values per chunk
+    public static final int CHUNK_VALUES = 4096;
+    // milliseconds between two time marks
+    public static final int TIME_RESOLUTION = 100;
+    // time marks kept per retained chunk
+    public static final int MARKS_PER_CHUNK = 64;
+
+    // sealed chunks, a ring with the oldest at head
+    private final Chunk[] chunks;
+    private int head;
+    private int sealed;
+    // arrival index of the oldest retained value
+    private long start;
+
+    // values of the chunk being filled
+    private final int[] open = new int[CHUNK_VALUES];
+    private int openCount;
+
+    // time marks, the arrival index of the first value of every markStride periods values arrived in
+    private long[] markTimes = new long[64];
+    private long[] markIndexes = new long[64];
+    private int markCount;
+    private long lastPeriod = -1;
+    // periods between two marks, doubled whenever the marks are thinned
+    private long markStride = 1;
+    // most marks kept
+    private final int maxMarks;
+
+    /**
+     * Constructor
+     *
+     * @param maxValues number of most recent values to retain, rounded up to whole chunks
+     */
+    public ValueRetention(long maxValues) {
+        this.chunks = new Chunk[(int) Math.max(1, (maxValues + CHUNK_VALUES - 1) / CHUNK_VALUES)];
+        this.maxMarks = (int) Math.min((long) chunks.length * MARKS_PER_CHUNK, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Append a single received value
+     *
+     * @param value received value
+     */
+    public void append(int value) {
+        append(value, System.currentTimeMillis());
+    }
+
+    /**
+     * Append a single value received at the given time
+     *
+     * @param value  received value
+     * @param millis epoch milliseconds of the arrival, not before the previous one
+     */
+    synchronized void append(int value, long millis) {
+        mark(millis);
+        open[openCount++] = value;
+        if (openCount == CHUNK_VALUES) seal();
+    }
+
+    /**
+     * Append a block of received values
+     *
+     * @param values received values
+     * @param count  number of values
+     */
+    public synchronized void append(int[] values, int count) {
+        mark(System.currentTimeMillis());
+        int i = 0;
+        while (i < count) {
+            int n = Math.min(count - i, CHUNK_VALUES - openCount);
+            System.arraycopy(values, i, open, openCount, n);
+            openCount += n;
+            i += n;
+            if (openCount == CHUNK_VALUES) seal();
+        }
+    }
+
+    /**
+     * @return arrival index of the oldest retained value
+     */
+    public synchronized long getStart() {
+        return start;
+    }
+
+    /**
+     * @return arrival index following the newest value
+     */
+    public synchronized long getEnd() {
+        return end();
+    }
+
+    /**
+     * @return bytes of packed values held by the sealed chunks
+     */
+    public synchronized long getPackedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < sealed; i++) bytes += chunk(i).packed.length * (long) Long.BYTES;
+        return bytes;
+    }
+
+    /**
+     * Aggregate the retained values of an arrival index range
+     *
+     * @param from first arrival index
+     * @param to   arrival index following the last one
+     * @return aggregate of the retained part of the range
+     */
+    public synchronized Aggregate aggregate(long from, long to) {
+        Aggregate a = new Aggregate();
+        from = Math.max(from, start);
+        to = Math.min(to, end());
+        if (from >= to) return a;
+
+        // sealed chunks
+        int first = (int) ((from - start) / CHUNK_VALUES);
+        for (int k = first; k < sealed; k++) {
+            long chunkStart = start + (long) k * CHUNK_VALUES;
+            if (chunkStart >= to) return a;
+            Chunk c = chunk(k);
+            if (from <= chunkStart && chunkStart + CHUNK_VALUES <= to) {
+                a.add(c.sum, CHUNK_VALUES, c.min, c.max);
+            } else {
+                int i = (int) (Math.max(from, chunkStart) - chunkStart);
+                int end = (int) (Math.min(to, chunkStart + CHUNK_VALUES) - chunkStart);
+                for (; i < end; i++) a.add(c.get(i));
+            }
+        }
+
+        // open chunk
+        long openStart = start + (long) sealed * CHUNK_VALUES;
+        int i = (int) (Math.max(from, openStart) - openStart);
+        int end = (int) (to - openStart);
+        for (; i < end; i++) a.add(open[i]);
+        return a;
+    }
+
+    /**
+     * Aggregate the values which arrived in a time range, both ends are
+     * rounded down to {@link #TIME_RESOLUTION}
+     *
+     * @param fromMillis epoch milliseconds of the start, inclusive
+     * @param toMillis   epoch milliseconds of the end, exclusive
+     * @return aggregate of the retained part of the range
+     */
+    public synchronized Aggregate aggregateTime(long fromMillis, long toMillis) {
+        return aggregate(indexAt(fromMillis), indexAt(toMillis));
+    }
+
+    /**
+     * Aggregate the most recent values
+     *
+     * @param count number of values
+     * @return aggregate of the retained part of the most recent values
+     */
+    public synchronized Aggregate aggregateLast(long count) {
+        long end = end();
+        return aggregate(end - count, end);
+    }
+
+    private long end() {
+        return start + (long) sealed * CHUNK_VALUES + openCount;
+    }
+
+    private Chunk chunk(int k) {
+        return chunks[(head + k) % chunks.length];
+    }
+
+    private void seal() {
+        Chunk c = new Chunk(open, CHUNK_VALUES);
+        if (sealed == chunks.length) {
+            // drop the oldest
+            chunks[head] = null;
+            head = (head + 1) % chunks.length;
+            sealed--;
+            start += CHUNK_VALUES;
+            trimMarks();
+        }
+        chunks[(head + sealed) % chunks.length] = c;
+        sealed++;
+        openCount = 0;
+    }
+
+    /**
+     * Mark the arrival index of the next value if a new period has started
+     */
+    private void mark(long now) {
+        long period = now / TIME_RESOLUTION;
+        if (lastPeriod >= 0 && period < lastPeriod + markStride) return;
+        lastPeriod = period;
+        if (markCount == maxMarks) thinMarks();
+        if (markCount == markTimes.length) {
+            markTimes = Arrays.copyOf(markTimes, Math.min(markCount * 2, maxMarks));
+            markIndexes = Arrays.copyOf(markIndexes, Math.min(markCount * 2, maxMarks));
+        }
+        markTimes[markCount] = period * TIME_RESOLUTION;
+        markIndexes[markCount] = end();
+        markCount++;
+    }
+
+    /**
+     * Drop every second mark and take marks half as often,
+     * the first one still bounds the retained values
+     */
+    private void thinMarks() {
+        markStride *= 2;
+        int kept = 0;
+        for (int i = 0; i < markCount; i += 2, kept++) {
+            markTimes[kept] = markTimes[i];
+            markIndexes[kept] = markIndexes[i];
+        }
+        markCount = kept;
+    }
+
+    /**
+     * @return number of time marks held
+     */
+    synchronized int getMarkCount() {
+        return markCount;
+    }
+
+    /**
+     * Drop the marks of dropped values, the newest of them still bounds the retained ones
+     */
+    private void trimMarks() {
+        int drop = 0;
+        while (drop + 1 < markCount && markIndexes[drop + 1] <= start) drop++;
+        if (drop == 0) return;
+        System.arraycopy(markTimes, drop, markTimes, 0, markCount - drop);
+        System.arraycopy(markIndexes, drop, markIndexes, 0, markCount - drop);
+        markCount -= drop;
+    }
+
+    /**
+     * @return arrival index of the first value which arrived in the period of the time or later
+     */
+    private long indexAt(long millis) {
+        long time = millis / TIME_RESOLUTION * TIME_RESOLUTION;
+        int lo = 0;
+        int hi = markCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (markTimes[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo < markCount ? markIndexes[lo] : end();
+    }
+
+    /**
+     * Sum, count, min and max of a range
+     */
+    public static final class Aggregate {
+
+        private long sum;
+        private long count;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+
+        void add(int value) {
+            sum += value;
+            count++;
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+
+        void add(long chunkSum, int chunkCount, int chunkMin, int chunkMax) {
+            sum += chunkSum;
+            count += chunkCount;
+            if (chunkMin < min) min = chunkMin;
+            if (chunkMax > max) max = chunkMax;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return smallest value, Integer.MAX_VALUE if the range is empty
+         */
+        public int getMin() {
+            return min;
+        }
+
+        /**
+         * @return largest value, Integer.MIN_VALUE if the range is empty
+         */
+        public int getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Sealed chunk, the values as bit packed offsets from the smallest one
+     */
+    static final class Chunk {
+
+        final int min;
+        final int max;
+        final long sum;
+        // bits per offset, 0 if all values are equal
+        final int width;
+        final long[] packed;
+
+        Chunk(int[] values, int count) {
+            int lo = Integer.MAX_VALUE;
+            int hi = Integer.MIN_VALUE;
+            long s = 0;
+            for (int i = 0; i < count; i++) {
+                lo = Math.min(lo, values[i]);
+                hi = Math.max(hi, values[i]);
+                s += values[i];
+            }
+            min = lo;
+            max = hi;
+            sum = s;
+            width = 64 - Long.numberOfLeadingZeros((long) hi - lo);
+            packed = new long[(int) (((long) count * width + 63) / 64)];
+            long position = 0;
+            for (int i = 0; i < count && width > 0; i++, position += width) {
+                long offset = (long) values[i] - lo;
+                int word = (int) (position >>> 6);
+                int shift = (int) (position & 63);
+                packed[word] |= offset << shift;
+                if (shift + width > 64) packed[word + 1] |= offset >>> (64 - shift);
+            }
+        }
+
+        int get(int i) {
+            if (width == 0) return min;
+            long position = (long) i * width;
+            int word = (int) (position >>> 6);
+            int shift = (int) (position & 63);
+            long bits = packed[word] >>> shift;
+            if (shift + width > 64) bits |= packed[word + 1] << (64 - shift);
+            return (int) (min + (bits & ((1L << width) - 1)));
+        }
+    }
+}
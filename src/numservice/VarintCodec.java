@@ -0,0 +1,137 @@
+package numservice;
+
+/**
+ * Delta, zigzag and varint coding of the values of a {@link StreamFormat#VARINT} frame
+ * <p>
+ * Each value is stored as its difference to the previous value of the frame,
+ * the first one to 0. The difference is zigzagged so small negative differences
+ * become small positive numbers, and written 7 bits per byte, low bits first,
+ * with the high bit set on every byte but the last. A difference within
+ * -64..63 takes one byte, any int at most {@link #MAX_BYTES}.
+ *
+ * @author Samuel Lindqvist
+ */
+public class VarintCodec {
+
+    // longest encoding of one value
+    public static final int MAX_BYTES = 5;
+
+    private VarintCodec() {
+    }
+
+    /**
+     * Encode values into a frame
+     *
+     * @param values source values
+     * @param count  number of values
+     * @param frame  destination, at least count * MAX_BYTES long
+     * @return number of bytes written
+     */
+    public static int encode(int[] values, int count, byte[] frame) {
+        return encode(values, 0, count, frame);
+    }
+
+    /**
+     * Encode a part of the values into a frame
+     *
+     * @param values source values
+     * @param offset index of the first value, encoded against 0 like the first of a frame
+     * @param count  number of values
+     * @param frame  destination, at least count * MAX_BYTES long
+     * @return number of bytes written
+     */
+    public static int encode(int[] values, int offset, int count, byte[] frame) {
+        int p = 0;
+        int previous = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int delta = values[i] - previous;
+            previous = values[i];
+            int v = (delta << 1) ^ (delta >> 31);
+            while ((v & ~0x7F) != 0) {
+                frame[p++] = (byte) (v | 0x80);
+                v >>>= 7;
+            }
+            frame[p++] = (byte) v;
+        }
+        return p;
+    }
+
+    /**
+     * Decode a frame into values
+     *
+     * @param frame  encoded frame
+     * @param length number of bytes in the frame
+     * @param values destination, long enough for every value of the frame
+     * @return number of values, -1 if the frame is malformed
+     */
+    public static int decode(byte[] frame, int length, int[] values) {
+        if (!isComplete(frame, length)) return -1;
+        int count = 0;
+        int previous = 0;
+        int p = 0;
+        while (p < length) {
+            int v = frame[p++];
+            if (v < 0) {
+                // continuation bytes, rare for small differences
+                v &= 0x7F;
+                int shift = 7;
+                int b;
+                do {
+                    b = frame[p++];
+                    v |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+            }
+            previous += (v >>> 1) ^ -(v & 1);
+            values[count++] = previous;
+        }
+        return count;
+    }
+
+    /**
+     * Decode a frame and accumulate its values in the same pass,
+     * the status is updated once for the whole frame
+     *
+     * @param frame  encoded frame
+     * @param length number of bytes in the frame
+     * @param target status to add the values to
+     * @return number of values, -1 if the frame is malformed
+     */
+    public static int accumulate(byte[] frame, int length, WorkerStatus target) {
+        if (!isComplete(frame, length)) return -1;
+        int count = 0;
+        int sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int previous = 0;
+        int p = 0;
+        while (p < length) {
+            int v = frame[p++];
+            if (v < 0) {
+                v &= 0x7F;
+                int shift = 7;
+                int b;
+                do {
+                    b = frame[p++];
+                    v |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+            }
+            previous += (v >>> 1) ^ -(v & 1);
+            sum += previous;
+            // conditional moves, no branches
+            min = Math.min(min, previous);
+            max = Math.max(max, previous);
+            count++;
+        }
+        if (count > 0) target.addBlock(sum, count, min, max);
+        return count;
+    }
+
+    /**
+     * A frame must end with the last byte of a value, then no varint reads past it
+     */
+    private static boolean isComplete(byte[] frame, int length) {
+        return length == 0 || frame[length - 1] >= 0;
+    }
+}
@@ -0,0 +1,174 @@
+package numservice;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Warm workers whose threads are started and whose endpoints are bound
+ * before any session asks for them
+ * <p>
+ * A background thread keeps the pool full, one worker at a time in id order,
+ * so a session start takes ready workers instead of starting threads and
+ * scanning for free ports. A pooled worker waits bound until it is assigned,
+ * see {@link NumberWorker#assign}. Only the stream transports are pooled.
+ *
+ * @author Samuel Lindqvist
+ */
+public class WorkerPool implements Runnable {
+
+    // milliseconds a session waits for the pool before starting a cold worker
+    public static final int TAKE_TIMEOUT = 1000;
+
+    // bound workers waiting for a session, in id order
+    private final LinkedBlockingQueue<Pooled> idle = new LinkedBlockingQueue<>();
+    // free places of the pool, the refill thread takes one per worker it starts
+    private final Semaphore vacancies;
+    // transport of the pooled workers
+    private final IngestTransport transport;
+
+    // running flag
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private Thread thread;
+
+    /**
+     * Constructor
+     *
+     * @param size      number of warm workers to keep
+     * @param transport transport of the workers, TCP, UNIX or LOOPBACK
+     */
+    public WorkerPool(int size, IngestTransport transport) {
+        this.vacancies = new Semaphore(size);
+        this.transport = transport;
+    }
+
+    /**
+     * Create a pool and start filling it in the background
+     *
+     * @param size      number of warm workers to keep
+     * @param transport transport of the workers, TCP, UNIX or LOOPBACK
+     * @return the started pool
+     */
+    public static WorkerPool start(int size, IngestTransport transport) {
+        WorkerPool pool = new WorkerPool(size, transport);
+        pool.thread = new Thread(pool, "worker-pool");
+        pool.thread.setDaemon(true);
+        pool.thread.start();
+        return pool;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running.get()) {
+                vacancies.acquire();
+                if (!running.get()) break;
+                Pooled pooled = startWorker();
+                if (pooled != null && !running.get()) {
+                    // closed while the worker was starting
+                    pooled.worker.retire();
+                    break;
+                } else if (pooled != null) {
+                    idle.put(pooled);
+                } else {
+                    // back off, sessions start cold workers meanwhile
+                    vacancies.release();
+                    Thread.sleep(TAKE_TIMEOUT);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Take a warm worker, waiting for the refill if the pool has run dry
+     * The thread of the worker is added to the given list.
+     *
+     * @param threads list of the session's worker threads
+     * @return a bound worker waiting for {@link NumberWorker#assign}, null if none became ready in time
+     */
+    public NumberWorker take(List<Thread> threads) {
+        Pooled pooled;
+        try {
+            pooled = idle.poll(TAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (pooled == null) {
+            LOG.warning("No warm worker ready in " + TAKE_TIMEOUT + " ms");
+            return null;
+        }
+        vacancies.release();
+        threads.add(pooled.thread);
+        return pooled.worker;
+    }
+
+    /**
+     * @return number of warm workers ready to be taken
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * Stop refilling and retire the workers nobody took,
+     * including one the refill thread was starting
+     */
+    public void close() {
+        running.set(false);
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                LOG.warning("Interrupted while waiting for the pool refill");
+                Thread.currentThread().interrupt();
+            }
+        }
+        Pooled pooled;
+        while ((pooled = idle.poll()) != null) {
+            pooled.worker.retire();
+        }
+    }
+
+    private Pooled startWorker() {
+        NumberWorker worker = new NumberWorker(null, StreamFormat.INT);
+        worker.setTransport(transport);
+        worker.setPooled();
+        Thread workerThread = new Thread(worker);
+        workerThread.setPriority(NumberService.INGEST_PRIORITY);
+        workerThread.start();
+
+        // poll for the endpoint
+        while (worker.getPort() == 0 && worker.getEndpointPath() == null && workerThread.isAlive()) {
+            Thread.onSpinWait();
+        }
+        if (worker.getPort() == 0 && worker.getEndpointPath() == null) {
+            LOG.warning("Worker " + worker.getId() + " could not bind, not pooled");
+            return null;
+        }
+        LOG.info("Worker " + worker.getId() + " ready in the pool");
+        return new Pooled(worker, workerThread);
+    }
+
+    /**
+     * A warm worker and its thread
+     */
+    private static final class Pooled {
+
+        final NumberWorker worker;
+        final Thread thread;
+
+        Pooled(NumberWorker worker, Thread thread) {
+            this.worker = worker;
+            this.thread = thread;
+        }
+    }
+
+    private Logger LOG = Logger.getLogger(WorkerPool.class.getName());
+}
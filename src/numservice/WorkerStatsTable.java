@@ -0,0 +1,159 @@
+package numservice;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Statistics of all the workers of a service in a primitive array,
+ * one record of fields per worker slot
+ * <p>
+ * The slots are split into segments which are never moved, so the {@link WorkerStatus}
+ * views of the slots stay valid while workers are added. The first segment has
+ * {@link #FIRST_SEGMENT_SLOTS} slots and each one added after it twice as many as the one
+ * before, a service with a few workers allocates a few lines instead of a fixed block.
+ * A slot's fields share one {@link #RECORD} ints long record, one cache line, so workers
+ * updating their own slots never write the same line and the slots of many workers cost
+ * one line each rather than one per field.
+ * The queries sweep the records from start to end instead of chasing a map entry,
+ * a status object and an atomic per worker.
+ *
+ * @author Samuel Lindqvist
+ */
+public class WorkerStatsTable {
+
+    // slots of the first segment, a power of two
+    public static final int FIRST_SEGMENT_SLOTS = 16;
+    // ints from one slot to the next
+    static final int RECORD = 16;
+    // field offsets in a slot's record
+    static final int SUM = 0;
+    static final int COUNT = 1;
+    static final int MIN = 2;
+    static final int MAX = 3;
+    // worker id of the slot, 0 until set
+    static final int ID = 4;
+
+    // atomic access to the array elements
+    static final VarHandle INT = MethodHandles.arrayElementVarHandle(int[].class);
+
+    // segments, replaced by a longer copy when one is added
+    private volatile Segment[] segments = new Segment[0];
+    // allocated slots, written under the lock
+    private volatile int size;
+
+    /**
+     * Allocate the slot of a new worker, the sum and count sweeps include it at once,
+     * maxSumWorker skips it until its worker id is set
+     *
+     * @return view of the slot
+     */
+    public synchronized WorkerStatus allocate() {
+        int slot = size;
+        // segment k starts at slot FIRST_SEGMENT_SLOTS * (2^k - 1)
+        int position = slot + FIRST_SEGMENT_SLOTS;
+        int s = Integer.numberOfTrailingZeros(Integer.highestOneBit(position) / FIRST_SEGMENT_SLOTS);
+        Segment[] current = segments;
+        if (s == current.length) {
+            Segment[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = new Segment(FIRST_SEGMENT_SLOTS << s);
+            segments = grown;
+            current = grown;
+        }
+        Segment segment = current[s];
+        int index = (position - (FIRST_SEGMENT_SLOTS << s)) * RECORD;
+        size = slot + 1;
+        return new WorkerStatus(segment, index, slot);
+    }
+
+    /**
+     * @return sum of the sums of all workers
+     */
+    public int sum() {
+        return sweep(SUM);
+    }
+
+    /**
+     * @return sum of the value counts of all workers
+     */
+    public int count() {
+        return sweep(COUNT);
+    }
+
+    /**
+     * @return id of the worker with the largest sum, the first one allocated on a tie, 0 if there are none
+     */
+    public int maxSumWorker() {
+        int largest = Integer.MIN_VALUE;
+        int worker = 0;
+        Segment[] current = segments;
+        int slots = size;
+        for (int s = 0; s < current.length && slots > 0; s++) {
+            int[] records = current[s].records;
+            int end = Math.min(slots, current[s].slots) * RECORD;
+            slots -= current[s].slots;
+            for (int i = 0; i < end; i += RECORD) {
+                int id = (int) INT.getAcquire(records, i + ID);
+                if (id == 0) continue;
+                int sum = (int) INT.getAcquire(records, i + SUM);
+                if (sum > largest) {
+                    largest = sum;
+                    worker = id;
+                }
+            }
+        }
+        return worker;
+    }
+
+    /**
+     * @return number of allocated slots
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of slots the segments have room for
+     */
+    int capacity() {
+        int slots = 0;
+        for (Segment segment : segments) slots += segment.slots;
+        return slots;
+    }
+
+    private int sweep(int field) {
+        int total = 0;
+        Segment[] current = segments;
+        int slots = size;
+        for (int s = 0; s < current.length && slots > 0; s++) {
+            int[] records = current[s].records;
+            int end = Math.min(slots, current[s].slots) * RECORD;
+            slots -= current[s].slots;
+            for (int i = field; i < end; i += RECORD) {
+                // a slot without a worker id counts too, its fields are 0 until written
+                total += (int) INT.getAcquire(records, i);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Records of a fixed number of slots
+     */
+    static final class Segment {
+
+        final int slots;
+        // RECORD ints per slot, the fields at their offsets and padding after them
+        final int[] records;
+
+        Segment(int slots) {
+            this.slots = slots;
+            records = new int[slots * RECORD];
+        }
+
+        void init(int index) {
+            INT.setRelease(records, index + MIN, Integer.MAX_VALUE);
+            INT.setRelease(records, index + MAX, Integer.MIN_VALUE);
+        }
+    }
+}
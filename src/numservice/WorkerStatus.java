@@ -1,31 +1,140 @@
 package numservice;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import static numservice.WorkerStatsTable.COUNT;
+import static numservice.WorkerStatsTable.ID;
+import static numservice.WorkerStatsTable.INT;
+import static numservice.WorkerStatsTable.MAX;
+import static numservice.WorkerStatsTable.MIN;
+import static numservice.WorkerStatsTable.SUM;
 
 /**
- * Holds a single worker's sum and count
+ * Holds a single worker's sum, count and the smallest and largest value
+ * <p>
+ * A view of the worker's slot in a {@link WorkerStatsTable}, a status created
+ * on its own has a table slot of its own.
  *
  * @author Samuel Lindqvist
  */
 public class WorkerStatus {
 
-    // sum and count, thread safe
-    private AtomicInteger sum = new AtomicInteger(0);
-    private AtomicInteger count = new AtomicInteger(0);
+    // record array of the table segment and the slot's record in it, all access is atomic
+    private final int[] records;
+    private final int index;
+    // slot number in the table, the order the service allocated the statuses in
+    private final int slot;
+
+    /**
+     * Constructor for a status outside any table
+     */
+    public WorkerStatus() {
+        this(new WorkerStatsTable.Segment(1), 0, 0);
+    }
+
+    /**
+     * Constructor for a view of a table slot, initializes the slot's min and max
+     */
+    WorkerStatus(WorkerStatsTable.Segment segment, int index, int slot) {
+        segment.init(index);
+        this.records = segment.records;
+        this.index = index;
+        this.slot = slot;
+    }
+
+    /**
+     * @return slot number in the table, 0 for a status outside any table
+     * The slots of a service are numbered in the order its workers were created,
+     * unlike the worker ids they repeat between sessions and between services of a JVM.
+     */
+    public int getSlot() {
+        return slot;
+    }
 
     public int getSum() {
-        return sum.get();
+        return (int) INT.getAcquire(records, index + SUM);
     }
 
     public void addSum(int count) {
-        sum.addAndGet(count);
+        INT.getAndAdd(records, index + SUM, count);
     }
 
     public int getCount() {
-        return count.get();
+        return (int) INT.getAcquire(records, index + COUNT);
     }
 
     public void incrementCount() {
-        count.addAndGet(1);
+        INT.getAndAdd(records, index + COUNT, 1);
+    }
+
+    public int getMin() {
+        return (int) INT.getAcquire(records, index + MIN);
+    }
+
+    public int getMax() {
+        return (int) INT.getAcquire(records, index + MAX);
+    }
+
+    /**
+     * Add a single received value
+     *
+     * @param value received value
+     */
+    public void addValue(int value) {
+        INT.getAndAdd(records, index + SUM, value);
+        INT.getAndAdd(records, index + COUNT, 1);
+        if (value < getMin()) lower(MIN, value);
+        if (value > getMax()) raise(MAX, value);
+    }
+
+    /**
+     * Add the reduction of a block of received values with one update per field
+     *
+     * @param blockSum   sum of the block
+     * @param blockCount number of values in the block
+     * @param blockMin   smallest value of the block
+     * @param blockMax   largest value of the block
+     */
+    public void addBlock(int blockSum, int blockCount, int blockMin, int blockMax) {
+        INT.getAndAdd(records, index + SUM, blockSum);
+        INT.getAndAdd(records, index + COUNT, blockCount);
+        if (blockMin < getMin()) lower(MIN, blockMin);
+        if (blockMax > getMax()) raise(MAX, blockMax);
+    }
+
+    /**
+     * Overwrite the sum, count, min and max, used when restoring from a checkpoint
+     *
+     * @param sum   restored sum
+     * @param count restored count
+     * @param min   restored smallest value, Integer.MAX_VALUE if there was none
+     * @param max   restored largest value, Integer.MIN_VALUE if there was none
+     */
+    public void restore(int sum, int count, int min, int max) {
+        INT.setRelease(records, index + SUM, sum);
+        INT.setRelease(records, index + COUNT, count);
+        INT.setRelease(records, index + MIN, min);
+        INT.setRelease(records, index + MAX, max);
+    }
+
+    /**
+     * Set the id of the worker owning the slot, the table sweeps include the slot from then on
+     *
+     * @param id worker id, not 0
+     */
+    public void setWorkerId(int id) {
+        INT.setRelease(records, index + ID, id);
+    }
+
+    private void lower(int field, int value) {
+        int current;
+        while (value < (current = (int) INT.getAcquire(records, index + field))) {
+            if (INT.compareAndSet(records, index + field, current, value)) return;
+        }
+    }
+
+    private void raise(int field, int value) {
+        int current;
+        while (value > (current = (int) INT.getAcquire(records, index + field))) {
+            if (INT.compareAndSet(records, index + field, current, value)) return;
+        }
     }
 }
@@ -0,0 +1,362 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+import numservice.ControlMessage;
+import numservice.NetworkCommunicationService;
+import numservice.NumberService;
+import numservice.StreamCapture;
+import numservice.StreamFormat;
+import numservice.VarintCodec;
+
+/**
+ * Replays a capture recorded by a NumberService against a new NumberService,
+ * either with the original pacing or as fast as possible.
+ * Takes the place of WorkDistributor: waits for the UDP port offer, performs
+ * the handshake and then feeds the recorded worker streams and queries.
+ * The streams are replayed in the format they were captured in, a framed
+ * format is requested in the handshake and the frames are rebuilt from the values.
+ * Queries are replayed with their arguments and their whole answers are read,
+ * only the first int of an answer is compared with the capture. Queries about
+ * the captured session's worker ids and subscriptions are skipped with a warning.
+ * The session is closed once the service has counted every replayed value.
+ */
+public class CaptureReplay {
+
+	public static final int PORT = WorkDistributor.PORT;
+	// how long the close waits for the service to count the replayed values
+	public static final int DRAIN_TIMEOUT = 5000;
+
+	// queries which name workers by the ids of the captured session, or start
+	// and stop pushed updates, the replayed session can not answer them alike
+	private static final Set<Integer> SKIPPED = Set.of(
+			ControlMessage.ADD_WORKER.getValue(),
+			ControlMessage.RETIRE_WORKER.getValue(),
+			ControlMessage.SUBSCRIBE.getValue(),
+			ControlMessage.UNSUBSCRIBE.getValue(),
+			ControlMessage.QUERY_RANGE.getValue());
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: CaptureReplay <capture file> [paced|fast]");
+			System.exit(1);
+		}
+		boolean paced = args.length > 1 && args[1].equals("paced");
+
+		DatagramSocket ds = new DatagramSocket(PORT);
+		byte[] byteArea = new byte[256];
+		DatagramPacket receivedPacket = new DatagramPacket(byteArea,
+				byteArea.length);
+		ds.receive(receivedPacket);
+		// acknowledge so the service stops retransmitting the offer
+		byte[] ack = "ACK".getBytes();
+		ds.send(new DatagramPacket(ack, ack.length,
+				receivedPacket.getSocketAddress()));
+		ds.close();
+		int contactPort = Integer.parseInt(new String(receivedPacket.getData(),
+				0, receivedPacket.getLength()).trim());
+
+		try (StreamCapture.Reader reader = new StreamCapture.Reader(Paths
+				.get(args[0]))) {
+			replay(reader, receivedPacket.getAddress(), contactPort, paced);
+		}
+	}
+
+	/**
+	 * Connect to the service and feed it the capture
+	 */
+	public static void replay(StreamCapture.Reader reader,
+			InetAddress address, int port, boolean paced) throws IOException {
+		Socket s = new Socket(address, port);
+		ObjectOutputStream masterOut = new ObjectOutputStream(
+				s.getOutputStream());
+		ObjectInputStream masterIn = new ObjectInputStream(s.getInputStream());
+
+		// same worker count as in the capture, recorded ids map to port order
+		int[] workerIds = reader.getWorkerIds();
+		StreamFormat format = reader.getFormat();
+		// an INT capture keeps the handshake of clients without formats
+		int request = workerIds.length;
+		if (format != StreamFormat.INT) {
+			request |= format.getId() << NumberService.FORMAT_REQUEST_SHIFT;
+		}
+		masterOut.writeInt(request);
+		masterOut.flush();
+		int[] ports = new int[workerIds.length];
+		for (int i = 0; i < workerIds.length; i++) {
+			ports[i] = masterIn.readInt();
+			if (ports[i] == -1) {
+				System.err.println("Service timed out the handshake ... aborting.");
+				s.close();
+				return;
+			}
+		}
+		if (format != StreamFormat.INT
+				&& StreamFormat.fromId(masterIn.readInt()) != format) {
+			System.err.println("Service does not take " + format
+					+ " streams ... aborting.");
+			s.close();
+			return;
+		}
+		Map<Integer, ReplayStream> streams = new HashMap<>();
+		Socket[] calculators = new Socket[workerIds.length];
+		for (int i = 0; i < workerIds.length; i++) {
+			calculators[i] = new Socket(address, ports[i]);
+			streams.put(workerIds[i], new ReplayStream(new ObjectOutputStream(
+					calculators[i].getOutputStream()), format));
+		}
+
+		long values = 0;
+		// values the service counts, the ends of the streams are not counted
+		long counted = 0;
+		long queries = 0;
+		long skipped = 0;
+		long mismatches = 0;
+		int lastAnswer = 0;
+		// query waiting for its arguments, worker values may be recorded in between
+		int pendingQuery = 0;
+		int[] arguments = null;
+		int argumentsRead = 0;
+		// answers of a skipped query are not compared
+		boolean skipping = false;
+		boolean closed = false;
+		long start = System.nanoTime();
+		while (reader.next()) {
+			if (paced) {
+				long due = start + reader.getOffsetMicros() * 1000;
+				long now;
+				while ((now = System.nanoTime()) < due) {
+					LockSupport.parkNanos(due - now);
+				}
+			}
+			switch (reader.getKind()) {
+			case StreamCapture.KIND_VALUE:
+				ReplayStream out = streams.get(reader.getChannel());
+				if (out == null) {
+					continue;
+				}
+				// a 0 ends an INT stream, framed streams carry it as a value
+				if (format == StreamFormat.INT && reader.getValue() == 0) {
+					out.end();
+				} else {
+					out.add(reader.getValue());
+					counted++;
+					if (paced) {
+						out.flush();
+					}
+				}
+				values++;
+				break;
+			case StreamCapture.KIND_END:
+				ReplayStream ended = streams.get(reader.getChannel());
+				if (ended != null) {
+					ended.end();
+				}
+				break;
+			case StreamCapture.KIND_QUERY:
+				// values recorded before the query must be on the wire first
+				for (ReplayStream o : streams.values()) {
+					o.flush();
+				}
+				if (reader.getValue() == 0) {
+					awaitCounted(masterOut, masterIn, counted);
+					masterOut.writeInt(0);
+					masterOut.flush();
+					closed = true;
+					break; // close connection has no answer
+				}
+				arguments = null;
+				skipping = SKIPPED.contains(reader.getValue());
+				if (skipping) {
+					System.err.println("Skipping query " + reader.getValue()
+							+ ", it does not apply to the replayed session");
+					skipped++;
+					break;
+				}
+				pendingQuery = reader.getValue();
+				arguments = new int[argumentCount(pendingQuery)];
+				argumentsRead = 0;
+				if (arguments.length == 0) {
+					lastAnswer = query(masterOut, masterIn, pendingQuery, arguments);
+					arguments = null;
+					queries++;
+				}
+				break;
+			case StreamCapture.KIND_ARGUMENT:
+				// arguments of a skipped query are dropped
+				if (arguments == null) {
+					break;
+				}
+				arguments[argumentsRead++] = reader.getValue();
+				if (argumentsRead == arguments.length) {
+					lastAnswer = query(masterOut, masterIn, pendingQuery, arguments);
+					arguments = null;
+					queries++;
+				}
+				break;
+			case StreamCapture.KIND_ANSWER:
+				if (!skipping && lastAnswer != reader.getValue()) {
+					mismatches++;
+				}
+				break;
+			}
+		}
+		for (ReplayStream o : streams.values()) {
+			o.flush();
+		}
+		if (!closed) {
+			awaitCounted(masterOut, masterIn, counted);
+			masterOut.writeInt(0);
+			masterOut.flush();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("Replayed " + values + " values and " + queries
+				+ " queries in " + elapsed / 1000000 + " ms ("
+				+ (values * 1000000000L / Math.max(elapsed, 1)) + " values/s), "
+				+ mismatches + " answers differed from the capture, "
+				+ skipped + " queries skipped");
+
+		for (Socket c : calculators) {
+			c.close();
+		}
+		masterOut.close();
+		masterIn.close();
+		s.close();
+	}
+
+	/**
+	 * @return number of int arguments that follow a replayed query
+	 */
+	private static int argumentCount(int query) {
+		if (query == ControlMessage.QUERY_KEY.getValue()
+				|| query == ControlMessage.QUERY_TOP_KEYS.getValue()) {
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Send a query with its arguments and read the whole answer
+	 *
+	 * @return first int of the answer, the one recorded in the capture
+	 */
+	private static int query(ObjectOutputStream masterOut,
+			ObjectInputStream masterIn, int query, int[] arguments)
+			throws IOException {
+		masterOut.writeInt(query);
+		for (int argument : arguments) {
+			masterOut.writeInt(argument);
+		}
+		masterOut.flush();
+		int answer = masterIn.readInt();
+		// the rest of the answer, see ControlMessage
+		if (query == ControlMessage.QUERY_FRESHNESS.getValue()
+				&& answer != ControlMessage.INVALID_QUERY.getValue()) {
+			for (int i = 0; i < 4; i++) {
+				masterIn.readInt();
+			}
+		} else if (query == ControlMessage.QUERY_KEY.getValue() && answer == 0) {
+			masterIn.readLong();
+			masterIn.readInt();
+		} else if (query == ControlMessage.QUERY_TOP_KEYS.getValue()) {
+			for (int i = 0; i < answer; i++) {
+				masterIn.readInt();
+				masterIn.readLong();
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Wait until the service has counted the replayed values, closing
+	 * drops the values the workers have not read yet
+	 */
+	private static void awaitCounted(ObjectOutputStream masterOut,
+			ObjectInputStream masterIn, long counted) throws IOException {
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			masterOut.writeInt(ControlMessage.QUERY_NUMBER_COUNT.getValue());
+			masterOut.flush();
+			if (masterIn.readInt() >= counted) {
+				return;
+			}
+			LockSupport.parkNanos(1000000);
+		}
+		System.err.println("Service did not count all replayed values before the close");
+	}
+
+	/**
+	 * One worker stream written in the captured format, the values of a
+	 * framed format are collected into frames until flushed or the frame is full
+	 */
+	private static class ReplayStream {
+
+		private final ObjectOutputStream out;
+		private final StreamFormat format;
+		private final int[] frame = new int[NetworkCommunicationService.MAX_FRAME_LENGTH];
+		private final byte[] encoded;
+		private int count;
+
+		ReplayStream(ObjectOutputStream out, StreamFormat format) {
+			this.out = out;
+			this.format = format;
+			this.encoded = format == StreamFormat.VARINT ? new byte[frame.length
+					* VarintCodec.MAX_BYTES] : null;
+		}
+
+		void add(int value) throws IOException {
+			if (format == StreamFormat.INT) {
+				out.writeInt(value);
+				return;
+			}
+			frame[count++] = value;
+			if (count == frame.length) {
+				writeFrame();
+			}
+		}
+
+		void flush() throws IOException {
+			writeFrame();
+			out.flush();
+		}
+
+		/**
+		 * Write the pending values and the end of the stream, a 0 in every format
+		 */
+		void end() throws IOException {
+			writeFrame();
+			out.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+			out.flush();
+		}
+
+		private void writeFrame() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			if (format == StreamFormat.VARINT) {
+				int length = VarintCodec.encode(frame, count, encoded);
+				out.writeInt(length);
+				out.write(encoded, 0, length);
+			} else {
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					out.writeInt(frame[i]);
+				}
+			}
+			count = 0;
+		}
+	}
+
+} // class CaptureReplay
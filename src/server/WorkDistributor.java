@@ -10,11 +10,17 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 public class WorkDistributor {
 
 	public static final int PORT = 3126;
 	public static boolean verboseMode = false;
+	// offers being served, retransmits of these are only acknowledged
+	private static final Set<String> activeOffers = Collections
+			.synchronizedSet(new HashSet<String>());
 
 	public static void main(String[] args) throws Exception {
 		if (args.length == 1 && args[0].equals("verbose")) {
@@ -53,6 +59,14 @@ public class WorkDistributor {
 					}
 					continue; // jump over the rest
 				}
+				// acknowledge at once so the other side stops retransmitting
+				byte[] ack = "ACK".getBytes();
+				ds.send(new DatagramPacket(ack, ack.length,
+						receivedPacket.getSocketAddress()));
+				String offer = receivedPacket.getAddress() + ":" + contactPort;
+				if (!activeOffers.add(offer)) {
+					continue; // retransmit of an offer being served
+				}
 				new WorkDistributor.WorkDistributionHandler(
 						receivedPacket.getAddress(), contactPort).start();
 			} // while
@@ -79,7 +93,8 @@ public class WorkDistributor {
 				if (verboseMode) {
 					System.out.println("Spawning thread ...");
 				}
-				Thread.sleep(2000); // let the other side set itself up ...
+				long start = System.nanoTime();
+				// the other side is listening before it sends the offer
 				Socket s = new Socket(clientAddress, clientPort);
 				s.setSoTimeout(3000);
 				InputStream iS = s.getInputStream();
@@ -94,6 +109,10 @@ public class WorkDistributor {
 				oOut.writeInt(clients);
 				oOut.flush();
 				boolean aborting = receivePortNumbers(oIn, clients);
+				if (verboseMode) {
+					System.out.println("Handshake done in "
+							+ (System.nanoTime() - start) / 1000 + " us");
+				}
 				if (aborting) {
 					if (verboseMode) {
 						System.out.println("Closing connection to "
@@ -135,6 +154,8 @@ public class WorkDistributor {
 				s.close();
 			} catch (Exception e) {
 				throw new Error(e.toString());
+			} finally {
+				activeOffers.remove(clientAddress + ":" + clientPort);
 			}
 			if (verboseMode) {
 				System.out.println("... thread done.");
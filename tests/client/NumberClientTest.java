@@ -0,0 +1,149 @@
+package client;
+
+import numservice.ControlMessage;
+import numservice.NumberService;
+import numservice.StreamFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test the client against a scripted service on the loopback interface
+ */
+public class NumberClientTest {
+
+    @Test
+    public void framesValuesAndPipelinesQueries() throws Exception {
+        long[] sums = new long[2];
+        int[] counts = new int[2];
+        ServerSocket service = new ServerSocket(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread fake = new Thread(() -> {
+            try (Socket control = service.accept()) {
+                ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+                Assert.assertEquals(2 | StreamFormat.BLOCK.getId() << NumberService.FORMAT_REQUEST_SHIFT
+                        | NumberService.CREDITS_REQUEST, in.readInt());
+                ServerSocket[] workers = {new ServerSocket(0), new ServerSocket(0)};
+                for (ServerSocket w : workers) out.writeInt(w.getLocalPort());
+                out.writeInt(StreamFormat.BLOCK.getId());
+                // no flow control
+                out.writeInt(0);
+                out.flush();
+                // like the workers, the stream header is written on accept
+                Socket[] streams = new Socket[2];
+                for (int i = 0; i < 2; i++) {
+                    streams[i] = workers[i].accept();
+                    new ObjectOutputStream(streams[i].getOutputStream()).flush();
+                }
+                for (int i = 0; i < 2; i++) {
+                    ObjectInputStream wi = new ObjectInputStream(streams[i].getInputStream());
+                    for (int length; (length = wi.readInt()) != 0; ) {
+                        Assert.assertTrue(length <= WorkerStream.FRAME_VALUES);
+                        for (int k = 0; k < length; k++) sums[i] += wi.readInt();
+                        counts[i] += length;
+                    }
+                    streams[i].close();
+                    workers[i].close();
+                }
+                // every query arrives before the first answer
+                Assert.assertEquals(ControlMessage.QUERY_SUM_COMPLETE.getValue(), in.readInt());
+                Assert.assertEquals(ControlMessage.QUERY_NUMBER_COUNT.getValue(), in.readInt());
+                Assert.assertEquals(ControlMessage.QUERY_KEY.getValue(), in.readInt());
+                Assert.assertEquals(5, in.readInt());
+                out.writeInt((int) (sums[0] + sums[1]));
+                out.writeInt(counts[0] + counts[1]);
+                out.writeInt(ControlMessage.INVALID_QUERY.getValue());
+                out.flush();
+                Assert.assertEquals(ControlMessage.CLOSE_CONNECTION.getValue(), in.readInt());
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        fake.start();
+
+        NumberClient client = NumberClient.connect(new InetSocketAddress("localhost", service.getLocalPort()),
+                2, StreamFormat.BLOCK);
+        Assert.assertEquals(StreamFormat.BLOCK, client.getFormat());
+        long sum = 0;
+        int[] block = new int[1000];
+        for (int i = 0; i < block.length; i++) block[i] = i - 500;
+        for (int round = 0; round < 20; round++) {
+            client.next().add(block, 0, block.length);
+            sum -= 500;
+            client.next().add(round + 1);
+            sum += round + 1;
+        }
+        client.getWorker(0).close();
+        client.getWorker(1).close();
+
+        CompletableFuture<Integer> total = client.sum();
+        CompletableFuture<Integer> count = client.count();
+        CompletableFuture<long[]> key = client.key(5);
+        Assert.assertEquals(sum, (long) total.get());
+        Assert.assertEquals(20 * 1001, (int) count.get());
+        Assert.assertNull(key.get());
+        client.close();
+        fake.join();
+        service.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        Assert.assertEquals(20 * 1001, counts[0] + counts[1]);
+    }
+
+    @Test
+    public void lostConnectionFailsPendingQueries() throws Exception {
+        ServerSocket service = new ServerSocket(0);
+        Thread fake = new Thread(() -> {
+            try (Socket control = service.accept()) {
+                ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+                in.readInt();
+                ServerSocket[] workers = {new ServerSocket(0), new ServerSocket(0)};
+                for (ServerSocket w : workers) out.writeInt(w.getLocalPort());
+                out.writeInt(StreamFormat.INT.getId());
+                out.writeInt(0);
+                out.flush();
+                for (ServerSocket w : workers) {
+                    Socket s = w.accept();
+                    new ObjectOutputStream(s.getOutputStream()).flush();
+                }
+                // the query is never answered
+                in.readInt();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        fake.start();
+
+        NumberClient client = NumberClient.connect(new InetSocketAddress("localhost", service.getLocalPort()),
+                2, StreamFormat.VARINT);
+        Assert.assertEquals(StreamFormat.INT, client.getFormat());
+        try {
+            client.getWorker(0).add(0);
+            Assert.fail("0 ends an INT stream");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        CompletableFuture<Integer> sum = client.sum();
+        try {
+            sum.get();
+            Assert.fail("the connection is gone");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertTrue(client.count().isCompletedExceptionally());
+        fake.join();
+        service.close();
+    }
+}
@@ -0,0 +1,126 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test pushing coalesced aggregate updates
+ */
+public class AggregateSubscriptionTest {
+
+    @Test
+    public void pushesOnChangeAndFinalUpdate() throws Exception {
+        WorkerStatsTable stats = new WorkerStatsTable();
+        WorkerStatus status = stats.allocate();
+        status.setWorkerId(1);
+        List<int[]> updates = new CopyOnWriteArrayList<>();
+        AggregateSubscription subscription = new AggregateSubscription(stats, updates::add, 20);
+        subscription.start();
+        Thread.sleep(100);
+        // nothing changed, only the initial update
+        Assert.assertEquals(1, updates.size());
+        Assert.assertArrayEquals(new int[]{1, 0, 0}, updates.get(0));
+
+        // a burst within one interval is coalesced
+        for (int i = 1; i <= 1000; i++) status.addValue(i);
+        Thread.sleep(100);
+        subscription.stop();
+
+        // one update for the burst, two if it straddled an interval, and the final one
+        int n = updates.size();
+        Assert.assertTrue(n == 3 || n == 4);
+        Assert.assertArrayEquals(new int[]{n - 1, 500500, 1000}, updates.get(n - 2));
+        Assert.assertArrayEquals(new int[]{0, 500500, 1000}, updates.get(n - 1));
+        Assert.assertEquals(n, subscription.getUpdates());
+    }
+
+    // queries of a subscribed client are dropped with their arguments, arguments which
+    // equal UNSUBSCRIBE or CLOSE_CONNECTION must not be taken for those messages
+    @Test
+    public void queriesWhileSubscribed() throws Exception {
+        System.setProperty(NumberService.TRANSPORT_PROPERTY, IngestTransport.LOOPBACK.name());
+        NumberService service;
+        try {
+            service = new NumberService();
+        } finally {
+            System.clearProperty(NumberService.TRANSPORT_PROPERTY);
+        }
+        service.start("subscribed-queries");
+        Loopback.Connection control = connect("subscribed-queries");
+        ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+        out.writeInt(NumberService.MIN_WORKERS | StreamFormat.INT.getId() << NumberService.FORMAT_REQUEST_SHIFT);
+        out.flush();
+        String[] workers = new String[NumberService.MIN_WORKERS];
+        for (int i = 0; i < workers.length; i++) workers[i] = in.readUTF();
+        Assert.assertEquals(StreamFormat.INT.getId(), in.readInt());
+        // empty streams, the session closes once they have ended
+        for (String worker : workers) {
+            ObjectOutputStream stream = new ObjectOutputStream(Loopback.connect(worker).getOutputStream());
+            stream.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+            stream.flush();
+        }
+
+        out.writeInt(ControlMessage.SUBSCRIBE.getValue());
+        out.flush();
+        Assert.assertEquals(1, in.readInt());
+        in.readInt();
+        in.readInt();
+
+        int unsubscribe = ControlMessage.UNSUBSCRIBE.getValue();
+        int close = ControlMessage.CLOSE_CONNECTION.getValue();
+        out.writeInt(ControlMessage.QUERY_KEY.getValue());
+        out.writeInt(unsubscribe);
+        out.writeInt(ControlMessage.QUERY_TOP_KEYS.getValue());
+        out.writeInt(close);
+        out.writeInt(ControlMessage.RETIRE_WORKER.getValue());
+        out.writeInt(unsubscribe);
+        out.writeInt(ControlMessage.QUERY_RANGE.getValue());
+        out.writeInt(close);
+        out.writeInt(unsubscribe);
+        out.writeLong(0);
+        out.writeLong(0);
+        out.writeInt(ControlMessage.QUERY_SUM_COMPLETE.getValue());
+        out.writeInt(unsubscribe);
+        out.writeInt(ControlMessage.QUERY_NUMBER_COUNT.getValue());
+        out.flush();
+
+        // updates only until the final one, then the answer to the count
+        int sequence;
+        do {
+            sequence = in.readInt();
+            Assert.assertEquals(0, in.readInt());
+            Assert.assertEquals(0, in.readInt());
+        } while (sequence != 0);
+        Assert.assertEquals(0, in.readInt());
+
+        out.writeInt(close);
+        out.flush();
+        Assert.assertTrue(service.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, service.getExitStatus());
+        // nothing else was answered
+        Assert.assertEquals(-1, in.read());
+        control.close();
+    }
+
+    private static Loopback.Connection connect(String name) throws Exception {
+        // the service binds its endpoint on its own thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return Loopback.connect(name);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Test two nodes publishing to a coordinator and a client querying it
+ */
+public class AggregationCoordinatorTest {
+
+    @Test
+    public void mergesPublishedNodes() throws Exception {
+        ServerSocket nodeSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ServerSocket querySocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        AggregationCoordinator coordinator = new AggregationCoordinator();
+        Thread queries = new Thread(() -> coordinator.start(nodeSocket, querySocket));
+        queries.setDaemon(true);
+        queries.start();
+
+        String address = "localhost:" + nodeSocket.getLocalPort();
+        Map<NumberWorker, WorkerStatus> first = new ConcurrentHashMap<>();
+        Map<NumberWorker, WorkerStatus> second = new ConcurrentHashMap<>();
+        NumberWorker small, large;
+        try {
+            NumberWorker.setNodeId(1);
+            small = worker(first, 3, 4);
+            NumberWorker.setNodeId(2);
+            large = worker(second, 10, 20);
+            worker(second, -1);
+        } finally {
+            NumberWorker.setNodeId(0);
+        }
+        AggregatePublisher firstPublisher = new AggregatePublisher(address, 1, first, 5);
+        AggregatePublisher secondPublisher = new AggregatePublisher(address, 2, second, 5);
+        Thread firstThread = new Thread(firstPublisher);
+        Thread secondThread = new Thread(secondPublisher);
+        firstThread.start();
+        secondThread.start();
+
+        try (Socket socket = new Socket("localhost", querySocket.getLocalPort())) {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+
+            awaitCount(out, in, 5);
+            Assert.assertEquals(36, query(out, in, ControlMessage.QUERY_SUM_COMPLETE));
+            Assert.assertEquals(large.getId(), query(out, in, ControlMessage.QUERY_MAX_SUM_WORKER));
+
+            // later values of a node replace its earlier aggregate
+            first.get(small).addSum(100);
+            first.get(small).incrementCount();
+            awaitCount(out, in, 6);
+            Assert.assertEquals(136, query(out, in, ControlMessage.QUERY_SUM_COMPLETE));
+            Assert.assertEquals(small.getId(), query(out, in, ControlMessage.QUERY_MAX_SUM_WORKER));
+
+            // a stopped node keeps its last aggregate in the merge
+            secondPublisher.stop();
+            secondThread.interrupt();
+            secondThread.join(5000);
+            Assert.assertFalse(secondThread.isAlive());
+            Assert.assertEquals(136, query(out, in, ControlMessage.QUERY_SUM_COMPLETE));
+            Assert.assertEquals(ControlMessage.INVALID_QUERY.getValue(), query(out, in, ControlMessage.QUERY_FLOW_STALLS));
+
+            out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+            out.flush();
+            Assert.assertEquals(-1, in.read());
+        } finally {
+            firstPublisher.stop();
+            firstThread.interrupt();
+            firstThread.join(5000);
+            nodeSocket.close();
+            querySocket.close();
+        }
+    }
+
+    // node ids above MAX_NODE_ID would shift into the sign bit of the worker ids
+    @Test
+    public void nodeIdOutOfRange() {
+        for (int id : new int[]{-1, NumberWorker.MAX_NODE_ID + 1, Integer.MAX_VALUE}) {
+            try {
+                NumberWorker.setNodeId(id);
+                Assert.fail("node id " + id + " accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            NumberWorker.setNodeId(NumberWorker.MAX_NODE_ID);
+            Assert.assertTrue(new NumberWorker(new WorkerStatus()).getId() > 0);
+        } finally {
+            NumberWorker.setNodeId(0);
+        }
+    }
+
+    private static NumberWorker worker(Map<NumberWorker, WorkerStatus> statuses, int... values) {
+        WorkerStatus status = new WorkerStatus();
+        for (int v : values) {
+            status.addSum(v);
+            status.incrementCount();
+        }
+        NumberWorker worker = new NumberWorker(status);
+        statuses.put(worker, status);
+        return worker;
+    }
+
+    private static int query(ObjectOutputStream out, ObjectInputStream in, ControlMessage msg) throws Exception {
+        out.writeInt(msg.getValue());
+        out.flush();
+        return in.readInt();
+    }
+
+    private static void awaitCount(ObjectOutputStream out, ObjectInputStream in, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (query(out, in, ControlMessage.QUERY_NUMBER_COUNT) < count) {
+            Assert.assertTrue("aggregates not published in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Test block accumulation against the per value path
+ */
+public class BlockAccumulatorTest {
+
+    // every length, including the ones that leave a scalar tail
+    @Test
+    public void matchesPerValue() throws Exception {
+        Random random = new Random(7);
+        BlockAccumulator accumulator = BlockAccumulator.create();
+        int[] values = new int[100];
+        for (int length = 1; length <= values.length; length++) {
+            WorkerStatus expected = new WorkerStatus();
+            for (int i = 0; i < length; i++) {
+                values[i] = random.nextInt();
+                expected.addValue(values[i]);
+            }
+            WorkerStatus actual = new WorkerStatus();
+            accumulator.accumulate(values, length, actual);
+
+            Assert.assertEquals(expected.getSum(), actual.getSum());
+            Assert.assertEquals(length, actual.getCount());
+            Assert.assertEquals(expected.getMin(), actual.getMin());
+            Assert.assertEquals(expected.getMax(), actual.getMax());
+        }
+    }
+
+    @Test
+    public void minMaxAcrossBlocks() throws Exception {
+        BlockAccumulator accumulator = new BlockAccumulator.Scalar();
+        WorkerStatus status = new WorkerStatus();
+        accumulator.accumulate(new int[]{3, -2, 5}, 3, status);
+        accumulator.accumulate(new int[]{-9, 1}, 2, status);
+        accumulator.accumulate(new int[]{4}, 0, status);
+
+        Assert.assertEquals(-2, status.getSum());
+        Assert.assertEquals(5, status.getCount());
+        Assert.assertEquals(-9, status.getMin());
+        Assert.assertEquals(5, status.getMax());
+    }
+}
@@ -0,0 +1,100 @@
+package numservice;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test writing and restoring checkpoints
+ */
+public class CheckpointerTest {
+
+    private Path dir = null;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("checkpoint");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(dir.resolve("state.bin"));
+        Files.deleteIfExists(dir);
+    }
+
+    // a written snapshot restores the same session and worker state
+    @Test
+    public void roundTrip() throws Exception {
+        Map<NumberWorker, WorkerStatus> statuses = new HashMap<>();
+        WorkerStatus status = worker(new WorkerStatsTable(), statuses, -7, 42, 7);
+
+        Path file = dir.resolve("state.bin");
+        new Checkpointer(file, 1234L, statuses, Checkpointer.CHECKPOINT_INTERVAL).writeCheckpoint();
+
+        Checkpointer.Checkpoint restored = Checkpointer.restore(file);
+        Assert.assertNotNull(restored);
+        Assert.assertEquals(1234L, restored.getSessionId());
+        Assert.assertEquals(1, restored.getWorkerCount());
+
+        WorkerStatsTable table = new WorkerStatsTable();
+        WorkerStatus target = table.allocate();
+        Assert.assertEquals(status.getSlot(), target.getSlot());
+        Assert.assertTrue(restored.restoreInto(target));
+        Assert.assertEquals(42, target.getSum());
+        Assert.assertEquals(3, target.getCount());
+        Assert.assertEquals(-7, target.getMin());
+        Assert.assertEquals(42, target.getMax());
+        Assert.assertFalse(restored.restoreInto(table.allocate()));
+    }
+
+    // the restarted workers find their state by slot although their ids differ
+    @Test
+    public void restoreBySlot() throws Exception {
+        Map<NumberWorker, WorkerStatus> statuses = new HashMap<>();
+        WorkerStatsTable table = new WorkerStatsTable();
+        worker(table, statuses, 1, 2);
+        worker(table, statuses);
+        worker(table, statuses, 100);
+
+        Path file = dir.resolve("state.bin");
+        new Checkpointer(file, 1L, statuses, Checkpointer.CHECKPOINT_INTERVAL).writeCheckpoint();
+        Checkpointer.Checkpoint restored = Checkpointer.restore(file);
+
+        // a second service in the JVM hands out new worker ids, its slots start over
+        WorkerStatsTable next = new WorkerStatsTable();
+        Map<NumberWorker, WorkerStatus> restarted = new HashMap<>();
+        int[][] expected = {{3, 2, 1, 2}, {0, 0, Integer.MAX_VALUE, Integer.MIN_VALUE}, {100, 1, 100, 100}};
+        for (int[] e : expected) {
+            WorkerStatus status = next.allocate();
+            restarted.put(new NumberWorker(status), status);
+            Assert.assertTrue(restored.restoreInto(status));
+            Assert.assertEquals(e[0], status.getSum());
+            Assert.assertEquals(e[1], status.getCount());
+            Assert.assertEquals(e[2], status.getMin());
+            Assert.assertEquals(e[3], status.getMax());
+        }
+        Assert.assertFalse(restored.restoreInto(next.allocate()));
+        for (NumberWorker worker : statuses.keySet()) {
+            Assert.assertFalse(restarted.containsKey(worker));
+        }
+    }
+
+    // no snapshot on disk means nothing to restore
+    @Test
+    public void missingFile() throws Exception {
+        Assert.assertNull(Checkpointer.restore(dir.resolve("state.bin")));
+    }
+
+    private static WorkerStatus worker(WorkerStatsTable table, Map<NumberWorker, WorkerStatus> statuses, int... values) {
+        WorkerStatus status = table.allocate();
+        for (int v : values) status.addValue(v);
+        statuses.put(new NumberWorker(status), status);
+        return status;
+    }
+}
@@ -0,0 +1,154 @@
+package numservice;
+
+import client.NumberClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test services embedded side by side in one JVM over the loopback transport
+ */
+public class EmbeddedServiceTest {
+
+    @Test
+    public void servicesRunSideBySide() throws Exception {
+        NumberService closedByClient = loopbackService();
+        NumberService stopped = loopbackService();
+        closedByClient.start("embedded-a");
+        stopped.start("embedded-b");
+        NumberClient a = connect("embedded-a", StreamFormat.BLOCK);
+        NumberClient b = connect("embedded-b", StreamFormat.VARINT);
+        Assert.assertEquals(StreamFormat.VARINT, b.getFormat());
+
+        long sumA = 0;
+        long sumB = 0;
+        for (int i = 1; i <= 10000; i++) {
+            a.next().add(i);
+            sumA += i;
+            b.next().add(-i);
+            sumB -= i;
+        }
+        a.flush();
+        b.flush();
+        Assert.assertEquals(sumA, awaitSum(a, 10000));
+        Assert.assertEquals(sumB, awaitSum(b, 10000));
+
+        a.close();
+        Assert.assertTrue(closedByClient.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, closedByClient.getExitStatus());
+
+        // the producer of b is still connected
+        stopped.stop();
+        Assert.assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, stopped.getExitStatus());
+        try {
+            b.sum().get(5, TimeUnit.SECONDS);
+            Assert.fail("the service stopped");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            b.close();
+        } catch (IOException e) {
+            // the worker connections are gone
+        }
+    }
+
+    @Test
+    public void stopBeforeClientConnects() throws Exception {
+        NumberService service = loopbackService();
+        service.start("embedded-idle");
+        service.stop();
+        Assert.assertTrue(service.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, service.getExitStatus());
+    }
+
+    @Test
+    public void stopWhileStarting() throws Exception {
+        // stops land at different points of the startup, before and after the bind
+        for (int i = 0; i < 200; i++) {
+            NumberService service = loopbackService();
+            service.start("embedded-starting");
+            long until = System.nanoTime() + i * 5_000L;
+            while (System.nanoTime() < until) Thread.yield();
+            service.stop();
+            Assert.assertTrue("stop after " + i * 5 + " us", service.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, service.getExitStatus());
+        }
+    }
+
+    // a TCP service stopped while binding or offering its port ends without the offer timeout
+    @Test
+    public void stopWhileOffering() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            NumberService service = new NumberService();
+            service.start("localhost");
+            long until = System.nanoTime() + i * 50_000L;
+            while (System.nanoTime() < until) Thread.yield();
+            service.stop();
+            Assert.assertTrue("stop after " + i * 50 + " us", service.await(2, TimeUnit.SECONDS));
+            Assert.assertEquals(0, service.getExitStatus());
+        }
+    }
+
+    // the client honours the credits, its streams wait for grants and every value arrives
+    @Test
+    public void producerWaitsForCredits() throws Exception {
+        System.setProperty(NumberService.CREDITS_PROPERTY, "64");
+        NumberService service;
+        try {
+            service = loopbackService();
+        } finally {
+            System.clearProperty(NumberService.CREDITS_PROPERTY);
+        }
+        service.start("embedded-credits");
+        NumberClient client = connect("embedded-credits", StreamFormat.BLOCK);
+        long sum = 0;
+        for (int i = 1; i <= 20000; i++) {
+            client.next().add(i);
+            sum += i;
+        }
+        client.flush();
+        Assert.assertEquals((int) sum, (long) awaitSum(client, 20000));
+        for (int w = 0; w < client.getWorkerCount(); w++) {
+            // 10000 values through a window of 64 credits
+            Assert.assertTrue(client.getWorker(w).getCreditWaits() >= 10000 / 64);
+        }
+        Assert.assertTrue(client.query(ControlMessage.QUERY_FLOW_STALLS).get() >= 0);
+        client.close();
+        Assert.assertTrue(service.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, service.getExitStatus());
+    }
+
+    private static NumberService loopbackService() {
+        System.setProperty(NumberService.TRANSPORT_PROPERTY, IngestTransport.LOOPBACK.name());
+        try {
+            return new NumberService();
+        } finally {
+            System.clearProperty(NumberService.TRANSPORT_PROPERTY);
+        }
+    }
+
+    private static NumberClient connect(String name, StreamFormat format) throws Exception {
+        // the service binds its endpoint on its own thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return NumberClient.connect(name, 2, format);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static long awaitSum(NumberClient client, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.count().get() < count && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        return client.sum().get();
+    }
+}
@@ -0,0 +1,169 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test credit based flow control
+ */
+public class FlowControllerTest {
+
+    // a producer runs out of credits while the worker is behind and gets them back as it catches up
+    @Test
+    public void windowExhaustionAndRefill() throws Exception {
+        int[] depth = {0};
+        List<Integer> grants = new ArrayList<>();
+        FlowController flow = new FlowController(8, () -> depth[0], grants::add);
+        flow.start();
+        Assert.assertEquals(List.of(8), grants);
+
+        // the producer spends the window, the worker has read 2 values and queued the rest
+        depth[0] = 6;
+        flow.consumed(2);
+        Assert.assertEquals(1, grants.size());
+        Assert.assertEquals(1, flow.getStalls());
+
+        // still behind, the stall goes on
+        depth[0] = 5;
+        flow.consumed(1);
+        Assert.assertEquals(1, grants.size());
+        Assert.assertEquals(1, flow.getStalls());
+
+        // caught up, everything consumed meanwhile is returned at once
+        depth[0] = 0;
+        flow.consumed(5);
+        Assert.assertEquals(List.of(8, 8), grants);
+        Assert.assertEquals(16, flow.getGranted());
+        Assert.assertEquals(6, flow.getMaxDepth());
+
+        // below a batch nothing is sent
+        flow.consumed(1);
+        Assert.assertEquals(2, grants.size());
+        flow.consumed(1);
+        Assert.assertEquals(List.of(8, 8, 2), grants);
+        Assert.assertEquals(1, flow.getStalls());
+    }
+
+    // values already pulled into the object stream's buffer are still queued
+    @Test
+    public void queueDepthIncludesBufferedValues() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        // a full data block of 256 values and a second one of 44
+        for (int i = 1; i <= 300; i++) out.writeInt(i);
+        out.close();
+        NetworkCommunicationService service = new NetworkCommunicationService(
+                new ByteArrayInputStream(bytes.toByteArray()), new ByteArrayOutputStream());
+
+        for (int i = 0; i < 10; i++) service.listenToTCPMessage();
+        // the rest of the first block is buffered, the second one and its header are not
+        Assert.assertEquals(246 * Integer.BYTES + 2 + 44 * Integer.BYTES, service.getQueuedBytes());
+
+        for (int i = 0; i < 290; i++) service.listenToTCPMessage();
+        Assert.assertEquals(0, service.getQueuedBytes());
+    }
+
+    // one byte varints queue four times as many values as their bytes would hold ints
+    @Test
+    public void varintQueueDepthCountsValues() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        int[] values = new int[1000];
+        Arrays.fill(values, 1);
+        byte[] frame = new byte[values.length * VarintCodec.MAX_BYTES];
+        int length = VarintCodec.encode(values, values.length, frame);
+        Assert.assertEquals(values.length, length);
+        for (int f = 0; f < 20; f++) {
+            out.writeInt(length);
+            out.write(frame, 0, length);
+        }
+        out.writeInt(0);
+        out.close();
+
+        WorkerStatus status = new WorkerStatus();
+        NumberWorker worker = new NumberWorker(status, StreamFormat.VARINT);
+        worker.setFlowWindow(4000);
+        worker.receive(new NetworkCommunicationService(
+                new ByteArrayInputStream(bytes.toByteArray()), new ByteArrayOutputStream()));
+        Assert.assertEquals(20000, status.getCount());
+        // 19 frames were queued when the first one was consumed
+        int depth = worker.getFlowController().getMaxDepth();
+        Assert.assertTrue("depth " + depth, depth > 18000 && depth < 19500);
+    }
+
+    // a producer which does not read grants gets none, they would fill its socket and block the worker
+    @Test
+    public void producerWithoutCreditsGetsNoGrants() throws Exception {
+        // with a credit returned per value, grants would be waiting on the producer sockets
+        int values = 20000;
+        System.setProperty(NumberService.CREDITS_PROPERTY, "2");
+        NumberService service;
+        try {
+            service = new NumberService();
+        } finally {
+            System.clearProperty(NumberService.CREDITS_PROPERTY);
+        }
+        try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT)) {
+            service.start("localhost");
+            byte[] data = new byte[256];
+            DatagramPacket offer = new DatagramPacket(data, data.length);
+            offers.setSoTimeout(10000);
+            offers.receive(offer);
+            byte[] ack = "ACK".getBytes();
+            offers.send(new DatagramPacket(ack, ack.length, offer.getSocketAddress()));
+            int port = Integer.parseInt(new String(data, 0, offer.getLength()).trim());
+
+            try (Socket control = new Socket(offer.getAddress(), port)) {
+                ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+                out.writeInt(2);
+                out.flush();
+                int[] ports = {in.readInt(), in.readInt()};
+                List<Socket> workers = new ArrayList<>();
+                try {
+                    for (int p : ports) {
+                        Socket worker = new Socket(offer.getAddress(), p);
+                        workers.add(worker);
+                        ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(worker.getOutputStream()));
+                        new ObjectInputStream(worker.getInputStream());
+                        for (int i = 0; i < values; i++) stream.writeInt(1);
+                        stream.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+                        stream.flush();
+                    }
+                    long deadline = System.currentTimeMillis() + 10000;
+                    int count;
+                    while ((count = query(out, in, ControlMessage.QUERY_NUMBER_COUNT)) < 2 * values) {
+                        Assert.assertTrue("counted " + count, System.currentTimeMillis() < deadline);
+                        Thread.sleep(10);
+                    }
+                    for (Socket worker : workers) Assert.assertEquals(0, worker.getInputStream().available());
+                } finally {
+                    for (Socket worker : workers) worker.close();
+                }
+                out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+                out.flush();
+            }
+        }
+        Assert.assertTrue(service.await(10, TimeUnit.SECONDS));
+    }
+
+    private static int query(ObjectOutputStream out, ObjectInputStream in, ControlMessage msg) throws Exception {
+        out.writeInt(msg.getValue());
+        out.flush();
+        return in.readInt();
+    }
+}
@@ -0,0 +1,47 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the freshness histograms
+ */
+public class FreshnessTrackerTest {
+
+    @Test
+    public void percentilesAreBucketBounds() throws Exception {
+        FreshnessTracker.Histogram h = new FreshnessTracker.Histogram();
+        for (int i = 0; i < 99; i++) h.record(1000);
+        h.record(1_000_000);
+
+        Assert.assertEquals(100, h.getCount());
+        // 1000 ns falls in the bucket up to 1023
+        Assert.assertEquals(1023, h.percentile(0.5));
+        Assert.assertEquals(1023, h.percentile(0.99));
+        // the top bucket is capped by the largest sample
+        Assert.assertEquals(1_000_000, h.percentile(1.0));
+        Assert.assertEquals(1_000_000, h.getMax());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        FreshnessTracker.Histogram h = new FreshnessTracker.Histogram();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.percentile(0.99));
+    }
+
+    // a push covers every sample accumulated before it, measured from the oldest
+    @Test
+    public void publishedFromOldestSample() throws Exception {
+        FreshnessTracker tracker = new FreshnessTracker(1);
+        long first = System.nanoTime() - 5_000_000;
+        tracker.visible(first);
+        tracker.visible(System.nanoTime());
+        tracker.published();
+        tracker.published();
+
+        Assert.assertEquals(2, tracker.getVisible().getCount());
+        Assert.assertEquals(1, tracker.getPublished().getCount());
+        Assert.assertTrue(tracker.getPublished().getMax() >= 5_000_000);
+    }
+}
@@ -0,0 +1,80 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test the per key aggregates against a boxed map
+ */
+public class KeyedAggregatesTest {
+
+    @Test
+    public void matchesHashMapWhileGrowing() throws Exception {
+        Random random = new Random(9);
+        KeyedAggregates keyed = new KeyedAggregates();
+        WorkerStatus status = new WorkerStatsTable().allocate();
+        Map<Integer, long[]> reference = new HashMap<>();
+        int[] frame = new int[512];
+        long total = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < frame.length; i += 2) {
+                // includes key 0 and negative keys, far more keys than the initial capacity
+                frame[i] = random.nextInt(20_000) - 10_000;
+                frame[i + 1] = random.nextInt(1000);
+                long[] r = reference.computeIfAbsent(frame[i], k -> new long[2]);
+                r[0] += frame[i + 1];
+                r[1]++;
+                total += frame[i + 1];
+            }
+            keyed.addPairs(frame, frame.length, status);
+        }
+        Assert.assertEquals(reference.size(), keyed.size());
+        for (Map.Entry<Integer, long[]> e : reference.entrySet()) {
+            Assert.assertEquals(e.getValue()[0], keyed.getSum(e.getKey()));
+            Assert.assertEquals(e.getValue()[1], keyed.getCount(e.getKey()));
+        }
+        Assert.assertEquals(0, keyed.getCount(20_000));
+        Assert.assertEquals(0, keyed.getSum(20_000));
+        Assert.assertEquals(total, status.getSum());
+        Assert.assertEquals(200 * frame.length / 2, status.getCount());
+    }
+
+    @Test
+    public void topKeysLargestFirst() throws Exception {
+        KeyedAggregates keyed = new KeyedAggregates();
+        WorkerStatus status = new WorkerStatsTable().allocate();
+        int[] frame = new int[2000];
+        for (int i = 0; i < frame.length; i += 2) {
+            frame[i] = i / 2;
+            frame[i + 1] = (i / 2 * 37) % 1000;
+        }
+        keyed.addPairs(frame, frame.length, status);
+
+        int[] keys = new int[5];
+        long[] sums = new long[5];
+        Assert.assertEquals(5, keyed.top(keys, sums));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(999 - i, sums[i]);
+            Assert.assertEquals(999 - i, (keys[i] * 37) % 1000);
+        }
+
+        // fewer keys than wanted
+        KeyedAggregates merged = new KeyedAggregates();
+        merged.addPairs(new int[]{-3, 10, 4, 20, -3, 15}, 6, status);
+        keys = new int[10];
+        sums = new long[10];
+        Assert.assertEquals(2, merged.top(keys, sums));
+        Assert.assertEquals(-3, keys[0]);
+        Assert.assertEquals(25, sums[0]);
+        Assert.assertEquals(4, keys[1]);
+
+        merged.merge(keyed);
+        Assert.assertEquals(1001, merged.size());
+        Assert.assertEquals(20 + 4 * 37 % 1000, merged.getSum(4));
+        Assert.assertEquals(2, merged.getCount(4));
+    }
+}
@@ -0,0 +1,131 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test adding and retiring workers of a live session, over the control
+ * channel of an embedded service
+ */
+public class LiveWorkersTest {
+
+    private static final int INVALID = ControlMessage.INVALID_QUERY.getValue();
+
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+
+    @Test
+    public void addAndRetireWorkers() throws Exception {
+        System.setProperty(NumberService.TRANSPORT_PROPERTY, IngestTransport.LOOPBACK.name());
+        NumberService service;
+        try {
+            service = new NumberService();
+        } finally {
+            System.clearProperty(NumberService.TRANSPORT_PROPERTY);
+        }
+        service.start("live-workers");
+        Loopback.Connection control = connect("live-workers");
+        out = new ObjectOutputStream(control.getOutputStream());
+        out.flush();
+        in = new ObjectInputStream(control.getInputStream());
+        out.writeInt(NumberService.MIN_WORKERS | StreamFormat.INT.getId() << NumberService.FORMAT_REQUEST_SHIFT);
+        out.flush();
+        List<String> endpoints = new ArrayList<>();
+        for (int i = 0; i < NumberService.MIN_WORKERS; i++) endpoints.add(in.readUTF());
+        Assert.assertEquals(StreamFormat.INT.getId(), in.readInt());
+
+        ObjectOutputStream first = stream(endpoints.get(0));
+        ObjectOutputStream second = stream(endpoints.get(1));
+        for (int i = 1; i <= 100; i++) first.writeInt(i);
+        first.flush();
+        second.writeInt(1000);
+        second.flush();
+        awaitCount(101);
+
+        // no such worker, and no retiring below MIN_WORKERS
+        Assert.assertEquals(INVALID, query(ControlMessage.RETIRE_WORKER, -5));
+        Assert.assertEquals(INVALID, query(ControlMessage.RETIRE_WORKER, id(endpoints.get(0))));
+
+        int added = query(ControlMessage.ADD_WORKER);
+        Assert.assertTrue(added != INVALID);
+        String endpoint = in.readUTF();
+        Assert.assertEquals(added, id(endpoint));
+        endpoints.add(endpoint);
+        ObjectOutputStream third = stream(endpoint);
+        third.writeInt(7);
+        third.flush();
+        awaitCount(102);
+
+        // the retired worker's totals stay in the aggregates
+        int retired = id(endpoints.get(0));
+        Assert.assertEquals(retired, query(ControlMessage.RETIRE_WORKER, retired));
+        Assert.assertEquals(INVALID, query(ControlMessage.RETIRE_WORKER, retired));
+        Assert.assertEquals(INVALID, query(ControlMessage.RETIRE_WORKER, id(endpoints.get(1))));
+        Assert.assertEquals(5050 + 1000 + 7, query(ControlMessage.QUERY_SUM_COMPLETE));
+        Assert.assertEquals(102, query(ControlMessage.QUERY_NUMBER_COUNT));
+
+        // up to MAX_WORKERS running
+        List<ObjectOutputStream> streams = new ArrayList<>(List.of(second, third));
+        for (int running = 2; running < NumberService.MAX_WORKERS; running++) {
+            Assert.assertTrue(query(ControlMessage.ADD_WORKER) != INVALID);
+            streams.add(stream(in.readUTF()));
+        }
+        Assert.assertEquals(INVALID, query(ControlMessage.ADD_WORKER));
+
+        for (ObjectOutputStream s : streams) {
+            s.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+            s.flush();
+        }
+        out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+        out.flush();
+        Assert.assertTrue(service.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, service.getExitStatus());
+        control.close();
+    }
+
+    private int query(ControlMessage msg, int... arguments) throws Exception {
+        out.writeInt(msg.getValue());
+        for (int a : arguments) out.writeInt(a);
+        out.flush();
+        return in.readInt();
+    }
+
+    private void awaitCount(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (query(ControlMessage.QUERY_NUMBER_COUNT) < count) {
+            Assert.assertTrue("values not counted in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static ObjectOutputStream stream(String endpoint) throws Exception {
+        ObjectOutputStream stream = new ObjectOutputStream(Loopback.connect(endpoint).getOutputStream());
+        stream.flush();
+        return stream;
+    }
+
+    // loopback worker endpoints are named after the worker id
+    private static int id(String endpoint) {
+        return Integer.parseInt(endpoint.substring(endpoint.lastIndexOf('-') + 1));
+    }
+
+    private static Loopback.Connection connect(String name) throws Exception {
+        // the service binds its endpoint on its own thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return Loopback.connect(name);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+}
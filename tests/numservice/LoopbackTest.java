@@ -0,0 +1,89 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * Test the in-memory connections
+ */
+public class LoopbackTest {
+
+    @Test
+    public void bytesFlowBothWaysAndDrainAfterClose() throws Exception {
+        Loopback.Endpoint endpoint = Loopback.bind("loopback-test");
+        Loopback.Connection client = Loopback.connect("loopback-test");
+        Loopback.Connection server = endpoint.accept(1000);
+
+        // more than the buffer, the writer waits for the reader
+        byte[] data = new byte[Loopback.BUFFER_SIZE * 3 + 17];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream out = client.getOutputStream();
+                out.write(data, 0, data.length);
+                out.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        InputStream in = server.getInputStream();
+        byte[] read = new byte[data.length];
+        int n = 0;
+        for (int r; (r = in.read(read, n, read.length - n)) > 0; ) n += r;
+        writer.join();
+        Assert.assertEquals(data.length, n);
+        Assert.assertTrue(Arrays.equals(data, read));
+        Assert.assertEquals(-1, in.read());
+        Assert.assertTrue(server.isClosed());
+
+        try {
+            server.getOutputStream().write(1);
+            Assert.fail("the peer closed");
+        } catch (SocketException e) {
+            // expected
+        }
+        endpoint.close();
+    }
+
+    @Test
+    public void closedEndpointRefusesAndUnblocksAccept() throws Exception {
+        Loopback.Endpoint endpoint = Loopback.bind("loopback-close-test");
+        try {
+            endpoint.accept(10);
+            Assert.fail("nobody connected");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            endpoint.close();
+        });
+        closer.start();
+        try {
+            endpoint.accept(0);
+            Assert.fail("the endpoint closed");
+        } catch (SocketException e) {
+            // expected
+        }
+        try {
+            Loopback.connect("loopback-close-test");
+            Assert.fail("the endpoint closed");
+        } catch (ConnectException e) {
+            // expected
+        }
+        // the name is free again
+        Loopback.bind("loopback-close-test").close();
+    }
+}
@@ -0,0 +1,66 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Test serving the statistics over HTTP
+ */
+public class MetricsEndpointTest {
+
+    @Test
+    public void servesTotalsAndWorkers() throws Exception {
+        WorkerStatsTable stats = new WorkerStatsTable();
+        ConcurrentHashMap<NumberWorker, WorkerStatus> statuses = new ConcurrentHashMap<>();
+        WorkerStatus status = stats.allocate();
+        NumberWorker worker = new NumberWorker(status);
+        status.setWorkerId(worker.getId());
+        statuses.put(worker, status);
+        status.addBlock(15, 5, 1, 5);
+
+        MetricsEndpoint endpoint = new MetricsEndpoint(stats, statuses, null);
+        endpoint.start(0);
+        try {
+            HttpURLConnection c = (HttpURLConnection) new URL("http://localhost:" + endpoint.getPort()
+                    + MetricsEndpoint.PATH).openConnection();
+            Assert.assertEquals(200, c.getResponseCode());
+            Assert.assertTrue(c.getContentType().startsWith("text/plain"));
+            String body;
+            try (InputStream in = c.getInputStream()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            Assert.assertTrue(body.contains("# TYPE numservice_values_total counter\n"));
+            Assert.assertTrue(body.contains("\nnumservice_sum 15\n"));
+            Assert.assertTrue(body.contains("\nnumservice_values_total 5\n"));
+            Assert.assertTrue(body.contains("\nnumservice_workers 1\n"));
+            Assert.assertTrue(body.contains("numservice_worker_sum{worker=\"" + worker.getId() + "\"} 15\n"));
+            Assert.assertFalse(body.contains("numservice_freshness_seconds"));
+            Assert.assertFalse(body.contains("numservice_ingest_rate"));
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    // a summary carries the sum and count next to the quantiles
+    @Test
+    public void freshnessSummary() throws Exception {
+        FreshnessTracker freshness = new FreshnessTracker(1);
+        long now = System.nanoTime();
+        freshness.visible(now - 2_000_000);
+        freshness.visible(now - 1_000_000);
+        long sum = freshness.getVisible().getSum();
+        Assert.assertTrue(sum >= 3_000_000);
+
+        String body = new MetricsEndpoint(new WorkerStatsTable(), new ConcurrentHashMap<>(), freshness).render();
+        Assert.assertTrue(body.contains("# TYPE numservice_freshness_seconds summary\n"));
+        Assert.assertTrue(body.contains("numservice_freshness_seconds{quantile=\"0.99\"} "));
+        Assert.assertTrue(body.contains("\nnumservice_freshness_seconds_sum " + sum / 1e9 + "\n"));
+        Assert.assertTrue(body.contains("\nnumservice_freshness_seconds_count 2\n"));
+    }
+}
@@ -0,0 +1,107 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test demultiplexing tagged values into the logical workers
+ */
+public class MultiplexIngressTest {
+
+    @Test
+    public void demultiplexesAndEndsTags() throws Exception {
+        WorkerStatsTable stats = new WorkerStatsTable();
+        WorkerStatus[] statuses = new WorkerStatus[3];
+        for (int i = 0; i < statuses.length; i++) statuses[i] = stats.allocate();
+        // fewer shards than workers, two workers share an accumulator
+        MultiplexIngress ingress = new MultiplexIngress(statuses, 2);
+        Thread decoder = new Thread(ingress);
+        decoder.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ingress.getPort() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        try (Socket socket = new Socket("localhost", ingress.getPort())) {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            for (int i = 1; i <= 1000; i++) {
+                pair(out, 1 + i % 3, i);
+            }
+            // the first worker ends, its later values are dropped
+            pair(out, 1, ControlMessage.TERMINATE_STREAM.getValue());
+            pair(out, 1, 5);
+            pair(out, 2, 7);
+            pair(out, 1, 9);
+            // tag 0 ends the stream
+            pair(out, 0, 0);
+            out.flush();
+            decoder.join(10000);
+        }
+        Assert.assertFalse(decoder.isAlive());
+
+        // i % 3 == 0 went to the first worker, 1 to the second and 2 to the third
+        long[] sums = new long[3];
+        int[] counts = new int[3];
+        for (int i = 1; i <= 1000; i++) {
+            sums[i % 3] += i;
+            counts[i % 3]++;
+        }
+        sums[1] += 7;
+        counts[1]++;
+        for (int w = 0; w < 3; w++) {
+            Assert.assertEquals(sums[w], statuses[w].getSum());
+            Assert.assertEquals(counts[w], statuses[w].getCount());
+        }
+        Assert.assertEquals(2, ingress.getDropped());
+        Assert.assertEquals(sums[0] + sums[1] + sums[2], stats.sum());
+    }
+
+    // a stopped service drops the open ingress connection instead of waiting for the producer
+    @Test
+    public void stopWithOpenProducer() throws Exception {
+        System.setProperty(NumberService.INGRESS_PROPERTY, NumberService.MULTIPLEX_INGRESS);
+        NumberService service = new NumberService();
+        try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT)) {
+            service.start("localhost");
+            byte[] data = new byte[256];
+            DatagramPacket offer = new DatagramPacket(data, data.length);
+            offers.setSoTimeout(10000);
+            offers.receive(offer);
+            byte[] ack = "ACK".getBytes();
+            offers.send(new DatagramPacket(ack, ack.length, offer.getSocketAddress()));
+            int port = Integer.parseInt(new String(data, 0, offer.getLength()).trim());
+
+            try (Socket control = new Socket(offer.getAddress(), port)) {
+                ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+                out.writeInt(2);
+                out.flush();
+                int ingressPort = in.readInt();
+                Assert.assertEquals(ingressPort, in.readInt());
+                try (Socket ingress = new Socket(offer.getAddress(), ingressPort)) {
+                    ObjectOutputStream values = new ObjectOutputStream(ingress.getOutputStream());
+                    pair(values, 1, 5);
+                    pair(values, 2, 7);
+                    values.flush();
+                    // the stream stays open while the service stops
+                    service.stop();
+                    Assert.assertTrue(service.await(10, TimeUnit.SECONDS));
+                    Assert.assertEquals(0, service.getExitStatus());
+                }
+            }
+        } finally {
+            System.clearProperty(NumberService.INGRESS_PROPERTY);
+        }
+    }
+
+    private static void pair(ObjectOutputStream out, int tag, int value) throws Exception {
+        out.writeInt(tag);
+        out.writeInt(value);
+    }
+}
@@ -0,0 +1,116 @@
+package numservice;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Test that receiving values does not allocate per value once logging is off
+ * <p>
+ * The stream is read from memory on the test thread, whose allocated bytes
+ * are counted by the thread MX bean around the last of several rounds.
+ */
+public class NumberWorkerAllocationTest {
+
+    private static final int VALUES = 2_000_000;
+    // streams received before the measured one, until then the JIT may not have
+    // compiled away the temporaries
+    private static final int WARMUP_ROUNDS = 5;
+    // one time allocations, such as the end of stream handling
+    private static final long ALLOWANCE = 64 * 1024;
+
+    // strong references, the levels are lost if the loggers are collected
+    private static final Logger WORKER_LOG = Logger.getLogger(NumberWorker.class.getName());
+    private static final Logger NET_LOG = Logger.getLogger(NetworkCommunicationService.class.getName());
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Before
+    public void setUp() throws Exception {
+        WORKER_LOG.setLevel(Level.WARNING);
+        NET_LOG.setLevel(Level.WARNING);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        WORKER_LOG.setLevel(null);
+        NET_LOG.setLevel(null);
+    }
+
+    @Test
+    public void perValueStream() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(VALUES * 5);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        for (int i = 0; i < VALUES; i++) out.writeInt(i % 1000 + 1);
+        out.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+        out.close();
+
+        WorkerStatus status = new WorkerStatus();
+        long allocated = receive(status, StreamFormat.INT, bytes);
+
+        Assert.assertEquals(VALUES, status.getCount());
+        Assert.assertTrue("allocated " + allocated + " bytes for " + VALUES + " values", allocated < ALLOWANCE);
+    }
+
+    @Test
+    public void blockStream() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(VALUES * 5);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        int frame = 1000;
+        for (int f = 0; f < VALUES / frame; f++) {
+            out.writeInt(frame);
+            for (int i = 0; i < frame; i++) out.writeInt(i);
+        }
+        out.writeInt(0);
+        out.close();
+
+        WorkerStatus status = new WorkerStatus();
+        long allocated = receive(status, StreamFormat.BLOCK, bytes);
+
+        Assert.assertEquals(VALUES, status.getCount());
+        Assert.assertTrue("allocated " + allocated + " bytes for " + VALUES + " values", allocated < ALLOWANCE);
+    }
+
+    /**
+     * Receive the stream on this thread, warm up rounds first
+     *
+     * @param status status of the measured round
+     * @return bytes allocated by this thread while receiving the measured round
+     */
+    private long receive(WorkerStatus status, StreamFormat format, ByteArrayOutputStream stream) throws IOException {
+        byte[] bytes = stream.toByteArray();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            worker(new WorkerStatus(), format).receive(service(bytes));
+        }
+        NumberWorker worker = worker(status, format);
+        NetworkCommunicationService service = service(bytes);
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        worker.receive(service);
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    /**
+     * Worker reducing blocks with the scalar accumulator, the vectorized one only
+     * stops allocating once C2 has compiled it, whenever the compiler queue gets to it
+     */
+    private static NumberWorker worker(WorkerStatus status, StreamFormat format) {
+        NumberWorker worker = new NumberWorker(status, format);
+        worker.setBlockAccumulator(new BlockAccumulator.Scalar());
+        return worker;
+    }
+
+    private static NetworkCommunicationService service(byte[] bytes) throws IOException {
+        return new NetworkCommunicationService(new ByteArrayInputStream(bytes), new ByteArrayOutputStream());
+    }
+}
@@ -0,0 +1,52 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test merging partial aggregates of several nodes
+ */
+public class PartialAggregateTest {
+
+    private static WorkerStatus status(int... values) {
+        WorkerStatus s = new WorkerStatus();
+        for (int v : values) {
+            s.addSum(v);
+            s.incrementCount();
+        }
+        return s;
+    }
+
+    @Test
+    public void mergeNodes() throws Exception {
+        PartialAggregate node1 = new PartialAggregate();
+        node1.add(1, status(3, 4));
+        node1.add(2, status(-5));
+
+        PartialAggregate node2 = new PartialAggregate();
+        node2.add((2 << NumberWorker.NODE_ID_SHIFT) | 1, status(10, -1, 1));
+
+        PartialAggregate merged = new PartialAggregate();
+        merged.merge(node1);
+        merged.merge(node2);
+
+        Assert.assertEquals(12, merged.getSum());
+        Assert.assertEquals(6, merged.getCount());
+        Assert.assertEquals((2 << NumberWorker.NODE_ID_SHIFT) | 1, merged.getMaxSumWorker());
+        Assert.assertEquals(10, merged.getMaxSum());
+    }
+
+    // a node without workers does not win the max sum query
+    @Test
+    public void mergeEmpty() throws Exception {
+        PartialAggregate node1 = new PartialAggregate();
+        node1.add(1, status(-7));
+
+        PartialAggregate merged = new PartialAggregate();
+        merged.merge(new PartialAggregate());
+        merged.merge(node1);
+
+        Assert.assertEquals(1, merged.getMaxSumWorker());
+        Assert.assertEquals(-7, merged.getSum());
+    }
+}
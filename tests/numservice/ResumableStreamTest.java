@@ -0,0 +1,69 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Test resuming a worker stream after a lost connection
+ */
+public class ResumableStreamTest {
+
+    private static final long SESSION = 42;
+
+    @Test
+    public void resumesAfterLostConnection() throws Exception {
+        WorkerStatus status = new WorkerStatus();
+        NumberWorker worker = new NumberWorker(status);
+        Thread thread = startWorker(worker);
+
+        ResumableStream stream = new ResumableStream("localhost", worker.getPort(), SESSION,
+                worker.getResumeToken(), 4096);
+        for (int i = 1; i <= 5000; i++) stream.send(i);
+        stream.flush();
+        stream.dropConnection();
+        for (int i = 5001; i <= 10000; i++) stream.send(i);
+        stream.close();
+        thread.join(10000);
+
+        // every value exactly once
+        Assert.assertEquals(1, stream.getResumes());
+        Assert.assertEquals(10000, stream.getAcknowledged());
+        Assert.assertEquals(10000, status.getCount());
+        Assert.assertEquals(50005000, status.getSum());
+    }
+
+    @Test
+    public void rejectsWrongToken() throws Exception {
+        WorkerStatus status = new WorkerStatus();
+        NumberWorker worker = new NumberWorker(status);
+        Thread thread = startWorker(worker);
+
+        try {
+            new ResumableStream("localhost", worker.getPort(), SESSION, worker.getResumeToken() + 1, 4096);
+            Assert.fail("Worker accepted a wrong token");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the worker keeps waiting for its producer
+        ResumableStream stream = new ResumableStream("localhost", worker.getPort(), SESSION,
+                worker.getResumeToken(), 4096);
+        stream.send(7);
+        stream.close();
+        thread.join(10000);
+        Assert.assertEquals(1, status.getCount());
+        Assert.assertEquals(7, status.getSum());
+    }
+
+    private static Thread startWorker(NumberWorker worker) {
+        worker.setResume(SESSION, 5000);
+        Thread thread = new Thread(worker);
+        thread.start();
+        while (worker.getPort() == 0) {
+            Thread.onSpinWait();
+        }
+        return thread;
+    }
+}
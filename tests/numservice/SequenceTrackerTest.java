@@ -0,0 +1,63 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test datagram loss and duplicate accounting
+ */
+public class SequenceTrackerTest {
+
+    @Test
+    public void gapsAndDuplicates() throws Exception {
+        SequenceTracker tracker = new SequenceTracker();
+        Assert.assertTrue(tracker.accept(10));
+        Assert.assertTrue(tracker.accept(11));
+        Assert.assertTrue(tracker.accept(14));
+        Assert.assertFalse(tracker.accept(11));
+        Assert.assertEquals(2, tracker.getLost());
+        Assert.assertEquals(1, tracker.getDuplicates());
+
+        // a reordered datagram fills its gap
+        Assert.assertTrue(tracker.accept(12));
+        Assert.assertEquals(1, tracker.getLost());
+        Assert.assertFalse(tracker.accept(12));
+        Assert.assertEquals(2, tracker.getDuplicates());
+    }
+
+    // datagrams the window has already passed are dropped as late
+    @Test
+    public void late() throws Exception {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.accept(0);
+        tracker.accept(SequenceTracker.WINDOW + 5);
+        Assert.assertFalse(tracker.accept(3));
+        Assert.assertEquals(1, tracker.getLate());
+        Assert.assertEquals(SequenceTracker.WINDOW + 4, tracker.getLost());
+
+        // inside the window after a large jump nothing is remembered as received
+        Assert.assertTrue(tracker.accept(SequenceTracker.WINDOW + 1));
+    }
+
+    // the counter wraps from 2^32 - 1 to 0 without the datagrams counting as late
+    @Test
+    public void wrapAround() throws Exception {
+        SequenceTracker tracker = new SequenceTracker();
+        Assert.assertTrue(tracker.accept(0xFFFFFFFE));
+        Assert.assertTrue(tracker.accept(0xFFFFFFFF));
+        Assert.assertTrue(tracker.accept(1));
+        Assert.assertEquals(1, tracker.getLost());
+        Assert.assertTrue(tracker.accept(0));
+        Assert.assertEquals(0, tracker.getLost());
+        Assert.assertFalse(tracker.accept(0xFFFFFFFF));
+        Assert.assertEquals(1, tracker.getDuplicates());
+        Assert.assertEquals(0, tracker.getLate());
+
+        for (int seq = 2; seq < 3 * SequenceTracker.WINDOW; seq++) Assert.assertTrue(tracker.accept(seq));
+        Assert.assertEquals(0, tracker.getLost());
+        Assert.assertEquals(3 * SequenceTracker.WINDOW + 2, tracker.getReceived());
+        // from before the wrap, long passed by the window
+        Assert.assertFalse(tracker.accept(0xFFFFFFFF));
+        Assert.assertEquals(1, tracker.getLate());
+    }
+}
@@ -0,0 +1,110 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Test the memory-mapped ring buffer between a producer and a consumer
+ */
+public class SharedMemoryRingTest {
+
+    // the indexes run past the capacity many times, values keep their order
+    @Test
+    public void wrapAround() throws Exception {
+        Path dir = Files.createTempDirectory("ring");
+        Path file = dir.resolve("wrap.ring");
+        try (SharedMemoryRing consumer = SharedMemoryRing.create(file, 6);
+             SharedMemoryRing producer = SharedMemoryRing.open(file)) {
+            Assert.assertEquals(8, consumer.capacity());
+            Assert.assertEquals(8, producer.capacity());
+            int[] three = new int[3];
+            int[] batch = new int[5];
+            int next = 1;
+            int expected = 1;
+            for (int round = 0; round < 100; round++) {
+                // 3 values one at a time and 2 at once, then take them out in two polls
+                for (int i = 0; i < 3; i++) Assert.assertTrue(producer.offer(next++));
+                Assert.assertEquals(2, producer.offer(new int[]{next, next + 1}, 0, 2));
+                next += 2;
+                Assert.assertEquals(3, consumer.poll(three));
+                for (int v : three) Assert.assertEquals(expected++, v);
+                Assert.assertEquals(2, consumer.poll(batch));
+                Assert.assertEquals(expected++, batch[0]);
+                Assert.assertEquals(expected++, batch[1]);
+            }
+            Assert.assertEquals(0, consumer.poll(batch));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    // a full ring refuses values until the consumer frees slots
+    @Test
+    public void fullRing() throws Exception {
+        Path dir = Files.createTempDirectory("ring");
+        Path file = dir.resolve("full.ring");
+        try (SharedMemoryRing consumer = SharedMemoryRing.create(file, 4);
+             SharedMemoryRing producer = SharedMemoryRing.open(file)) {
+            Assert.assertEquals(3, producer.offer(new int[]{1, 2, 3}, 0, 3));
+            // only one slot left of the five values
+            Assert.assertEquals(1, producer.offer(new int[]{4, 5, 6, 7, 8}, 0, 5));
+            Assert.assertFalse(producer.offer(9));
+            Assert.assertEquals(0, producer.offer(new int[]{9}, 0, 1));
+
+            int[] two = new int[2];
+            Assert.assertEquals(2, consumer.poll(two));
+            Assert.assertEquals(1, two[0]);
+            Assert.assertEquals(2, two[1]);
+            Assert.assertTrue(producer.offer(10));
+            Assert.assertTrue(producer.offer(11));
+            Assert.assertFalse(producer.offer(12));
+
+            // the consumer first drains what it saw published, then the values written since
+            int[] rest = new int[8];
+            Assert.assertEquals(2, consumer.poll(rest));
+            Assert.assertEquals(3, rest[0]);
+            Assert.assertEquals(4, rest[1]);
+            Assert.assertEquals(2, consumer.poll(rest));
+            Assert.assertEquals(10, rest[0]);
+            Assert.assertEquals(11, rest[1]);
+            Assert.assertEquals(0, consumer.poll(rest));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    // an existing file or a link planted at the path is never opened
+    @Test
+    public void createNewFileOnly() throws Exception {
+        Path dir = Files.createTempDirectory("ring");
+        Path target = Files.write(dir.resolve("target"), new byte[]{1, 2, 3});
+        Path link = Files.createSymbolicLink(dir.resolve("link.ring"), target);
+        Path file = dir.resolve("own.ring");
+        try {
+            for (Path existing : new Path[]{target, link}) {
+                try {
+                    SharedMemoryRing.create(existing, 4).close();
+                    Assert.fail(existing + " was opened");
+                } catch (FileAlreadyExistsException e) {
+                    // expected
+                }
+            }
+            Assert.assertEquals(3, Files.size(target));
+
+            SharedMemoryRing.create(file, 4).close();
+            Assert.assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(link);
+            Files.delete(target);
+            Files.delete(dir);
+        }
+    }
+}
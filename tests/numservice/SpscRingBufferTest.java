@@ -0,0 +1,51 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the single producer single consumer ring buffer
+ */
+public class SpscRingBufferTest {
+
+    @Test
+    public void capacityAndFull() throws Exception {
+        SpscRingBuffer ring = new SpscRingBuffer(3);
+        Assert.assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(ring.offer(i));
+        }
+        Assert.assertFalse(ring.offer(4));
+
+        long[] batch = new long[3];
+        Assert.assertEquals(3, ring.poll(batch));
+        Assert.assertEquals(2, batch[2]);
+        Assert.assertEquals(1, ring.size());
+    }
+
+    // values cross threads in order and none is lost
+    @Test
+    public void producerConsumer() throws Exception {
+        final int count = 1000000;
+        SpscRingBuffer ring = new SpscRingBuffer(1024);
+        Thread producer = new Thread(() -> {
+            for (long i = 0; i < count; i++) {
+                while (!ring.offer(i)) {
+                    Thread.onSpinWait();
+                }
+            }
+        });
+        producer.start();
+
+        long[] batch = new long[64];
+        long expected = 0;
+        while (expected < count) {
+            int n = ring.poll(batch);
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(expected++, batch[i]);
+            }
+        }
+        producer.join();
+        Assert.assertEquals(0, ring.size());
+    }
+}
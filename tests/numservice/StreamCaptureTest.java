@@ -0,0 +1,416 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+import server.CaptureReplay;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test capturing sessions and replaying them against a new service
+ */
+public class StreamCaptureTest {
+
+    private static final int WORKERS = 3;
+    private static final int VALUES = 300;
+
+    // records come back in order with their offsets accumulated
+    @Test
+    public void writeAndRead() throws Exception {
+        Path file = Files.createTempFile("capture", ".bin");
+        try {
+            StreamCapture capture = new StreamCapture(file, new int[]{7, 9});
+            capture.recordValue(9, 42);
+            capture.recordQuery(ControlMessage.QUERY_SUM_COMPLETE.getValue());
+            capture.recordAnswer(42);
+            capture.recordValue(7, -1);
+            capture.close();
+
+            try (StreamCapture.Reader reader = new StreamCapture.Reader(file)) {
+                Assert.assertEquals(2, reader.getWorkerIds().length);
+                Assert.assertEquals(7, reader.getWorkerIds()[0]);
+                Assert.assertEquals(9, reader.getWorkerIds()[1]);
+                byte[] kinds = {StreamCapture.KIND_VALUE, StreamCapture.KIND_QUERY,
+                        StreamCapture.KIND_ANSWER, StreamCapture.KIND_VALUE};
+                int[] channels = {9, StreamCapture.CONTROL_CHANNEL, StreamCapture.CONTROL_CHANNEL, 7};
+                int[] values = {42, ControlMessage.QUERY_SUM_COMPLETE.getValue(), 42, -1};
+                long offset = 0;
+                for (int i = 0; i < kinds.length; i++) {
+                    Assert.assertTrue(reader.next());
+                    Assert.assertEquals(kinds[i], reader.getKind());
+                    Assert.assertEquals(channels[i], reader.getChannel());
+                    Assert.assertEquals(values[i], reader.getValue());
+                    Assert.assertTrue(reader.getOffsetMicros() >= offset);
+                    offset = reader.getOffsetMicros();
+                }
+                Assert.assertFalse(reader.next());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // a multiplexed session is captured per logical worker and replays against
+    // a service with a stream per worker, which captures the same streams again
+    @Test
+    public void multiplexedCaptureReplays() throws Exception {
+        Path first = Files.createTempFile("capture", ".bin");
+        Path second = Files.createTempFile("capture", ".bin");
+        try {
+            System.setProperty(NumberService.INGRESS_PROPERTY, NumberService.MULTIPLEX_INGRESS);
+            System.setProperty(NumberService.CAPTURE_PROPERTY, first.toString());
+            NumberService multiplexed = new NumberService();
+            try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT)) {
+                multiplexed.start("localhost");
+                DatagramPacket offer = receiveOffer(offers);
+                produce(offer, port(offer));
+            } finally {
+                System.clearProperty(NumberService.INGRESS_PROPERTY);
+            }
+            Assert.assertTrue(multiplexed.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, multiplexed.getExitStatus());
+
+            List<List<Integer>> captured = streams(first);
+            for (int w = 0; w < WORKERS; w++) {
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 1; i <= VALUES; i++) {
+                    if (i % WORKERS == w) expected.add(i);
+                }
+                expected.add(ControlMessage.TERMINATE_STREAM.getValue());
+                Assert.assertEquals(expected, captured.get(w));
+            }
+
+            System.setProperty(NumberService.CAPTURE_PROPERTY, second.toString());
+            NumberService replayed = new NumberService();
+            try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT);
+                 StreamCapture.Reader reader = new StreamCapture.Reader(first)) {
+                replayed.start("localhost");
+                DatagramPacket offer = receiveOffer(offers);
+                CaptureReplay.replay(reader, offer.getAddress(), port(offer), false);
+            }
+            Assert.assertTrue(replayed.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, replayed.getExitStatus());
+            Assert.assertEquals(captured, streams(second));
+        } finally {
+            System.clearProperty(NumberService.CAPTURE_PROPERTY);
+            Files.deleteIfExists(first);
+            Files.deleteIfExists(second);
+        }
+    }
+
+    // a framed capture keeps its format and its 0 values, the replay sends the same frames
+    @Test
+    public void blockCaptureReplaysZeros() throws Exception {
+        Path first = Files.createTempFile("capture", ".bin");
+        Path second = Files.createTempFile("capture", ".bin");
+        try {
+            System.setProperty(NumberService.CAPTURE_PROPERTY, first.toString());
+            NumberService captured = new NumberService();
+            try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT)) {
+                captured.start("localhost");
+                DatagramPacket offer = receiveOffer(offers);
+                produceBlocks(offer, port(offer));
+            }
+            Assert.assertTrue(captured.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, captured.getExitStatus());
+
+            List<List<Integer>> streams = streams(first);
+            for (int w = 0; w < WORKERS; w++) {
+                Assert.assertEquals(blockValues(w), streams.get(w));
+            }
+            try (StreamCapture.Reader reader = new StreamCapture.Reader(first)) {
+                Assert.assertEquals(StreamFormat.BLOCK, reader.getFormat());
+                int ends = 0;
+                while (reader.next()) {
+                    if (reader.getKind() == StreamCapture.KIND_END) ends++;
+                }
+                Assert.assertEquals(WORKERS, ends);
+            }
+
+            System.setProperty(NumberService.CAPTURE_PROPERTY, second.toString());
+            NumberService replayed = new NumberService();
+            try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT);
+                 StreamCapture.Reader reader = new StreamCapture.Reader(first)) {
+                replayed.start("localhost");
+                DatagramPacket offer = receiveOffer(offers);
+                CaptureReplay.replay(reader, offer.getAddress(), port(offer), false);
+            }
+            Assert.assertTrue(replayed.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, replayed.getExitStatus());
+            Assert.assertEquals(streams, streams(second));
+            try (StreamCapture.Reader reader = new StreamCapture.Reader(second)) {
+                Assert.assertEquals(StreamFormat.BLOCK, reader.getFormat());
+            }
+        } finally {
+            System.clearProperty(NumberService.CAPTURE_PROPERTY);
+            Files.deleteIfExists(first);
+            Files.deleteIfExists(second);
+        }
+    }
+
+    // queries with arguments and longer answers replay in step, a query about a
+    // captured worker id is skipped with its arguments
+    @Test
+    public void queriesWithArgumentsReplay() throws Exception {
+        Path first = Files.createTempFile("capture", ".bin");
+        Path second = Files.createTempFile("capture", ".bin");
+        try {
+            System.setProperty(NumberService.FRESHNESS_PROPERTY, "1");
+            System.setProperty(NumberService.CAPTURE_PROPERTY, first.toString());
+            NumberService captured = new NumberService();
+            try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT)) {
+                captured.start("localhost");
+                DatagramPacket offer = receiveOffer(offers);
+                produceQueries(offer, port(offer));
+            }
+            Assert.assertTrue(captured.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, captured.getExitStatus());
+
+            System.setProperty(NumberService.CAPTURE_PROPERTY, second.toString());
+            NumberService replayed = new NumberService();
+            try (DatagramSocket offers = new DatagramSocket(NumberService.UDP_CLIENT_PORT);
+                 StreamCapture.Reader reader = new StreamCapture.Reader(first)) {
+                replayed.start("localhost");
+                DatagramPacket offer = receiveOffer(offers);
+                CaptureReplay.replay(reader, offer.getAddress(), port(offer), false);
+            }
+            Assert.assertTrue(replayed.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, replayed.getExitStatus());
+
+            // the captured queries in order, without the range query, its six arguments and its answer
+            List<Integer> expected = control(first);
+            int range = expected.indexOf(ControlMessage.QUERY_RANGE.getValue());
+            expected.subList(range, range + 8).clear();
+            Assert.assertEquals(expected, control(second));
+        } finally {
+            System.clearProperty(NumberService.FRESHNESS_PROPERTY);
+            System.clearProperty(NumberService.CAPTURE_PROPERTY);
+            Files.deleteIfExists(first);
+            Files.deleteIfExists(second);
+        }
+    }
+
+    /**
+     * Send each worker a few values, then queries with arguments and longer answers
+     * and close the session
+     */
+    private static void produceQueries(DatagramPacket offer, int port) throws Exception {
+        try (Socket control = new Socket(offer.getAddress(), port)) {
+            ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+            out.writeInt(WORKERS);
+            out.flush();
+            List<Socket> sockets = new ArrayList<>();
+            try {
+                for (int w = 0; w < WORKERS; w++) {
+                    Socket socket = new Socket(offer.getAddress(), in.readInt());
+                    sockets.add(socket);
+                    ObjectOutputStream values = new ObjectOutputStream(socket.getOutputStream());
+                    values.writeInt(w + 1);
+                    values.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+                    values.flush();
+                }
+                long deadline = System.currentTimeMillis() + 5000;
+                while (query(out, in, ControlMessage.QUERY_NUMBER_COUNT) < WORKERS) {
+                    Assert.assertTrue("values not counted in time", System.currentTimeMillis() < deadline);
+                    Thread.sleep(5);
+                }
+
+                // sample count and four percentiles
+                Assert.assertTrue(query(out, in, ControlMessage.QUERY_FRESHNESS) >= 0);
+                for (int i = 0; i < 4; i++) in.readInt();
+                // no worker retains values
+                out.writeInt(ControlMessage.QUERY_RANGE.getValue());
+                out.writeInt(1);
+                out.writeInt(RangeUnit.INDEX.ordinal());
+                out.writeLong(0);
+                out.writeLong(10);
+                out.flush();
+                Assert.assertEquals(ControlMessage.INVALID_QUERY.getValue(), in.readInt());
+                // no stream is keyed
+                out.writeInt(ControlMessage.QUERY_KEY.getValue());
+                out.writeInt(5);
+                out.flush();
+                Assert.assertEquals(ControlMessage.INVALID_QUERY.getValue(), in.readInt());
+                out.writeInt(ControlMessage.QUERY_TOP_KEYS.getValue());
+                out.writeInt(3);
+                out.flush();
+                Assert.assertEquals(0, in.readInt());
+                Assert.assertEquals(6, query(out, in, ControlMessage.QUERY_SUM_COMPLETE));
+            } finally {
+                for (Socket socket : sockets) socket.close();
+            }
+            out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+            out.flush();
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    /**
+     * @return queries, arguments and answers of a capture in order, without the count
+     * polls and the freshness sample counts, which depend on timing
+     */
+    private static List<Integer> control(Path file) throws Exception {
+        try (StreamCapture.Reader reader = new StreamCapture.Reader(file)) {
+            List<Integer> control = new ArrayList<>();
+            int query = 0;
+            while (reader.next()) {
+                if (reader.getKind() == StreamCapture.KIND_QUERY) query = reader.getValue();
+                if (reader.getKind() == StreamCapture.KIND_VALUE || query == ControlMessage.QUERY_NUMBER_COUNT.getValue()
+                        || reader.getKind() == StreamCapture.KIND_ANSWER && query == ControlMessage.QUERY_FRESHNESS.getValue()) {
+                    continue;
+                }
+                control.add(reader.getValue());
+            }
+            return control;
+        }
+    }
+
+    /**
+     * Request BLOCK streams, send each worker its values in two frames and
+     * the end frame, wait until they are counted and close the session
+     */
+    private static void produceBlocks(DatagramPacket offer, int port) throws Exception {
+        try (Socket control = new Socket(offer.getAddress(), port)) {
+            ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+            out.writeInt(WORKERS | StreamFormat.BLOCK.getId() << NumberService.FORMAT_REQUEST_SHIFT);
+            out.flush();
+            int[] ports = new int[WORKERS];
+            for (int w = 0; w < WORKERS; w++) ports[w] = in.readInt();
+            Assert.assertEquals(StreamFormat.BLOCK.getId(), in.readInt());
+
+            int count = 0;
+            long sum = 0;
+            List<Socket> sockets = new ArrayList<>();
+            try {
+                for (int w = 0; w < WORKERS; w++) {
+                    Socket socket = new Socket(offer.getAddress(), ports[w]);
+                    sockets.add(socket);
+                    ObjectOutputStream values = new ObjectOutputStream(socket.getOutputStream());
+                    List<Integer> v = blockValues(w);
+                    int half = v.size() / 2;
+                    for (List<Integer> frame : List.of(v.subList(0, half), v.subList(half, v.size()))) {
+                        values.writeInt(frame.size());
+                        for (int value : frame) values.writeInt(value);
+                    }
+                    values.writeInt(0);
+                    values.flush();
+                    count += v.size();
+                    for (int value : v) sum += value;
+                }
+                long deadline = System.currentTimeMillis() + 5000;
+                while (query(out, in, ControlMessage.QUERY_NUMBER_COUNT) < count) {
+                    Assert.assertTrue("values not counted in time", System.currentTimeMillis() < deadline);
+                    Thread.sleep(5);
+                }
+                Assert.assertEquals(sum, query(out, in, ControlMessage.QUERY_SUM_COMPLETE));
+            } finally {
+                for (Socket socket : sockets) socket.close();
+            }
+            out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+            out.flush();
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    /**
+     * @return values of a worker of the BLOCK session, 0 among them
+     */
+    private static List<Integer> blockValues(int worker) {
+        return List.of(0, worker + 1, 0, -(worker + 1), 5, 0);
+    }
+
+    /**
+     * Send every logical worker's values and end of stream over the single ingress
+     * connection, wait until they are counted and close the session
+     */
+    private static void produce(DatagramPacket offer, int port) throws Exception {
+        try (Socket control = new Socket(offer.getAddress(), port)) {
+            ObjectOutputStream out = new ObjectOutputStream(control.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(control.getInputStream());
+            out.writeInt(WORKERS);
+            out.flush();
+            int ingressPort = in.readInt();
+            for (int i = 1; i < WORKERS; i++) Assert.assertEquals(ingressPort, in.readInt());
+
+            try (Socket ingress = new Socket(offer.getAddress(), ingressPort)) {
+                ObjectOutputStream values = new ObjectOutputStream(ingress.getOutputStream());
+                // value i goes to the worker at port position i % WORKERS
+                for (int i = 1; i <= VALUES; i++) {
+                    values.writeInt(i % WORKERS + 1);
+                    values.writeInt(i);
+                }
+                for (int tag = 1; tag <= WORKERS; tag++) {
+                    values.writeInt(tag);
+                    values.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+                }
+                values.writeInt(0);
+                values.writeInt(0);
+                values.flush();
+
+                long deadline = System.currentTimeMillis() + 5000;
+                while (query(out, in, ControlMessage.QUERY_NUMBER_COUNT) < VALUES) {
+                    Assert.assertTrue("values not counted in time", System.currentTimeMillis() < deadline);
+                    Thread.sleep(5);
+                }
+                Assert.assertEquals(VALUES * (VALUES + 1) / 2, query(out, in, ControlMessage.QUERY_SUM_COMPLETE));
+            }
+            out.writeInt(ControlMessage.CLOSE_CONNECTION.getValue());
+            out.flush();
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    /**
+     * @return values of every worker stream in a capture, in port order
+     */
+    private static List<List<Integer>> streams(Path file) throws Exception {
+        try (StreamCapture.Reader reader = new StreamCapture.Reader(file)) {
+            int[] ids = reader.getWorkerIds();
+            Assert.assertEquals(WORKERS, ids.length);
+            List<List<Integer>> streams = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) streams.add(new ArrayList<>());
+            while (reader.next()) {
+                if (reader.getKind() != StreamCapture.KIND_VALUE) continue;
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] == reader.getChannel()) streams.get(i).add(reader.getValue());
+                }
+            }
+            return streams;
+        }
+    }
+
+    private static DatagramPacket receiveOffer(DatagramSocket offers) throws Exception {
+        byte[] data = new byte[256];
+        DatagramPacket offer = new DatagramPacket(data, data.length);
+        offers.setSoTimeout(10000);
+        offers.receive(offer);
+        // acknowledged, the service waits for the connection without offering again
+        byte[] ack = "ACK".getBytes();
+        offers.send(new DatagramPacket(ack, ack.length, offer.getSocketAddress()));
+        return offer;
+    }
+
+    private static int port(DatagramPacket offer) {
+        return Integer.parseInt(new String(offer.getData(), 0, offer.getLength()).trim());
+    }
+
+    private static int query(ObjectOutputStream out, ObjectInputStream in, ControlMessage msg) throws Exception {
+        out.writeInt(msg.getValue());
+        out.flush();
+        return in.readInt();
+    }
+}
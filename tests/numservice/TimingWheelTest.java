@@ -0,0 +1,77 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test the expiry, cancelling and idle watches of the timing wheel
+ */
+public class TimingWheelTest {
+
+    // timeouts expire on their deadline tick on every level, and past the range of the wheel
+    @Test
+    public void expiresOnDeadline() throws Exception {
+        TimingWheel wheel = new TimingWheel(1);
+        long[] delays = {1, 2, 63, 64, 65, 4095, 4096, 4097, 262143, 262145, (1 << 24) + 5};
+        long[] fired = new long[delays.length];
+        AtomicLong now = new AtomicLong();
+        for (int i = 0; i < delays.length; i++) {
+            final int index = i;
+            wheel.schedule(() -> fired[index] = now.get(), delays[i]);
+        }
+        Assert.assertEquals(delays.length, wheel.getPending());
+
+        for (long t = 1; t <= delays[delays.length - 1]; t++) {
+            now.set(t);
+            wheel.advance();
+        }
+        for (int i = 0; i < delays.length; i++) {
+            Assert.assertEquals("delay " + delays[i], delays[i], fired[i]);
+        }
+        Assert.assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        TimingWheel wheel = new TimingWheel(1);
+        AtomicLong runs = new AtomicLong();
+        TimingWheel.Timeout early = wheel.schedule(runs::incrementAndGet, 10);
+        TimingWheel.Timeout late = wheel.schedule(runs::incrementAndGet, 5000);
+        wheel.schedule(runs::incrementAndGet, 5000);
+
+        // one cancelled before it is in the wheel, one after
+        Assert.assertTrue(early.cancel());
+        for (int t = 0; t < 100; t++) wheel.advance();
+        Assert.assertTrue(late.cancel());
+        Assert.assertFalse(late.cancel());
+        for (int t = 0; t < 5000; t++) wheel.advance();
+
+        Assert.assertEquals(1, runs.get());
+        Assert.assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void idleWatch() throws Exception {
+        TimingWheel wheel = new TimingWheel(1);
+        AtomicLong progress = new AtomicLong();
+        AtomicLong idleAt = new AtomicLong(-1);
+        long[] tick = {0};
+        wheel.watchIdle(progress::get, 100, () -> idleAt.set(tick[0]));
+
+        // progress in every period keeps the watch alive
+        for (tick[0] = 1; tick[0] <= 1000; tick[0]++) {
+            if (tick[0] % 50 == 0) progress.incrementAndGet();
+            wheel.advance();
+        }
+        Assert.assertEquals(-1, idleAt.get());
+
+        // then idle within one to two periods
+        for (; tick[0] <= 1300; tick[0]++) {
+            wheel.advance();
+        }
+        Assert.assertTrue(idleAt.get() > 1000 && idleAt.get() <= 1200);
+        Assert.assertEquals(0, wheel.getPending());
+    }
+}
@@ -0,0 +1,107 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Test range aggregates over the retained values against the raw values
+ */
+public class ValueRetentionTest {
+
+    private static final int VALUES = ValueRetention.CHUNK_VALUES * 10 + 123;
+
+    @Test
+    public void rangesMatchRawValues() throws Exception {
+        Random random = new Random(5);
+        int[] values = new int[VALUES];
+        ValueRetention retention = new ValueRetention(VALUES);
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = random.nextInt(2001) - 1000;
+        }
+        // in blocks and one by one
+        retention.append(values, VALUES / 2);
+        for (int i = VALUES / 2; i < VALUES; i++) retention.append(values[i]);
+
+        for (int r = 0; r < 200; r++) {
+            int from = random.nextInt(VALUES);
+            int to = from + random.nextInt(VALUES - from + 1);
+            assertRange(values, from, to, retention.aggregate(from, to));
+        }
+        assertRange(values, 0, VALUES, retention.aggregate(0, VALUES));
+        assertRange(values, VALUES - 5000, VALUES, retention.aggregateLast(5000));
+        assertRange(values, 0, VALUES, retention.aggregateTime(0, Long.MAX_VALUE));
+        Assert.assertEquals(0, retention.aggregateTime(System.currentTimeMillis() + 1000, Long.MAX_VALUE).getCount());
+    }
+
+    @Test
+    public void extremesAndEqualValues() throws Exception {
+        int[] values = new int[ValueRetention.CHUNK_VALUES * 2];
+        for (int i = 0; i < ValueRetention.CHUNK_VALUES; i++) {
+            values[i] = i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+            // the second chunk packs into no bits at all
+            values[ValueRetention.CHUNK_VALUES + i] = 7;
+        }
+        ValueRetention retention = new ValueRetention(values.length);
+        retention.append(values, values.length);
+
+        assertRange(values, 1, values.length - 1, retention.aggregate(1, values.length - 1));
+        Assert.assertEquals(ValueRetention.CHUNK_VALUES * 4, retention.getPackedBytes());
+    }
+
+    // small values pack into a few bits each
+    @Test
+    public void smallValuesPackTightly() throws Exception {
+        ValueRetention retention = new ValueRetention(ValueRetention.CHUNK_VALUES);
+        for (int i = 0; i < ValueRetention.CHUNK_VALUES; i++) retention.append(i % 41 - 20);
+        // 6 bits per value
+        Assert.assertEquals(ValueRetention.CHUNK_VALUES * 6 / 8, retention.getPackedBytes());
+    }
+
+    @Test
+    public void oldestChunksAreDropped() throws Exception {
+        int[] values = new int[ValueRetention.CHUNK_VALUES * 5 + 10];
+        for (int i = 0; i < values.length; i++) values[i] = i;
+        ValueRetention retention = new ValueRetention(ValueRetention.CHUNK_VALUES * 2);
+        retention.append(values, values.length);
+
+        Assert.assertEquals(ValueRetention.CHUNK_VALUES * 3, retention.getStart());
+        Assert.assertEquals(values.length, retention.getEnd());
+        assertRange(values, ValueRetention.CHUNK_VALUES * 3, values.length, retention.aggregate(0, values.length));
+        assertRange(values, ValueRetention.CHUNK_VALUES * 3, values.length, retention.aggregateLast(values.length));
+    }
+
+    // a slow stream which never fills the retention keeps a bounded number of time marks
+    @Test
+    public void marksStayBounded() throws Exception {
+        ValueRetention retention = new ValueRetention(ValueRetention.CHUNK_VALUES);
+        long t0 = 1_000_000_000_000L;
+        int values = 1000;
+        for (int i = 0; i < values; i++) {
+            retention.append(1, t0 + (long) i * ValueRetention.TIME_RESOLUTION);
+        }
+        Assert.assertTrue(retention.getMarkCount() <= ValueRetention.MARKS_PER_CHUNK);
+
+        Assert.assertEquals(values, retention.aggregateTime(t0, Long.MAX_VALUE).getCount());
+        // the thinned marks round the start up to the next kept mark
+        long half = retention.aggregateTime(t0 + values / 2 * ValueRetention.TIME_RESOLUTION, Long.MAX_VALUE).getCount();
+        Assert.assertTrue(half <= values / 2);
+        Assert.assertTrue(half > values / 2 - 2 * values / ValueRetention.MARKS_PER_CHUNK);
+    }
+
+    private static void assertRange(int[] values, int from, int to, ValueRetention.Aggregate a) {
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        Assert.assertEquals(sum, a.getSum());
+        Assert.assertEquals(to - from, a.getCount());
+        Assert.assertEquals(min, a.getMin());
+        Assert.assertEquals(max, a.getMax());
+    }
+}
@@ -0,0 +1,74 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Test the varint frame coding
+ */
+public class VarintCodecTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        Random random = new Random(11);
+        int[] values = new int[200];
+        for (int i = 0; i < values.length; i++) values[i] = random.nextInt();
+        // extremes and the largest differences between them
+        values[0] = Integer.MIN_VALUE;
+        values[1] = Integer.MAX_VALUE;
+        values[2] = Integer.MIN_VALUE;
+        values[3] = 0;
+        values[4] = -1;
+
+        byte[] frame = new byte[values.length * VarintCodec.MAX_BYTES];
+        int length = VarintCodec.encode(values, values.length, frame);
+        int[] decoded = new int[values.length];
+
+        Assert.assertEquals(values.length, VarintCodec.decode(frame, length, decoded));
+        Assert.assertArrayEquals(values, decoded);
+    }
+
+    // small differences take a byte per value
+    @Test
+    public void smallValuesTakeOneByte() throws Exception {
+        int[] values = new int[41];
+        for (int i = 0; i < values.length; i++) values[i] = (i % 2 == 0 ? 1 : -1) * (i / 2);
+        byte[] frame = new byte[values.length * VarintCodec.MAX_BYTES];
+
+        Assert.assertEquals(values.length, VarintCodec.encode(values, values.length, frame));
+    }
+
+    @Test
+    public void accumulateMatchesPerValue() throws Exception {
+        Random random = new Random(3);
+        int[] values = new int[500];
+        WorkerStatus expected = new WorkerStatus();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(2001) - 1000;
+            expected.addValue(values[i]);
+        }
+        byte[] frame = new byte[values.length * VarintCodec.MAX_BYTES];
+        int length = VarintCodec.encode(values, values.length, frame);
+        WorkerStatus actual = new WorkerStatus();
+
+        Assert.assertEquals(values.length, VarintCodec.accumulate(frame, length, actual));
+        Assert.assertEquals(expected.getSum(), actual.getSum());
+        Assert.assertEquals(values.length, actual.getCount());
+        Assert.assertEquals(expected.getMin(), actual.getMin());
+        Assert.assertEquals(expected.getMax(), actual.getMax());
+    }
+
+    // a frame cut inside a value is rejected without touching the status
+    @Test
+    public void malformedFrame() throws Exception {
+        byte[] frame = new byte[VarintCodec.MAX_BYTES * 2];
+        int length = VarintCodec.encode(new int[]{5, 100000}, 2, frame);
+        WorkerStatus status = new WorkerStatus();
+
+        Assert.assertEquals(-1, VarintCodec.decode(frame, length - 1, new int[2]));
+        Assert.assertEquals(-1, VarintCodec.accumulate(frame, length - 1, status));
+        Assert.assertEquals(0, status.getCount());
+    }
+}
@@ -0,0 +1,80 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test handing out and retiring warm workers
+ */
+public class WorkerPoolTest {
+
+    @Test
+    public void takenWorkerReceivesStream() throws Exception {
+        WorkerPool pool = WorkerPool.start(2, IngestTransport.TCP);
+        List<Thread> threads = new ArrayList<>();
+        NumberWorker worker = pool.take(threads);
+        Assert.assertNotNull(worker);
+        Assert.assertTrue(worker.getPort() != 0);
+        Assert.assertEquals(1, threads.size());
+
+        WorkerStatus status = new WorkerStatus();
+        worker.assign(status, StreamFormat.INT);
+        try (Socket s = new Socket("localhost", worker.getPort())) {
+            ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+            out.flush();
+            new ObjectInputStream(s.getInputStream());
+            for (int v = 1; v <= 10; v++) out.writeInt(v);
+            out.writeInt(ControlMessage.TERMINATE_STREAM.getValue());
+            out.flush();
+            threads.get(0).join(5000);
+        }
+        Assert.assertEquals(55, status.getSum());
+        Assert.assertEquals(10, status.getCount());
+        pool.close();
+    }
+
+    // workers nobody took exit with the pool
+    @Test
+    public void closeRetiresIdleWorkers() throws Exception {
+        WorkerPool pool = WorkerPool.start(3, IngestTransport.TCP);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdle() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        Assert.assertEquals(3, pool.getIdle());
+
+        List<Thread> threads = new ArrayList<>();
+        NumberWorker worker = pool.take(threads);
+        pool.close();
+        Assert.assertEquals(0, pool.getIdle());
+        worker.retire();
+        threads.get(0).join(5000);
+        Assert.assertFalse(threads.get(0).isAlive());
+    }
+
+    // a worker started while the pool closes is retired too, its endpoint is gone
+    @Test
+    public void closeWhileRefilling() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            int first = new NumberWorker(null).getId();
+            WorkerPool pool = WorkerPool.start(3, IngestTransport.LOOPBACK);
+            long until = System.nanoTime() + i * 100_000L;
+            while (System.nanoTime() < until) Thread.yield();
+            pool.close();
+            int last = new NumberWorker(null).getId();
+            for (int id = first + 1; id < last; id++) {
+                try {
+                    Loopback.connect("numservice-worker-" + id).close();
+                    Assert.fail("worker " + id + " still bound after close " + i);
+                } catch (ConnectException e) {
+                    // retired
+                }
+            }
+        }
+    }
+}
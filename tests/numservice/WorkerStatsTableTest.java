@@ -0,0 +1,92 @@
+package numservice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the worker statistics table and its status views
+ */
+public class WorkerStatsTableTest {
+
+    // sweeps cover every segment, only the max sum worker skips slots without a worker id
+    @Test
+    public void sweepAcrossSegments() throws Exception {
+        WorkerStatsTable table = new WorkerStatsTable();
+        // the first three segments and part of the fourth
+        int workers = WorkerStatsTable.FIRST_SEGMENT_SLOTS * 7 + 10;
+        for (int i = 1; i <= workers; i++) {
+            WorkerStatus status = table.allocate();
+            status.setWorkerId(i);
+            status.addValue(i);
+            status.addValue(-1);
+        }
+        WorkerStatus unpublished = table.allocate();
+        unpublished.addValue(workers * 2);
+
+        Assert.assertEquals(workers + 1, table.size());
+        Assert.assertEquals(workers * (workers + 1) / 2 - workers + workers * 2, table.sum());
+        Assert.assertEquals(workers * 2 + 1, table.count());
+        Assert.assertEquals(workers, table.maxSumWorker());
+    }
+
+    // neighbouring slots written from several threads at once
+    @Test
+    public void concurrentWriters() throws Exception {
+        WorkerStatsTable table = new WorkerStatsTable();
+        WorkerStatus[] statuses = new WorkerStatus[4];
+        Thread[] threads = new Thread[statuses.length];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = table.allocate();
+            statuses[i].setWorkerId(i + 1);
+            final WorkerStatus status = statuses[i];
+            final int value = i + 1;
+            threads[i] = new Thread(() -> {
+                for (int n = 0; n < 100000; n++) status.addValue(value);
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+
+        Assert.assertEquals(100000 * (1 + 2 + 3 + 4), table.sum());
+        Assert.assertEquals(400000, table.count());
+        Assert.assertEquals(4, table.maxSumWorker());
+        Assert.assertEquals(3, statuses[2].getMin());
+        Assert.assertEquals(3, statuses[2].getMax());
+    }
+
+    // segments are added as the slots fill, each twice the size of the one before
+    @Test
+    public void segmentsGrowWithSlots() throws Exception {
+        WorkerStatsTable table = new WorkerStatsTable();
+        int first = WorkerStatsTable.FIRST_SEGMENT_SLOTS;
+        Assert.assertEquals(0, table.capacity());
+        WorkerStatus[] statuses = new WorkerStatus[first * 3 + 1];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = table.allocate();
+            Assert.assertEquals(i, statuses[i].getSlot());
+            if (i == 0) Assert.assertEquals(first, table.capacity());
+            if (i == first) Assert.assertEquals(first * 3, table.capacity());
+            statuses[i].setWorkerId(i + 1);
+            statuses[i].addValue(i);
+        }
+        Assert.assertEquals(first * 7, table.capacity());
+        // every slot has a record of its own across the segment borders
+        for (int i = 0; i < statuses.length; i++) {
+            Assert.assertEquals(i, statuses[i].getSum());
+            Assert.assertEquals(1, statuses[i].getCount());
+            Assert.assertEquals(i, statuses[i].getMin());
+            Assert.assertEquals(i, statuses[i].getMax());
+        }
+        Assert.assertEquals(statuses.length, table.maxSumWorker());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        WorkerStatsTable table = new WorkerStatsTable();
+        Assert.assertEquals(0, table.sum());
+        Assert.assertEquals(0, table.maxSumWorker());
+        WorkerStatus status = new WorkerStatus();
+        Assert.assertEquals(Integer.MAX_VALUE, status.getMin());
+        Assert.assertEquals(Integer.MIN_VALUE, status.getMax());
+    }
+}